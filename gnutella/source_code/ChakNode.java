@@ -1,26 +1,49 @@
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 
+import java.net.BindException;
 import java.net.Inet4Address;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
-import java.util.Arrays;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.ExecutorService;
-import java.util.HashMap;
 import java.util.Scanner;
 import java.util.Random;
+import java.util.zip.Deflater;
 
 
 /**
@@ -38,16 +61,212 @@ public class ChakNode {
      */
     private final int TTL = 10;
 
+    /**
+     * How ChakNodes reach each other (-Dchaknode.transport=tcp or memory), see Transport. Over
+     * TCP by default, memory keeps a whole simulated network inside this JVM without a socket
+     */
+    private static final String TRANSPORT = System.getProperty("chaknode.transport", "tcp");
+    private static final boolean MEMORY_TRANSPORT = TRANSPORT.equals("memory");
+
+    /**
+     * Opt-in virtual-thread mode (-Dchaknode.virtualThreads=true): every accepted connection and
+     * every send of a fan-out runs on its own virtual thread instead of the selector loop, so
+     * blocking I/O no longer serializes the node and simulated networks do not need thousands
+     * of platform threads. Always on with the memory transport, which is meant for networks far
+     * too large for a few platform threads per ChakNode.
+     */
+    private static final boolean VIRTUAL_THREADS = MEMORY_TRANSPORT || Boolean.getBoolean("chaknode.virtualThreads");
+
+    /**
+     * Most virtual threads a single ChakNode runs at once in virtual-thread mode
+     * (-Dchaknode.maxVirtualThreads=n).
+     */
+    private static final int MAXIMUM_VIRTUAL_THREADS = Integer.getInteger("chaknode.maxVirtualThreads", 10000);
+
+    /**
+     * Queries are only forwarded to neighbors whose route table could match them, unless
+     * -Dchaknode.queryRouting=false in which case they are flooded to every neighbor.
+     */
+    private static final boolean QUERY_ROUTING =
+            Boolean.parseBoolean(System.getProperty("chaknode.queryRouting", "true"));
+
+    /**
+     * ChakNodes start as leaves and promote themselves to ultrapeers (see UltrapeerElection),
+     * unless -Dchaknode.ultrapeers=false in which case every ChakNode is an ultrapeer from the
+     * start and the network is flat.
+     */
+    private static final boolean ULTRAPEERS =
+            Boolean.parseBoolean(System.getProperty("chaknode.ultrapeers", "true"));
+
+    /**
+     * Searches start one hop deep and only widen until TARGET_RESULTS distinct results came back
+     * (see DynamicQuery), unless -Dchaknode.dynamicQuerying=false in which case every search is
+     * flooded with the full TTL straight away.
+     */
+    private static final boolean DYNAMIC_QUERYING =
+            Boolean.parseBoolean(System.getProperty("chaknode.dynamicQuerying", "true"));
+
+    /**
+     * Ultrapeers answer a search they recently routed query hits for from their QueryResultCache
+     * instead of forwarding it, unless -Dchaknode.resultCache=false
+     */
+    private static final boolean RESULT_CACHE =
+            Boolean.parseBoolean(System.getProperty("chaknode.resultCache", "true"));
+
+    /**
+     * Opt-in proxy cache (-Dchaknode.proxyCacheBytes=n): an ultrapeer routing query hits for the
+     * same file PROXY_CACHE_POPULARITY times fetches a copy and shares it, keeping at most n bytes
+     * of such copies (see ProxyCache). Off by default
+     */
+    private static final long PROXY_CACHE_BYTES = Long.getLong("chaknode.proxyCacheBytes", 0);
+
+    /**
+     * Opt-in compression (-Dchaknode.compression=true): connections to ChakNodes which accept it
+     * are deflated (see StreamCompression), descriptors and file transfers alike, at
+     * COMPRESSION_LEVEL. Off by default, a ChakNode always inflates what others deflated
+     */
+    private static final boolean COMPRESSION = Boolean.getBoolean("chaknode.compression");
+
+    /**
+     * Opt-in fast start (-Dchaknode.fastStart=true): a ChakNode's files are generated in the
+     * background by FILE_GENERATORS once its constructor returns, so that large simulated networks
+     * are not held up by the file system. A ChakNode shares each file as soon as it is written.
+     */
+    private static final boolean FAST_START = Boolean.getBoolean("chaknode.fastStart");
+
+    /**
+     * Where the content of files is kept (-Dchaknode.contentStore=directory, mapped or memory),
+     * see ContentStore. Files are real files in the ChakNode's directory by default
+     */
+    private static final String CONTENT_STORE = System.getProperty("chaknode.contentStore", "directory");
+
+    /**
+     * Threads shared by all ChakNodes of this JVM which generate files in fast start mode
+     */
+    private static final ExecutorService FILE_GENERATORS = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "chaknode-files");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Threads shared by all ChakNodes of this JVM which write downloaded chunks to the content
+     * store, digest them and move finished files into place, so none of that holds up the thread
+     * reading the transfer connections
+     */
+    private static final ExecutorService DOWNLOAD_WRITERS = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "chaknode-downloads");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Ports of the host caches saved in the working directory which no ChakNode of this JVM took
+     * yet, listed the first time a ChakNode picks a random port
+     */
+    private static Queue<Integer> savedHostCachePorts;
+
+    /**
+     * Distinct results after which a dynamic query stops widening (-Dchaknode.targetResults=n)
+     */
+    private static final int TARGET_RESULTS = Integer.getInteger("chaknode.targetResults", 10);
+
+    /**
+     * Number of walkers a random walk sends out (-Dchaknode.walkers=n)
+     */
+    private static final int WALKERS = Integer.getInteger("chaknode.walkers", 4);
+
     /**
      * ExecutorService is used so we can shut down all of the threads safely.
      */
-    private final ExecutorService executorService = Executors.newFixedThreadPool(2);
+    private final ExecutorService executorService = VIRTUAL_THREADS
+            ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(3);
 
     /**
      * Bounds for the port range generation
      */
     private final int LOWER_PORT_RANGE =  1024;
-    private final int UPPER_PORT_RANGE = 10000;
+    private final int UPPER_PORT_RANGE = MEMORY_TRANSPORT ? MemoryTransport.HIGHEST_PORT : 10000;
+
+    /**
+     * Connections which do not belong to a neighbor are closed after being idle this long
+     */
+    private final long IDLE_CONNECTION_TIMEOUT = 60000;
+
+    /**
+     * Milliseconds between discovery rounds while this ChakNode is still missing neighbors
+     */
+    private final long DISCOVERY_RETRY_INTERVAL = 5000;
+
+    /**
+     * Milliseconds between discovery rounds while this ChakNode has no neighbors at all, a leaf
+     * looking for its first ultrapeer also hears from the leaves competing for promotion
+     */
+    private final long ISOLATED_RETRY_INTERVAL = 1000;
+
+    /**
+     * Most ultrapeers a leaf connects to, and most leaves an ultrapeer takes in on top of its
+     * maximumConnections ultrapeer neighbors
+     */
+    private final int LEAF_CONNECTIONS = 3;
+    private final int MAXIMUM_LEAVES = 30;
+
+    /**
+     * Least milliseconds between route table patches to the same neighbors, changes made in
+     * between are sent together. The neighbors are checked for changes at least every
+     * ROUTE_TABLE_REFRESH milliseconds
+     */
+    private final long ROUTE_TABLE_INTERVAL = 100;
+    private final long ROUTE_TABLE_REFRESH = 1000;
+
+    /**
+     * Most query routes remembered at once, and how long each is remembered. A query hit arriving
+     * after its route expired is dropped, so the lifetime is well beyond any search's duration
+     */
+    private final int QUERY_CACHE_CAPACITY = 10000;
+    private final long QUERY_CACHE_LIFETIME = 5 * 60 * 1000;
+
+    /**
+     * Most bytes of query hits an ultrapeer caches, and how long the hits of a search are used
+     * to answer it again. Well under the lifetime of a route, so a cached answer reaches back
+     */
+    private final long RESULT_CACHE_BUDGET = 256 * 1024;
+    private final long RESULT_CACHE_LIFETIME = 30000;
+
+    /**
+     * Query hits an ultrapeer routes for a file before it fetches a copy in proxy cache mode
+     */
+    private final int PROXY_CACHE_POPULARITY = 3;
+
+    /**
+     * Deflate level of compressed connections, descriptors are small and sent often so speed
+     * matters more than the last few bytes
+     */
+    private final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    /**
+     * Most pongs remembered at once, and how long each is remembered. Ultrapeer neighbors are
+     * pinged for fresh pongs every PONG_CACHE_REFRESH milliseconds, so their pongs do not expire
+     * in between
+     */
+    private final int PONG_CACHE_CAPACITY = 100;
+    private final long PONG_CACHE_LIFETIME = 90000;
+    private final long PONG_CACHE_REFRESH = 60000;
+
+    /**
+     * Most cached pongs a PING is answered with, and the hops after which a cached pong is no
+     * longer passed on
+     */
+    private final int CACHED_PONGS = 2;
+    private final int MAXIMUM_PONG_HOPS = 3;
+
+    /**
+     * Most hosts kept in the host cache, and how often it is saved when it changed
+     */
+    private final int HOST_CACHE_CAPACITY = 200;
+    private final long HOST_CACHE_SAVE_INTERVAL = 30000;
 
     /**
      * the following final variables represent the byte value of the potential
@@ -55,9 +274,61 @@ public class ChakNode {
      */
     private final byte PING =     0x00;
     private final byte PONG =     0x01;
+    private final byte ROUTE_TABLE_UPDATE = 0x30;
     private final byte QUERY =    0x70;
     private final byte QUERY_HIT= 0x71;
 
+    /**
+     * only sent over transfer connections: FILE_REQUEST asks for a byte range of a file and
+     * FILE_DATA answers with the start of the range, the size of the file and the range itself.
+     */
+    private final byte FILE_REQUEST = 0x72;
+    private final byte FILE_DATA =    0x73;
+
+    /**
+     * WALKER is a query passed on to a single neighbor per hop, WALKER_CHECK asks the ChakNode
+     * which started a walk whether it goes on and carries the answer back.
+     */
+    private final byte WALKER =       0x74;
+    private final byte WALKER_CHECK = 0x75;
+
+    /**
+     * File bytes asked for in one FILE_REQUEST. A download splits its file in chunks of this size
+     * and fetches them from up to MAXIMUM_SOURCES ChakNodes at once
+     */
+    private final long CHUNK_SIZE = 1024 * 1024;
+    private final int MAXIMUM_SOURCES = 4;
+
+    /**
+     * Bytes a source may have received but not written yet before its connection stops reading
+     */
+    private final int MAXIMUM_UNWRITTEN = 256 * 1024;
+
+    /**
+     * Most query hits this ChakNode sends for a single query
+     */
+    private final int MAXIMUM_RESULTS = 10;
+
+    /**
+     * Milliseconds a dynamic query waits for results per hop of the query it sent last, before
+     * it sends the next one
+     */
+    private final long DYNAMIC_QUERY_HOP_WAIT = 100;
+
+    /**
+     * Milliseconds a search keeps counting its results after it began, its walkers are stopped
+     * at their next check once it is over
+     */
+    private final long SEARCH_LIFETIME = 30000;
+
+    /**
+     * Most hops a walker takes, the hops it takes between two checks with the ChakNode which
+     * started the walk, and the milliseconds it waits for an answer before it is dropped
+     */
+    private final int WALKER_TTL = 64;
+    private final int WALKER_CHECK_HOPS = 4;
+    private final long WALKER_CHECK_TIMEOUT = 2000;
+
     /**
      * ip will store this ChakNode's ip address, all servants
      * within the peer-to-peer network will have an IPv4
@@ -70,11 +341,6 @@ public class ChakNode {
      */
     private int port;
 
-    /**
-     * serverSocket will store this ChakNode's socket
-     */
-    private ServerSocket server;
-
     /**
      * radius will store this ChakNode's search radius
      * which will be used for neighbor discovery
@@ -86,11 +352,37 @@ public class ChakNode {
      */
     private String id;
 
+    /**
+     * the id as it is written into every descriptor header, and this ChakNode's address as it is
+     * written into pongs and query hits, encoded once.
+     */
+    private byte[] idBytes;
+    private byte[] address;
+
     /**
      * this represents this ChakNode's active neighbors.
      */
     private CopyOnWriteArrayList<Integer> neighbors;
 
+    /**
+     * the neighbors which are leaves, only an ultrapeer has any. A leaf's neighbors are all
+     * ultrapeers.
+     */
+    private Set<Integer> leaves = ConcurrentHashMap.newKeySet();
+
+    /**
+     * true once this ChakNode is an ultrapeer: it routes pings and queries between ultrapeers and
+     * answers queries on behalf of its leaves. A leaf only talks to its ultrapeers.
+     */
+    private volatile boolean ultrapeer;
+
+    /**
+     * decides when this ChakNode promotes itself, and the highest rank among the isolated leaves
+     * heard from during the current discovery round
+     */
+    private UltrapeerElection election;
+    private final AtomicLong strongestRival = new AtomicLong(Long.MIN_VALUE);
+
     /**
      * this represents the maximum number of connections
      * this ChakNode can have
@@ -101,58 +393,200 @@ public class ChakNode {
      * this represents the number of bytes of data being
      * shared on this ChakNode
      */
-    private int fileByteCount;
+    private volatile long fileByteCount;
 
     /**
-     * stores the path to the generated file directory for this ChakNode
+     * stores the path to the generated file directory for this ChakNode, which the directory
+     * and mapped content stores keep their content in
      */
     private Path fileDirectory;
 
     /**
-     * stores the path to all of the files within the file directory for this ChakNode
+     * stores the content of this ChakNode's files and partial downloads, created along with the
+     * files (see contentStore())
+     */
+    private ContentStore content;
+
+    /**
+     * the generation of this ChakNode's files, which runs in the background with FAST_START
+     */
+    private Future<?> filesGenerated;
+
+    /**
+     * how long each phase of this ChakNode's start took
+     */
+    private StartupTimings startupTimings;
+
+    /**
+     * stores all of the files within the file directory for this ChakNode, keyed by file name
+     */
+    private FileCatalog files;
+
+    /**
+     * stores the ids of all of the unique query ids received and created, with the port each
+     * query came from. Entries expire after QUERY_CACHE_LIFETIME and at most
+     * QUERY_CACHE_CAPACITY are kept.
+     */
+    private QueryRouteTable queryCache;
+
+    /**
+     * stores the ultrapeers this ChakNode recently heard of through pongs, PINGs are answered
+     * from it
+     */
+    private PongCache pongCache;
+
+    /**
+     * stores the query hits this ChakNode recently routed back by search, repeated searches are
+     * answered from it
+     */
+    private QueryResultCache resultCache;
+
+    /**
+     * stores which files this ChakNode keeps copies of for others in proxy cache mode, and
+     * counts the query hits it routes until a file is worth a copy
+     */
+    private ProxyCache proxyCache;
+
+    /**
+     * stores the ChakNodes this ChakNode has seen, kept on disk so that it finds them again after
+     * a restart on the same port
+     */
+    private HostCache hostCache;
+
+    /**
+     * System.nanoTime() at which each port was last pinged, to time its pong
+     */
+    private final Map<Integer, Long> pingsSent = new ConcurrentHashMap<>();
+
+    /**
+     * stores the route tables exchanged with neighbors, which decide where queries are forwarded
+     */
+    private QueryRouting routing;
+
+    /**
+     * count the queries this ChakNode sent (including forwarded ones), the queries it held back
+     * because a neighbor's route table could not match them, the route table patches it sent and
+     * the walker checks it sent (walkers themselves count as queries)
+     */
+    private final LongAdder queriesSent = new LongAdder();
+    private final LongAdder queriesSuppressed = new LongAdder();
+    private final LongAdder routeTableUpdatesSent = new LongAdder();
+    private final LongAdder walkerChecksSent = new LongAdder();
+
+    /**
+     * counts every descriptor this ChakNode received, the message load it carries
+     */
+    private final LongAdder descriptorsReceived = new LongAdder();
+
+    /**
+     * stores the searches this ChakNode is running, keyed by the request ID of each query they
+     * sent, and the thread which times their steps
+     */
+    private ConcurrentHashMap<String, Search> activeSearches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService searches = Executors.newSingleThreadScheduledExecutor(
+            VIRTUAL_THREADS ? Thread.ofVirtual().factory() : Executors.defaultThreadFactory());
+
+    /**
+     * stores the walkers waiting on this ChakNode for the answer to a check, keyed by request ID
+     */
+    private ConcurrentHashMap<String, List<ParkedWalker>> parkedWalkers = new ConcurrentHashMap<>();
+
+    /**
+     * stores the neighbors this ChakNode passed each walk on to, keyed by request ID. Entries are
+     * dropped SEARCH_LIFETIME after the walk first came by
+     */
+    private ConcurrentHashMap<String, Set<Integer>> walkedTo = new ConcurrentHashMap<>();
+
+    /**
+     * stores the sources of the downloads in progress keyed by their transfer connection
+     */
+    private ConcurrentHashMap<Connection, Download.Source> downloads = new ConcurrentHashMap<>();
+
+    /**
+     * stores the downloads in progress keyed by the URN of their file, so each content is only
+     * fetched once at a time whatever name it is found under, and every ChakNode found sharing it
+     * joins the same download
+     */
+    private ConcurrentHashMap<String, Download> downloading = new ConcurrentHashMap<>();
+
+    /**
+     * handles every descriptor received and every connection closed
      */
-    private ArrayList<Path> files;
+    private ConnectionListener listener;
 
     /**
-     * stores the ids of all of the unique query ids received and created
+     * stores the long-lived connection to each neighbor (and to any other ChakNode this
+     * ChakNode is currently talking to), all descriptors are sent over these connections. It
+     * owns this ChakNode's port.
      */
-    private HashMap<String, Integer> queryCache;
+    private Transport connections;
+
+    /**
+     * whether the connections compress what they send, and the bytes and time it took
+     */
+    private StreamCompression compression;
 
     /**
      * Creates a ChakNode with ip address of localhost (127.0.0.1) and
-     * the first available port, also initializes serverSocket so the
+     * the first available port, also binds the transport so the
      * node can begin the discovery phase.
      * @throws Exception if port is in use.
      */
     public ChakNode() throws Exception {
+        long started = System.nanoTime();
         ip = (Inet4Address) Inet4Address.getByName("localhost");
-        port = generateRandomPort();
-        server = new ServerSocket(port, 1000, ip);
-        radius = 100;
-        id = generateId();
-        files = new ArrayList<>();
-        queryCache = new HashMap<>();
-        neighbors = new CopyOnWriteArrayList<>();
-        maximumConnections = 5;
-        generateDirectoryAndFiles();
+        address = ip.getAddress();
+        listener = new ConnectionListener();
+        compression = new StreamCompression(COMPRESSION, COMPRESSION_LEVEL);
+        connections = bindRandomPort();
+        port = connections.getPort();
+        initialize(started);
     }
 
     /**
      * Creates a ChakNode with ip address of localhost (127.0.0.1) and
-     * with a provided port, also initializes serverSocket so the
+     * with a provided port, also binds the transport so the
      * node can begin the discovery phase.
      * @throws Exception if port is in use.
      */
     public ChakNode(int port) throws Exception {
+        long started = System.nanoTime();
         ip = (Inet4Address) Inet4Address.getByName("localhost");
+        address = ip.getAddress();
         this.port = port;
-        server = new ServerSocket(port, 1000, ip);
+        listener = new ConnectionListener();
+        compression = new StreamCompression(COMPRESSION, COMPRESSION_LEVEL);
+        connections = bind(port);
+        if(connections == null) {
+            throw new BindException("Port "+port+" is already in use");
+        }
+        initialize(started);
+    }
+
+    /**
+     * Sets up everything but the transport, which both constructors bind first, and times
+     * each phase. With FAST_START the files are generated in the background.
+     * @param started System.nanoTime() at which the constructor started
+     * @throws IOException if the file directory cannot be created
+     */
+    private void initialize(long started) throws IOException {
+        long bound = System.nanoTime();
         radius = 100;
         id = generateId();
-        files = new ArrayList<>();
-        queryCache = new HashMap<>();
+        idBytes = id.getBytes(StandardCharsets.US_ASCII);
+        files = new FileCatalog();
+        routing = new QueryRouting(TTL);
+        queryCache = new QueryRouteTable(QUERY_CACHE_CAPACITY, QUERY_CACHE_LIFETIME);
+        pongCache = new PongCache(PONG_CACHE_CAPACITY, PONG_CACHE_LIFETIME);
+        resultCache = new QueryResultCache(RESULT_CACHE_BUDGET, RESULT_CACHE_LIFETIME, MAXIMUM_RESULTS);
+        proxyCache = new ProxyCache(PROXY_CACHE_BYTES, PROXY_CACHE_POPULARITY);
+        hostCache = new HostCache(hostCacheFile(this.port), HOST_CACHE_CAPACITY);
         neighbors = new CopyOnWriteArrayList<>();
         maximumConnections = 5;
+        ultrapeer = !ULTRAPEERS;
+        election = new UltrapeerElection(this.port);
+
+        startupTimings = new StartupTimings(bound - started, System.nanoTime() - bound);
         generateDirectoryAndFiles();
     }
 
@@ -165,156 +599,385 @@ public class ChakNode {
     }
 
     /**
-     * Nicely prints out this ChakNode's neighbors for your viewing
-     * pleasure.
+     * @return how long each phase of this ChakNode's start took, the files phase is pending
+     * until they are generated in fast start mode
      */
-    public void printNeighbors() {
-        System.out.println(Arrays.toString(neighbors.toArray()));
+    public StartupTimings getStartupTimings() {
+        return startupTimings;
     }
 
+    /**
+     * @return true if this ChakNode is an ultrapeer, false if it is a leaf
+     */
+    public boolean isUltrapeer() {
+        return ultrapeer;
+    }
 
     /**
-     * Used to actively discover hosts on the network. A servant receiving a Ping
-     * descriptor is expected to respond with one or more Pong descriptors.
-     * @param port to send ping to
-     * @return a boolean notifying the node pinging if the ping was successful
+     * Nicely prints out this ChakNode's role and neighbors for your viewing
+     * pleasure, leaves of an ultrapeer are marked with a *.
      */
-    public boolean ping(int port) {
-        try {
-            Socket socket = new Socket(ip, port);
-            DataOutputStream dOut = new DataOutputStream(socket.getOutputStream());
-            dOut.write(generateDescriptor(PING, TTL, 0, 0));
-            dOut.writeUTF("GNUTELLA CONNECT\n\n");
-            dOut.writeInt(this.port);
-            dOut.flush();
-            dOut.close();
-            socket.close();
-            return true;
-        } catch (IOException e) {
-            return false;
+    public void printNeighbors() {
+        StringBuilder s = new StringBuilder(ultrapeer ? "ultrapeer [" : "leaf [");
+        for(Integer neighbor : neighbors) {
+            s.append(s.charAt(s.length() - 1) == '[' ? "" : ", ").append(neighbor)
+                    .append(leaves.contains(neighbor) ? "*" : "");
         }
+        System.out.println(s.append(']'));
     }
 
+
     /**
-     * This method is private because it is only meant to be called internally, when a port
-     * receives a ping from a accepted port, it is going to forward the ping to its neighbor
-     * in attempt to expand the network.
+     * Used to actively discover hosts on the network. A servant receiving a Ping
+     * descriptor is expected to respond with one or more Pong descriptors: its own, and a few
+     * from its pong cache. The ping itself goes no further than the port.
      * @param port to send ping to
-     * @param descriptors descriptor packet to forward
-     * @param initialPort port which sent the initial ping
      * @return a boolean notifying the node pinging if the ping was successful
      */
-    private boolean ping(int port, byte[] descriptors, int initialPort) {
-        try {
-            Socket socket = new Socket(ip, port);
-            DataOutputStream dOut = new DataOutputStream(socket.getOutputStream());
-            dOut.write(descriptors);
-            dOut.writeUTF("GNUTELLA CONNECT\n\n");
-            dOut.writeInt(initialPort);
-            dOut.flush();
-            dOut.close();
-            socket.close();
-            return true;
-        } catch (IOException e) {
-            return false;
-        }
+    public boolean ping(int port) {
+        pingsSent.put(port, System.nanoTime());
+        ByteBuffer frame = frame(PING, 1, 0, DescriptorCodec.pingLength(NeighborConnection.CONNECT));
+        DescriptorCodec.writePing(frame, NeighborConnection.CONNECT, this.port, ultrapeer);
+        return send(port, frame);
     }
 
     /**
      * The response to a Ping. Includes the address of a connected Gnutella servant and
-     * information regarding the amount of data it is making available to the network.
+     * information regarding the amount of data it is making available to the network, along
+     * with this ChakNode's role, whether it took the pinging port as a neighbor, whether it has
+     * room for more and its score for promotion.
      * @param port to send pong
      * @return a boolean notifying the node pinging if the ping was successful
      */
     private boolean pong(int port)  {
-
-        try{
-            Socket socket = new Socket(ip, port);
-            DataOutputStream dOut = new DataOutputStream(socket.getOutputStream());
-
-            dOut.write(generateDescriptor(PONG, TTL, 0, 14));
-            dOut.writeUTF("GNUTELLA OK\n\n");
-
-            //generate a 14 byte packet to be sent
-            byte[] pongPacket = new byte[16];
-
-            ByteBuffer.wrap(pongPacket, 0, 4).putInt(this.port);
-            ByteBuffer.wrap(pongPacket, 4, 4).put(ip.getAddress());
-            ByteBuffer.wrap(pongPacket, 8, 4).putInt(files.size());
-            ByteBuffer.wrap(pongPacket, 12, 4).putInt(fileByteCount);
-
-            dOut.write(pongPacket);
-            dOut.flush();
-            dOut.close();
-            socket.close();
-            return true;
-        } catch (IOException e) {
-            return false;
-        }
-
+        int flags = (ultrapeer ? DescriptorCodec.PONG_ULTRAPEER : 0)
+                | (!ultrapeer && neighbors.isEmpty() ? DescriptorCodec.PONG_ISOLATED : 0)
+                | (neighbors.contains(port) ? DescriptorCodec.PONG_ACCEPTED : 0)
+                | (ultrapeer && hasRoomFor(true) ? DescriptorCodec.PONG_ULTRAPEER_SLOTS : 0)
+                | (ultrapeer && hasRoomFor(false) ? DescriptorCodec.PONG_LEAF_SLOTS : 0);
+        ByteBuffer frame = frame(PONG, TTL, 0, DescriptorCodec.pongLength(NeighborConnection.OK));
+        // the pong only has room for 2 GB, a ChakNode sharing more claims that much
+        DescriptorCodec.writePong(frame, NeighborConnection.OK, this.port, address, files.size(),
+                (int) Math.min(fileByteCount, Integer.MAX_VALUE), flags, election.score());
+        return send(port, frame);
     }
 
     /**
-     * Searches the local storage for a file which matches the search
-     * criteria
-     * @param searchCriteria name of the file to be searched for
-     * @return a boolean representing whether the search was successful or not.
+     * Answers a ping with pongs from the pong cache, each with the hops it travelled so far in
+     * its header. They only describe ultrapeers which had room for the port's role, never
+     * whether they took the port.
+     * @param port to send the pongs to
+     * @param fromUltrapeer true if the port is an ultrapeer
+     * @return true if any pong was sent
      */
-    private boolean localFileSearch(String searchCriteria) {
-        for(Path file : files) {
-            if(file.getName(file.getNameCount()-1).toString().equals(searchCriteria)) {
-                return true;
+    private boolean cachedPongs(int port, boolean fromUltrapeer) {
+        int slots = fromUltrapeer ? DescriptorCodec.PONG_ULTRAPEER_SLOTS : DescriptorCodec.PONG_LEAF_SLOTS;
+        List<PongCache.Entry> sample = pongCache.sample(CACHED_PONGS, MAXIMUM_PONG_HOPS, port, slots);
+        for(PongCache.Entry entry : sample) {
+            ByteBuffer frame = frame(PONG, 1, entry.getHops(), DescriptorCodec.pongLength(NeighborConnection.OK));
+            DescriptorCodec.writePong(frame, NeighborConnection.OK, entry.getPort(), entry.getAddress(),
+                    entry.getFileCount(), entry.getByteCount(), entry.getFlags() & ~DescriptorCodec.PONG_ACCEPTED,
+                    entry.getScore());
+            if(!send(port, frame)) {
+                return false;
             }
         }
-        return false;
+        return !sample.isEmpty();
     }
 
     /**
-     * This method takes string and finds the matching filepath on this ChakNode.
-     * @param searchCriteria the file to be searched for
-     * @return the path of the file
+     * Decides whether there is room for another neighbor. An ultrapeer has maximumConnections
+     * slots for ultrapeers and MAXIMUM_LEAVES for leaves, a leaf only takes LEAF_CONNECTIONS
+     * ultrapeers and never another leaf.
+     * @param fromUltrapeer true if the ChakNode asking is an ultrapeer
+     * @return true if the ChakNode can be taken as a neighbor
      */
-    private Path getFilePath(String searchCriteria) {
-        for(Path file : files) {
-            if(file.getName(file.getNameCount()-1).toString().equals(searchCriteria)) {
-                return file;
-            }
+    private boolean hasRoomFor(boolean fromUltrapeer) {
+        if(!ultrapeer) {
+            return fromUltrapeer && neighbors.size() < LEAF_CONNECTIONS;
         }
-        return null;
+        return fromUltrapeer ? neighbors.size() - leaves.size() < maximumConnections
+                : leaves.size() < MAXIMUM_LEAVES;
     }
 
     /**
-     * Begins the searching process for a file, starts on this ChakNode and then
-     * if unsuccessful this ChakNode will query it's neighbors.
-     * @param searchCriteria
+     * @return the number of neighbors discovery still looks for: ultrapeer neighbors for an
+     * ultrapeer (leaves come to it), ultrapeers for a leaf
      */
-    public void beginFileSearch(String searchCriteria) {
-        if(!localFileSearch(searchCriteria)) {
-
-            // generate a query to send to neighbors
-            String requestID = generateId();
-            while(queryCache.containsValue(requestID)) {
-                requestID = generateId();
-            }
-            queryCache.put(requestID, port);
-
-
-            for(Integer neighbor : neighbors) {
-                query(neighbor, searchCriteria, requestID, TTL);
-            }
+    private int freeSlots() {
+        return ultrapeer ? maximumConnections - (neighbors.size() - leaves.size())
+                : LEAF_CONNECTIONS - neighbors.size();
+    }
 
-        }
+    /**
+     * @return the ports discovery tries first: the ultrapeers the pong cache knows to have room,
+     * then the ultrapeers in the host cache, best ranked first
+     */
+    private List<Integer> knownHosts() {
+        List<Integer> known = pongCache.ports(slotsWanted());
+        known.addAll(hostCache.ports(true));
+        return known;
     }
 
     /**
-     * This will list all of the files on this ChakNode
+     * Saves the host cache, a ChakNode which cannot write it only loses a faster restart.
      */
-    public void listAllFiles() {
-        if(files.size() == 0) {
-            System.out.println("No files!");
-        }
-        for(Path file : files) {
-            System.out.println(file.getName(file.getNameCount()-1).toString());
+    private void saveHostCache() {
+        try {
+            hostCache.save();
+        } catch (IOException e) {
+            System.out.println("Host cache of port "+port+" not saved: "+e.getMessage());
+        }
+    }
+
+    /**
+     * @return the pong flag of the slots this ChakNode looks for in other ultrapeers
+     */
+    private int slotsWanted() {
+        return ultrapeer ? DescriptorCodec.PONG_ULTRAPEER_SLOTS : DescriptorCodec.PONG_LEAF_SLOTS;
+    }
+
+    /**
+     * @return the neighbors which are sent route tables, a leaf sends its table to its
+     * ultrapeers but an ultrapeer sends none to its leaves
+     */
+    private List<Integer> routeTableRecipients() {
+        return ultrapeerNeighbors();
+    }
+
+    /**
+     * @return a copy of the neighbors which are not leaves of this ChakNode
+     */
+    private List<Integer> ultrapeerNeighbors() {
+        List<Integer> ultrapeers = new ArrayList<>(neighbors);
+        ultrapeers.removeAll(leaves);
+        return ultrapeers;
+    }
+
+    /**
+     * @return true if some neighbor of this ChakNode is an ultrapeer
+     */
+    private boolean hasUltrapeerNeighbor() {
+        return neighbors.size() > leaves.size();
+    }
+
+    /**
+     * Removes a neighbor, and forgets that it was a leaf.
+     * @param neighbor port of the neighbor
+     */
+    private void dropNeighbor(Integer neighbor) {
+        neighbors.remove(neighbor);
+        leaves.remove(neighbor);
+    }
+
+    /**
+     * Sends a descriptor over the connection to a port, the connection is opened first if this
+     * ChakNode has none to that port.
+     * @param port to send the descriptor to
+     * @param frame a buffer from frame() whose payload has been written
+     * @return a boolean which represents if the descriptor was successfully sent or not
+     */
+    private boolean send(int port, ByteBuffer frame) {
+        frame.flip();
+        return connections.send(port, frame);
+    }
+
+    /**
+     * Searches the local storage for a file which matches the search
+     * criteria
+     * @param searchCriteria name of the file to be searched for
+     * @return a boolean representing whether the search was successful or not.
+     */
+    private boolean localFileSearch(String searchCriteria) {
+        return files.contains(searchCriteria);
+    }
+
+    /**
+     * Begins the searching process for a file, starts on this ChakNode and then
+     * if unsuccessful this ChakNode will query it's neighbors. A file matches if its
+     * name contains every keyword of the search criteria, or if the search criteria are a URN
+     * (see Urn) if its hash is that of the URN, whatever its name.
+     * @param searchCriteria keywords of the file name, the whole file name or a URN
+     */
+    public void beginFileSearch(String searchCriteria) {
+        beginFileSearch(searchCriteria, DYNAMIC_QUERYING ? SearchMode.DYNAMIC : SearchMode.FLOOD);
+    }
+
+    /**
+     * Begins the searching process for a file like beginFileSearch(searchCriteria), but the
+     * neighbors are queried the way the mode says.
+     * @param searchCriteria keywords of the file name, or the whole file name
+     * @param mode how the query is sent through the network
+     */
+    public void beginFileSearch(String searchCriteria, SearchMode mode) {
+        if(files.search(searchCriteria, 1).isEmpty()) {
+            newSearch(searchCriteria, mode, true).begin();
+        }
+    }
+
+    /**
+     * Searches the network for a file without downloading what is found, and waits for the
+     * first query hit. Files on this ChakNode are not looked at.
+     * @param searchCriteria keywords of the file name, or the whole file name
+     * @param mode how the query is sent through the network
+     * @param timeout most milliseconds to wait
+     * @return milliseconds until the first query hit arrived, or -1 if none arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public long measureSearch(String searchCriteria, SearchMode mode, long timeout) throws InterruptedException {
+        Search search = newSearch(searchCriteria, mode, false);
+        long started = System.nanoTime();
+        search.begin();
+        return search.awaitFirstResult(timeout) ? (System.nanoTime() - started) / 1000000 : -1;
+    }
+
+    private Search newSearch(String searchCriteria, SearchMode mode, boolean download) {
+        switch (mode) {
+            case DYNAMIC:
+                return new DynamicQuery(searchCriteria, download);
+            case RANDOM_WALK:
+                return new RandomWalk(searchCriteria, download);
+            default:
+                return new Flood(searchCriteria, download);
+        }
+    }
+
+    /**
+     * Generates a request ID no query known to this ChakNode uses, and remembers that query hits
+     * for it are meant for this ChakNode.
+     * @return the request ID
+     */
+    private String newRequestID() {
+        String requestID = generateId();
+        while(!queryCache.add(requestID, port)) {
+            requestID = generateId();
+        }
+        return requestID;
+    }
+
+    /**
+     * Prints the size of this ChakNode's query cache and how often it found, missed and dropped
+     * routes, the size of its pong cache, the size and hit ratio of its result cache and the
+     * copies of its proxy cache.
+     */
+    public void printQueryCacheStatistics() {
+        System.out.println(queryCache+" "+pongCache+" "+resultCache+" "+proxyCache);
+    }
+
+    /**
+     * @return the number of query hits this ChakNode sent for copies kept by its proxy cache
+     */
+    public long getProxyCacheUses() {
+        return proxyCache.getUsed();
+    }
+
+    /**
+     * @return the number of searches this ChakNode answered from its result cache
+     */
+    public long getResultCacheHits() {
+        return resultCache.getHits();
+    }
+
+    /**
+     * @return the number of searches this ChakNode looked up in its result cache without finding
+     * them
+     */
+    public long getResultCacheMisses() {
+        return resultCache.getMisses();
+    }
+
+    /**
+     * Prints how many queries this ChakNode sent and held back, how many route table patches
+     * and walker checks it sent, and the bytes its connections sent and received before and
+     * after compression.
+     */
+    public void printMessageStatistics() {
+        System.out.println((ultrapeer ? "ultrapeer" : "leaf")+" descriptors received="+descriptorsReceived.sum()
+                +" queries sent="+queriesSent.sum()+" queries suppressed="+queriesSuppressed.sum()
+                +" route table updates sent="+routeTableUpdatesSent.sum()
+                +" walker checks sent="+walkerChecksSent.sum()+" "+compression);
+    }
+
+    /**
+     * @return the bytes this ChakNode's connections were handed to send, before compression
+     */
+    public long getPlainBytesSent() {
+        return compression.getPlainBytesSent();
+    }
+
+    /**
+     * @return the bytes this ChakNode's connections actually sent
+     */
+    public long getWireBytesSent() {
+        return compression.getWireBytesSent();
+    }
+
+    /**
+     * @return the nanoseconds this ChakNode's connections spent deflating and inflating
+     */
+    public long getCompressionNanos() {
+        return compression.getDeflateNanos() + compression.getInflateNanos();
+    }
+
+    /**
+     * @return the number of descriptors this ChakNode received
+     */
+    public long getDescriptorsReceived() {
+        return descriptorsReceived.sum();
+    }
+
+    /**
+     * @return the number of queries this ChakNode sent, including forwarded ones and walkers
+     */
+    public long getQueriesSent() {
+        return queriesSent.sum();
+    }
+
+    /**
+     * @return the number of walker checks this ChakNode sent, questions and answers alike
+     */
+    public long getWalkerChecksSent() {
+        return walkerChecksSent.sum();
+    }
+
+    /**
+     * Decides whether to send a query to a neighbor, counting the queries held back.
+     * @param neighbor port of the neighbor
+     * @param keywords keywords of the query
+     * @param ttl hops the query has left once it arrives at the neighbor
+     * @return true if the query should be sent
+     */
+    private boolean isWorthQuerying(int neighbor, Set<String> keywords, int ttl) {
+        if(!QUERY_ROUTING || routing.mayMatch(neighbor, keywords, ttl)) {
+            return true;
+        }
+        queriesSuppressed.increment();
+        return false;
+    }
+
+    /**
+     * @param searchString the string searched for
+     * @param ttl hops the query has left
+     * @return the query hits cached for the search, or null if the result cache is off or has
+     * none found as far away as the query reaches
+     */
+    private List<QueryResultCache.Result> cachedResults(String searchString, int ttl) {
+        if(!RESULT_CACHE) {
+            return null;
+        }
+        List<QueryResultCache.Result> cached = resultCache.get(searchString, ttl);
+        return cached == null || cached.isEmpty() ? null : cached;
+    }
+
+    /**
+     * This will list all of the files on this ChakNode
+     */
+    public void listAllFiles() {
+        if(files.size() == 0) {
+            System.out.println("No files!");
+        }
+        for(FileCatalog.Entry file : files) {
+            System.out.println(file.getName()+" "+file.getUrn());
         }
     }
 
@@ -330,83 +993,523 @@ public class ChakNode {
     private boolean query(int port, String searchString, String requestID, int ttl) {
 
         try{
-            Socket socket = new Socket(ip, port);
-            DataOutputStream dOut = new DataOutputStream(socket.getOutputStream());
+            ByteBuffer frame = frame(QUERY, ttl, 0, DescriptorCodec.queryLength(requestID, searchString));
+            DescriptorCodec.writeQuery(frame, requestID, searchString, this.port, ttl);
 
-            byte[] queryPacket = new byte[8];
-
-            dOut.write(generateDescriptor(QUERY, ttl, 0, queryPacket.length));
-            dOut.writeUTF(requestID);
-            dOut.writeUTF(searchString);
-            ByteBuffer.wrap(queryPacket, 0, 4).putInt(this.port);
-            ByteBuffer.wrap(queryPacket, 4, 4).putInt(ttl);
+            if(!send(port, frame)) {
+                return false;
+            }
+            queriesSent.increment();
+            return true;
+        } catch (IllegalArgumentException e) {
+            // the search string is too long to encode
+            return false;
+        }
+    }
 
-            dOut.write(queryPacket);
+    /**
+     * Sends a walker to a single port, it carries the search like a query does along with the
+     * port of the ChakNode which started the walk.
+     * @param port node to pass the walker to
+     * @param searchString the string to search for
+     * @param requestID request ID of the walk
+     * @param ttl hops the walker has left once it arrives
+     * @param originPort port of the ChakNode which started the walk
+     * @return a boolean indicating if the walker was sent or not
+     */
+    private boolean walker(int port, String searchString, String requestID, int ttl, int originPort) {
+        try{
+            ByteBuffer frame = frame(WALKER, ttl, 0, DescriptorCodec.walkerLength(requestID, searchString));
+            DescriptorCodec.writeWalker(frame, requestID, searchString, this.port, ttl, originPort);
 
-            dOut.flush();
-            dOut.close();
-            socket.close();
+            if(!send(port, frame)) {
+                return false;
+            }
+            queriesSent.increment();
             return true;
-        } catch (IOException e) {
+        } catch (IllegalArgumentException e) {
+            // the search string is too long to encode
             return false;
         }
     }
 
     /**
-     * This method forwards the data of a successful query
+     * Sends a walker check, either asking the ChakNode which started a walk whether it goes on or
+     * answering such a question.
+     * @param port node to send the check to
+     * @param requestID request ID of the walk
+     * @param status DescriptorCodec.WALKER_ASK, WALKER_CONTINUE or WALKER_STOP
+     * @return a boolean indicating if the check was sent or not
+     */
+    private boolean walkerCheck(int port, String requestID, int status) {
+        ByteBuffer frame = frame(WALKER_CHECK, 1, 0, DescriptorCodec.walkerCheckLength(requestID));
+        DescriptorCodec.writeWalkerCheck(frame, requestID, status);
+        if(!send(port, frame)) {
+            return false;
+        }
+        walkerChecksSent.increment();
+        return true;
+    }
+
+    /**
+     * Passes a walker on to one randomly chosen ultrapeer neighbor whose route table could match
+     * it, other than the one it came from unless there is no other. Leaves never pass walkers on
+     * and a walker on its last hop goes no further. Every WALKER_CHECK_HOPS hops the walker is
+     * first parked here until the ChakNode which started the walk answers whether it goes on.
+     * @param requestID request ID of the walk
+     * @param searchString the string searched for
+     * @param from port the walker came from
+     * @param ttl hops the walker had left when it arrived
+     * @param originPort port of the ChakNode which started the walk
+     */
+    private void walk(String requestID, String searchString, int from, int ttl, int originPort) {
+        if(!ultrapeer || ttl <= 1) {
+            return;
+        }
+        if((WALKER_TTL - ttl + 1) % WALKER_CHECK_HOPS != 0) {
+            forwardWalker(requestID, searchString, from, ttl, originPort);
+            return;
+        }
+
+        ParkedWalker walker = new ParkedWalker(searchString, from, ttl, originPort);
+        parkedWalkers.compute(requestID, (id, waiting) -> {
+            List<ParkedWalker> parked = waiting == null ? new ArrayList<>() : waiting;
+            parked.add(walker);
+            return parked;
+        });
+        if(originPort == port) {
+            resumeWalkers(requestID, walkGoesOn(requestID));
+            return;
+        }
+
+        // without an answer in time the ChakNode which started the walk is taken to be gone
+        try {
+            searches.schedule(() -> unpark(requestID, walker), WALKER_CHECK_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the ChakNode has been killed
+            return;
+        }
+        connections.fanOut(() -> {
+            if(!walkerCheck(originPort, requestID, DescriptorCodec.WALKER_ASK)) {
+                unpark(requestID, walker);
+            }
+        });
+    }
+
+    /**
+     * Sends a walker to a random ultrapeer neighbor, see walk(). Neighbors this ChakNode already
+     * passed the walk on to are left out, so the walkers of a walk spread out rather than follow
+     * each other, and a walker finding every neighbor taken goes no further: the walk has already
+     * been everywhere it could go from here.
+     */
+    private void forwardWalker(String requestID, String searchString, int from, int ttl, int originPort) {
+        List<Integer> candidates = walkerCandidates(KeywordIndex.keywords(searchString), ttl - 1);
+        if(candidates.size() > 1) {
+            candidates.remove((Integer) from);
+        }
+
+        Set<Integer> taken = walkedTo.computeIfAbsent(requestID, id -> {
+            try {
+                searches.schedule(() -> walkedTo.remove(id), SEARCH_LIFETIME, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // the ChakNode has been killed
+            }
+            return ConcurrentHashMap.newKeySet();
+        });
+        int next;
+        synchronized (taken) {
+            candidates.removeAll(taken);
+            if(candidates.isEmpty()) {
+                return;
+            }
+            next = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+            taken.add(next);
+        }
+        connections.fanOut(() -> walker(next, searchString, requestID, ttl - 1, originPort));
+    }
+
+    /**
+     * @param keywords keywords of the walk
+     * @param ttl hops the walker has left once it arrives
+     * @return the ultrapeer neighbors a walker may be sent to, those through which no matching
+     * file can be reached are left out like they are for queries
+     */
+    private List<Integer> walkerCandidates(Set<String> keywords, int ttl) {
+        List<Integer> candidates = ultrapeerNeighbors();
+        candidates.removeIf(neighbor -> !isWorthQuerying(neighbor, keywords, ttl));
+        return candidates;
+    }
+
+    /**
+     * Passes on or drops the walkers parked for a walk, once the answer to their check arrived.
+     * @param requestID request ID of the walk
+     * @param goOn true if the walk goes on
+     */
+    private void resumeWalkers(String requestID, boolean goOn) {
+        List<ParkedWalker> waiting = parkedWalkers.remove(requestID);
+        if(waiting != null && goOn) {
+            for(ParkedWalker walker : waiting) {
+                forwardWalker(requestID, walker.searchString, walker.from, walker.ttl, walker.originPort);
+            }
+        }
+    }
+
+    /**
+     * Drops a parked walker, unless its check was answered in the meantime.
+     */
+    private void unpark(String requestID, ParkedWalker walker) {
+        parkedWalkers.computeIfPresent(requestID, (id, waiting) -> {
+            waiting.remove(walker);
+            return waiting.isEmpty() ? null : waiting;
+        });
+    }
+
+    /**
+     * @return true if the walk with the request ID is one this ChakNode started and it still
+     * needs results
+     */
+    private boolean walkGoesOn(String requestID) {
+        Search search = activeSearches.get(requestID);
+        return search instanceof RandomWalk && !search.isSatisfied() && connections.isOpen();
+    }
+
+    /**
+     * Hands a query to the leaves of this ultrapeer whose route table matches it, on its last hop
+     * since leaves never pass queries on.
+     * @param requestID unique request ID
+     * @param searchString the string searched for
+     * @param except port the query came from, which is not queried again
+     */
+    private void queryLeaves(String requestID, String searchString, int except) {
+        Set<String> keywords = KeywordIndex.keywords(searchString);
+        for(Integer leaf : leaves) {
+            if(leaf != except && isWorthQuerying(leaf, keywords, 1)) {
+                connections.fanOut(() -> query(leaf, searchString, requestID, 1));
+            }
+        }
+    }
+
+    /**
+     * This method lets the requesting node know where a file it searched for can be found. The
+     * query hit only carries this ChakNode's address and port, the file's name, size and SHA-1
+     * hash (its URN), the requesting node then downloads the file straight from this ChakNode.
+     * @param requestId is a unique identifier of a query request
+     * @param file is the catalog entry of the file to be downloaded
+     * @return a boolean which represents if the method was successfully sent or not
+     */
+    private boolean queryHit(String requestId, FileCatalog.Entry file) {
+        proxyCache.used(file.getUrn());
+        return queryHit(requestId, address, this.port, file.getName(), file.getSize(), file.getHash());
+    }
+
+    /**
+     * Sends a query hit for a file shared by any ChakNode, a cached one for instance.
      * @param requestId is a unique identifier of a query request
-     * @param fileData is the byte data of a file to be downloaded
-     * @param searchString is the name of the file being searched for
+     * @param hostAddress IPv4 address of the ChakNode sharing the file
+     * @param hostPort port of the ChakNode sharing the file
+     * @param filename name of the file
+     * @param size size of the file in bytes
+     * @param hash SHA-1 hash of the file
      * @return a boolean which represents if the method was successfully sent or not
      */
-    private boolean queryHit(String requestId, byte[] fileData, String searchString) {
+    private boolean queryHit(String requestId, byte[] hostAddress, int hostPort, String filename, long size,
+                             byte[] hash) {
 
-        int requestingPort = queryCache.get(requestId);
+        Integer requestingPort = queryCache.get(requestId);
+        if(requestingPort == null) {
+            // the route back has expired
+            return false;
+        }
 
-        try{
-            Socket socket = new Socket(ip, requestingPort);
-            DataOutputStream dOut = new DataOutputStream(socket.getOutputStream());
+        ByteBuffer frame = frame(QUERY_HIT, TTL, 0, DescriptorCodec.queryHitLength(requestId, filename));
+        DescriptorCodec.writeQueryHit(frame, requestId, hostAddress, hostPort, filename, size, hash);
 
-            dOut.write(generateDescriptor(QUERY_HIT, TTL, 0, fileData.length));
-            dOut.writeUTF(requestId);
-            dOut.writeUTF(searchString);
-            dOut.write(fileData);
+        return send(requestingPort, frame);
+    }
 
-            dOut.flush();
-            dOut.close();
-            socket.close();
+    /**
+     * Starts downloading a file found by a query hit over a transfer connection to the
+     * ChakNode sharing it, or adds that ChakNode as another source of the download if the file
+     * is already being downloaded. A partial file left by an earlier download of the same file is
+     * resumed rather than fetched again. A file whose hash this ChakNode already shares, under
+     * any name, is not downloaded at all, while a different file which merely has the same name
+     * as one shared here is saved under a name of its own (see disambiguate()).
+     *
+     * A copy for the proxy cache is only kept as one if its own download fetched it, the fetch
+     * routed() started is abandoned otherwise. A search which finds a file being fetched as a
+     * copy takes the download over, the file is then the ChakNode's own.
+     * @param requestId is a unique identifier of the query request
+     * @param host address of the ChakNode sharing the file
+     * @param hostPort port of the ChakNode sharing the file
+     * @param filename name of the file
+     * @param size size of the file in bytes
+     * @param hash SHA-1 hash of the file
+     * @param copy true if the file is fetched for the proxy cache
+     * @return a boolean which represents if the download was started or joined, or does not
+     * need the ChakNode
+     */
+    private boolean download(String requestId, Inet4Address host, int hostPort, String filename, long size,
+                             byte[] hash, boolean copy) {
+        String urn = Urn.of(hash);
+        FileCatalog.Entry local = files.getByHash(hash);
+        if(local != null) {
+            if(copy) {
+                proxyCache.abandoned(urn);
+            } else if(!local.getName().equals(filename)) {
+                System.out.println(filename+" is already here as "+local.getName()+", not downloaded.");
+            }
             return true;
-        } catch (IOException e) {
-            return false;
         }
+
+        Download download;
+        synchronized (downloading) {
+            download = downloading.get(urn);
+            if(download == null) {
+                String localName = filename;
+                if(localFileSearch(filename)) {
+                    // another file under the same name
+                    localName = disambiguate(filename, urn);
+                    if(localFileSearch(localName)) {
+                        if(copy) {
+                            proxyCache.abandoned(urn);
+                        } else {
+                            System.out.println(filename+" differs from the file here under the same name, and "
+                                    +localName+" is taken as well, not downloaded.");
+                        }
+                        return false;
+                    }
+                    if(!copy) {
+                        System.out.println(filename+" differs from the file here under the same name, it is saved as "
+                                +localName+".");
+                    }
+                }
+                try {
+                    download = new Download(requestId, filename, localName, size, hash, copy);
+                } catch (IOException e) {
+                    if(copy) {
+                        proxyCache.abandoned(urn);
+                    }
+                    return false;
+                }
+                downloading.put(urn, download);
+            } else {
+                download.joined(copy);
+            }
+        }
+        return download.addSource(host, hostPort);
     }
 
     /**
-     * This private method returns true if the port is available, other wise false.
-     * @param port to check if available
-     * @return true if available, else false.
+     * Starts downloading a copy of a file for the proxy cache, the fetch routed() started ends
+     * with the download. Opening the transfer connection does not hold up the dispatcher thread
+     * routing the query hit.
+     * @param requestID request ID of the query hit
+     * @param hit the query hit routed for the file
      */
-    private boolean isPortAvailable(int port) {
+    private void fetchCopy(String requestID, DescriptorCodec.QueryHit hit) {
         try {
-            new ServerSocket(port);
-            return true;
+            download(requestID, (Inet4Address) InetAddress.getByAddress(hit.getAddress()), hit.getPort(),
+                    hit.getFilename(), hit.getSize(), hit.getHash(), true);
+        } catch (UnknownHostException e) {
+            // the hit carried a malformed address
+            proxyCache.abandoned(Urn.of(hit.getHash()));
+        }
+    }
+
+    /**
+     * Names a downloaded file whose name is taken by a different file here after its content,
+     * "song.txt" becoming "song_ABCDEFGH.txt" with the first characters of its URN.
+     * @param filename name the file was found under
+     * @param urn URN of the file
+     * @return the name to save the file under
+     */
+    private static String disambiguate(String filename, String urn) {
+        String tag = "_"+urn.substring(Urn.PREFIX.length(), Urn.PREFIX.length() + 8);
+        int extension = filename.lastIndexOf('.');
+        return extension > 0 ? filename.substring(0, extension)+tag+filename.substring(extension) : filename+tag;
+    }
+
+    /**
+     * Answers a FILE_REQUEST with the requested range of a file. The range goes from the content
+     * store straight into the transfer connection, it is never copied onto the heap. A request for a
+     * file this ChakNode does not have (or no longer has with the same hash), or for a range
+     * outside of the file, is answered with a size of -1 and no data.
+     * @param connection transfer connection the request arrived on
+     * @param filename name of the requested file
+     * @param hash SHA-1 hash of the requested file
+     * @param start offset of the first byte requested
+     * @param end offset after the last byte requested
+     */
+    private void serveFile(Connection connection, String filename, byte[] hash, long start, long end) {
+        ContentStore.Content fileData = null;
+        long size = -1;
+
+        try {
+            FileCatalog.Entry shared = files.get(filename);
+            if(shared != null && Arrays.equals(hash, shared.getHash())
+                    && (fileData = content.open(filename)) != null) {
+                size = fileData.size();
+            }
+            if(start < 0 || start > end || end > size || end - start > Integer.MAX_VALUE - 16) {
+                size = -1;
+                start = end = 0;
+            }
+
+            // only the header and the start of the range are framed here, the range itself is
+            // queued as a region of the content
+            ByteBuffer frameHead = ByteBuffer.allocate(Descriptor.HEADER_LENGTH + 16);
+            DescriptorCodec.writeHeader(frameHead, idBytes, FILE_DATA, TTL, 0, 16 + (int) (end - start));
+            frameHead.putLong(start).putLong(size).flip();
+            if(fileData == null || size < 0) {
+                connection.send(frameHead);
+            } else {
+                ContentStore.Content sent = fileData;
+                fileData = null;
+                sent.send(connection, frameHead, start, end - start);
+            }
         } catch (IOException e) {
-            return false;
+            connections.close(connection);
+        } finally {
+            if(fileData != null) {
+                try {
+                    fileData.close();
+                } catch (IOException e) {
+                    // nothing left to release
+                }
+            }
+        }
+    }
+
+    /**
+     * Feeds the first bytes of a file to a new SHA-1 digest, a small buffer at a time.
+     * @param fileData content of the file
+     * @param length number of bytes to digest
+     * @return the digest, which more bytes can still be added to
+     * @throws IOException if the file is shorter than length
+     */
+    private static MessageDigest sha1(ContentStore.Content fileData, long length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IOException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        while(position < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int read = fileData.read(buffer, position);
+            if(read < 0) {
+                throw new IOException("File shorter than expected");
+            }
+            position += read;
+            buffer.flip();
+            digest.update(buffer);
         }
+        return digest;
     }
 
     /**
-     * This method randomly generates a port which is not in use.
-     * @return a port number between 1024 and 10000 (inclusive)
+     * @param port listening port of a ChakNode
+     * @return the file its host cache is kept in, in the working directory, or null if the host
+     * cache is not kept (with the memory transport)
      */
-    private int generateRandomPort() {
+    private static Path hostCacheFile(int port) {
+        if(MEMORY_TRANSPORT) {
+            // ports of the memory transport only mean something to this JVM
+            return null;
+        }
+        return Paths.get(Paths.get(".").toAbsolutePath()+"/port_"+port+"_hosts.txt");
+    }
+
+    /**
+     * Binds the transport to a random port which is not in use, trying each port once by
+     * binding it straight away. A port whose host cache was saved by an earlier ChakNode is taken
+     * first if it is free, so that restarting the ChakNode finds its neighbors again straight away.
+     * @return the transport, bound to a port between LOWER_PORT_RANGE and UPPER_PORT_RANGE (inclusive)
+     * @throws IOException if the transport cannot be set up
+     */
+    private Transport bindRandomPort() throws IOException {
+        Integer saved;
+        while((saved = savedHostCachePort()) != null) {
+            Transport transport = bind(saved);
+            if(transport != null) {
+                return transport;
+            }
+        }
+
         Random random = new Random();
-        int port;
+        Transport transport;
 
         //loops until an available port is found
-        while(!isPortAvailable((port = random.nextInt((UPPER_PORT_RANGE-LOWER_PORT_RANGE))+LOWER_PORT_RANGE)));
+        while((transport = bind(random.nextInt((UPPER_PORT_RANGE-LOWER_PORT_RANGE))+LOWER_PORT_RANGE)) == null);
 
-        return port;
+        return transport;
+    }
+
+    /**
+     * @param port to bind
+     * @return a transport bound to the port, or null if the port is in use
+     * @throws IOException if the transport cannot be set up
+     */
+    private Transport bind(int port) throws IOException {
+        if(MEMORY_TRANSPORT) {
+            return MemoryTransport.bind(port, listener, MAXIMUM_VIRTUAL_THREADS);
+        }
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(ip, port), 1000);
+        } catch (IOException e) {
+            channel.close();
+            return null;
+        }
+        try {
+            return new ConnectionTable(channel, ip, port, listener, VIRTUAL_THREADS ? MAXIMUM_VIRTUAL_THREADS : 0,
+                    compression);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the port of a saved host cache within the port range which no ChakNode of this JVM
+     * took yet, or null if there is none left
+     */
+    private Integer savedHostCachePort() {
+        if(MEMORY_TRANSPORT) {
+            // no host cache is saved with the memory transport
+            return null;
+        }
+        synchronized (ChakNode.class) {
+            if(savedHostCachePorts == null) {
+                savedHostCachePorts = new ArrayDeque<>();
+                try (DirectoryStream<Path> saved = Files.newDirectoryStream(Paths.get("."), "port_*_hosts.txt")) {
+                    for (Path file : saved) {
+                        String name = file.getFileName().toString();
+                        try {
+                            savedHostCachePorts.add(Integer.parseInt(
+                                    name.substring("port_".length(), name.length() - "_hosts.txt".length())));
+                        } catch (NumberFormatException e) {
+                            // not a host cache of ours
+                        }
+                    }
+                } catch (IOException e) {
+                    // no host cache to pick a port from
+                }
+            }
+
+            Integer port;
+            while((port = savedHostCachePorts.poll()) != null) {
+                if(port >= LOWER_PORT_RANGE && port <= UPPER_PORT_RANGE) {
+                    return port;
+                }
+            }
+            return null;
+        }
     }
 
     /**
@@ -426,83 +1529,254 @@ public class ChakNode {
         return s.toString();
     }
 
+    /**
+     * Shares a file with the network: it joins the catalog, its keywords and its URN join the
+     * route tables sent to neighbors and its size is added to the byte count. The hash is taken
+     * once here, when the file is indexed, and never computed again while the file is shared.
+     * @param filename name of the file, under which the content store holds it
+     * @param size size of the file in bytes
+     * @param hash SHA-1 hash of the file
+     */
+    private synchronized void shareFile(String filename, long size, byte[] hash) {
+        FileCatalog.Entry entry = files.add(filename, size, hash);
+        routing.add(filename);
+        routing.add(entry.getUrn());
+        fileByteCount += size;
+    }
+
+    /**
+     * Stops sharing a file and removes its content. Its keywords stay in the route tables until
+     * they are rebuilt, a query they let through finds nothing here.
+     * @param filename name of the file
+     * @throws IOException if the content cannot be removed
+     */
+    private synchronized void unshareFile(String filename) throws IOException {
+        FileCatalog.Entry removed = files.remove(filename);
+        if(removed != null) {
+            fileByteCount -= removed.getSize();
+            content.delete(filename);
+        }
+    }
+
+    /**
+     * @param bytes content of a file
+     * @return the SHA-1 hash of the content
+     */
+    private static byte[] sha1(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * This method assists with simulating an actual peer-to-peer network by creating temporary files
-     * to be shared across the network.
+     * to be shared across the network. With FAST_START the content store and the files are created
+     * in the background, anything else using the content store waits for it first (see
+     * contentStore()).
      * @throws IOException shouldn't throw anything as long as the program is properly terminated.
      */
     private void generateDirectoryAndFiles() throws IOException {
+        fileDirectory = Paths.get(Paths.get(".").toAbsolutePath()+"/port_"+port);
+
+        if(!FAST_START) {
+            generateFiles();
+            return;
+        }
+        filesGenerated = FILE_GENERATORS.submit(() -> {
+            try {
+                generateFiles();
+            } catch (IOException e) {
+                System.out.println("Files of port "+port+" not generated: "+e.getMessage());
+            }
+        });
+    }
 
-        fileDirectory = Files.createDirectory(
-                Paths.get(Paths.get(".").toAbsolutePath()+"/port_"+port));
+    /**
+     * @return the content store, once it has been created
+     */
+    private ContentStore contentStore() {
+        awaitFiles();
+        return content;
+    }
 
-        int fileCount = new Random().nextInt(5);
+    /**
+     * Waits for the files generated in the background in fast start mode, if they are not
+     * generated yet.
+     */
+    private void awaitFiles() {
+        if(filesGenerated != null) {
+            try {
+                filesGenerated.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // generateFiles() reports its own failures
+            }
+        }
+    }
+
+    /**
+     * Creates the content store and writes up to 4 files of quotes into it, which are shared. A
+     * file's size is that of the bytes written rather than read back.
+     */
+    private void generateFiles() throws IOException {
+        long started = System.nanoTime();
+        content = CONTENT_STORE.equals("memory") ? new MemoryContentStore()
+                : CONTENT_STORE.equals("mapped") ? new MappedContentStore(fileDirectory)
+                : new DirectoryContentStore(fileDirectory);
+
+        Random random = new Random();
+        int fileCount = random.nextInt(5);
 
         for(int i = 0; i < fileCount; ++i) {
-            files.add(Files.createTempFile(
-                    fileDirectory, "port_"+port+"_file_", ".txt"));
-            Files.write(files.get(i), Collections.singleton(Quote.getQuote()));
-            fileByteCount += Files.size(files.get(i));
+            byte[] quote = (Quote.getQuote()+System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+            String filename;
+            while(true) {
+                filename = "port_"+port+"_file_"+Long.toUnsignedString(random.nextLong())+".txt";
+                try {
+                    content.create(filename, quote);
+                    break;
+                } catch (FileAlreadyExistsException e) {
+                    // same name drawn twice, draw another
+                }
+            }
+            shareFile(filename, quote.length, sha1(quote));
         }
+
+        startupTimings.filesDone(System.nanoTime() - started);
     }
 
 
     /**
-     * Generates a byte[] representing a descriptor header of length 22. The first 16
-     * bytes is this ChakNode's id.
+     * Allocates a buffer for a whole descriptor and writes its 23 byte header, the first 16
+     * bytes being this ChakNode's id. The payload is written next, straight into the same
+     * buffer, so a descriptor is a single array from the start. Frames are not pooled, the same
+     * one may wait in the write queues of several neighbors and is left to the garbage collector
+     * once the last of them has written it.
      * @param payload is represented by the next byte
      * @param timeToLive is represented by the next byte
      * @param hops is represented by the next byte
-     * @param payloadLength is represented by the next 4 bytes
-     * @return descriptor headers in a byte[] of size 22
+     * @param payloadLength is represented by the next 4 bytes, the buffer has room for exactly
+     *                      that many payload bytes
+     * @return the buffer, positioned after the header
      */
-    private byte[] generateDescriptor(byte payload, int timeToLive, int hops, int payloadLength) {
-        byte[] descriptor = new byte[23];
+    private ByteBuffer frame(byte payload, int timeToLive, int hops, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(Descriptor.HEADER_LENGTH + payloadLength);
+        DescriptorCodec.writeHeader(frame, idBytes, payload, timeToLive, hops, payloadLength);
+        return frame;
+    }
+
+    /**
+     * The following thread will constantly looking to fill the neighbors list while maximum capacity has
+     * not been reached and it is also responsible for the periodic pinging of the neighbor ChakNodes.
+     * Candidates are probed concurrently by a NeighborDiscovery, the ultrapeers the pong cache
+     * knows to have room and those in the host cache first and those known to be full not at all,
+     * and the search radius keeps widening within a round until the neighbors list is full or
+     * every port is covered. A leaf is also promoted to an ultrapeer here, at the end of a round,
+     * and the host cache is saved every HOST_CACHE_SAVE_INTERVAL.
+     */
+    public class DiscoveryThread implements Runnable {
+        @Override
+        public void run() {
+            NeighborDiscovery discovery = new NeighborDiscovery(port, LOWER_PORT_RANGE, UPPER_PORT_RANGE,
+                    connections, neighbors, ChakNode.this::freeSlots, ChakNode.this::ping,
+                    ChakNode.this::knownHosts, candidate -> pongCache.isFull(candidate, slotsWanted()));
+            int widestRadius = Math.max(port - LOWER_PORT_RANGE, UPPER_PORT_RANGE - port);
+            long refreshed = 0;
+            long saved = System.currentTimeMillis();
+
+            while (connections.isOpen()) {
+                strongestRival.set(Long.MIN_VALUE);
+
+                //the pong cache is refreshed by pinging the ultrapeer neighbors, which answer with
+                //their own pongs
+                if(System.currentTimeMillis() - refreshed >= PONG_CACHE_REFRESH) {
+                    refreshed = System.currentTimeMillis();
+                    for (Integer neighbor : ultrapeerNeighbors()) {
+                        connections.fanOut(() -> ping(neighbor));
+                    }
+                }
+
+                //continue to add neighbors in our radius, ports probed earlier in the round are skipped
+                int probedRadius = 0;
+                try {
+                    while (!discovery.probe(probedRadius, radius) && radius < widestRadius
+                            && !Thread.currentThread().isInterrupted()) {
+                        // not enough neighbors found, increase the radius
+                        probedRadius = radius;
+                        radius += 100;
+                    }
+                } catch (IOException e) {
+                    // out of file descriptors for now, the next round tries again
+                }
+
+                //the connection table drives liveness, a neighbor is only kept while its
+                //connection is open or can be re-established
+                for (Integer neighbor : neighbors) {
+                    if(neighbor == port || connections.connect(neighbor) == null) {
+                        dropNeighbor(neighbor);
+                    }
+                }
+                connections.closeIdle(neighbors, IDLE_CONNECTION_TIMEOUT);
 
-        ByteBuffer.wrap(descriptor, 0, 16).put(id.getBytes());
-        ByteBuffer.wrap(descriptor, 16, 1).put(payload);
-        ByteBuffer.wrap(descriptor, 17, 1).put((byte) timeToLive);
-        ByteBuffer.wrap(descriptor, 18, 1).put((byte) hops);
-        ByteBuffer.wrap(descriptor, 19, 4).putInt(payloadLength);
+                //a leaf left without ultrapeers takes the role itself, unless a better suited
+                //leaf heard from this round is about to
+                if(!ultrapeer && election.shouldPromote(neighbors.isEmpty(), strongestRival.get())) {
+                    ultrapeer = true;
+                }
+
+                if(System.currentTimeMillis() - saved >= HOST_CACHE_SAVE_INTERVAL) {
+                    saved = System.currentTimeMillis();
+                    saveHostCache();
+                }
 
-        return descriptor;
+                //in a two-tier network a ChakNode with at least one ultrapeer neighbor waits as long
+                //as a full one, newcomers find it rather than the other way around. It starts the
+                //next round within ISOLATED_RETRY_INTERVAL once it loses its last ultrapeer neighbor
+                boolean connected = hasUltrapeerNeighbor();
+                long wait = freeSlots() <= 0 || ULTRAPEERS && connected ? 60000
+                        : ULTRAPEERS && neighbors.isEmpty() ? ISOLATED_RETRY_INTERVAL : DISCOVERY_RETRY_INTERVAL;
+                long wakeUp = System.currentTimeMillis() + wait;
+                try {
+                    do {
+                        Thread.sleep(Math.min(ISOLATED_RETRY_INTERVAL, wait));
+                        wait = wakeUp - System.currentTimeMillis();
+                    } while (wait > 0 && !(ULTRAPEERS && connected && !hasUltrapeerNeighbor()));
+                } catch (InterruptedException e) {
+                    // the ChakNode has been killed
+                    return;
+                }
+            }
+        }
     }
 
     /**
-     * The following thread will constantly looking to fill the neighbors list while maximum capacity has
-     * not been reached and it is also responsible for the periodic pinging of the neighbor ChakNodes.
+     * The following thread sends each neighbor a patch of the route table built for it whenever
+     * this ChakNode's files, a neighbor's table or the neighbors themselves have changed. Patches
+     * are at least ROUTE_TABLE_INTERVAL apart so that a burst of changes costs a single patch.
      */
-    public class DiscoveryThread implements Runnable {
+    public class RouteTableThread implements Runnable {
         @Override
         public void run() {
-            while (true) {
-                if(neighbors.size() < maximumConnections) {
-                    //continue to add neighbors in our radius ..
-                    int lowerRangeBound = Math.max(LOWER_PORT_RANGE, port - radius);
-                    int upperRangeBound = Math.min(UPPER_PORT_RANGE, port + radius);
-
-                    for (int portToCheck = lowerRangeBound; portToCheck <= upperRangeBound; portToCheck++) {
-                        if (portToCheck != port && !neighbors.contains(portToCheck) && ping(portToCheck));
-                    }
-
-                    // if no neighbors are found, increase the radius
-                    if (neighbors.isEmpty() || neighbors.size() < maximumConnections) {
-                        radius += 100;
-                    }
-                }
-
-                //periodically ping neighbors
-                for (Integer neighbor : neighbors) {
-                    //if pinging the neighbor fails, simply remove it from our list
-                    if(!ping(neighbor) || neighbor == port) {
-                        neighbors.remove(neighbor);
+            while (connections.isOpen()) {
+                for (Map.Entry<Integer, byte[]> update : routing.updates(neighbors, routeTableRecipients()).entrySet()) {
+                    ByteBuffer frame = frame(ROUTE_TABLE_UPDATE, 1, 0, update.getValue().length);
+                    if(send(update.getKey(), frame.put(update.getValue()))) {
+                        routeTableUpdatesSent.increment();
+                    } else {
+                        routing.unsent(update.getKey());
                     }
                 }
 
                 try {
-                    Thread.sleep(60000);
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    Thread.sleep(ROUTE_TABLE_INTERVAL);
+                    routing.awaitChange(ROUTE_TABLE_REFRESH);
+                } catch (InterruptedException e) {
+                    // the ChakNode has been killed
+                    return;
                 }
             }
         }
@@ -510,142 +1784,819 @@ public class ChakNode {
 
     /**
      * This thread is responsible for constantly listening to different requests from different nodes
-     * and acts appropriately to the defined protocols.
+     * and acts appropriately to the defined protocols. Over TCP it runs the connection table's
+     * selector loop, which accepts connections and parses descriptors from every connection without
+     * blocking, the descriptors are then handled by this listener on the connection table's
+     * dispatcher threads. The memory transport hands descriptors to it on virtual threads.
      */
-    public class ConnectionListener implements Runnable {
+    public class ConnectionListener implements Runnable, Transport.Listener {
         @Override
         public void run() {
-            // starts server and waits for a connection
-            while (true) {
-                try {
-                    Socket listenSocket = server.accept();
-
-                    DataInputStream in = new DataInputStream(
-                            new BufferedInputStream(listenSocket.getInputStream()));
-
-                    byte[] id =           new byte[16];
-                    byte[] payload =       new byte[1];
-                    byte[] timeToLive =    new byte[1];
-                    byte[] hops =          new byte[1];
-                    byte[] payloadLength = new byte[4];
+            connections.serve();
+        }
 
-                    in.read(id, 0, 16);
-                    in.read(payload, 0, 1);
-                    in.read(timeToLive, 0, 1);
-                    in.read(hops, 0, 1);
-                    in.read(payloadLength, 0, 4);
+        @Override
+        public void descriptorReceived(Connection connection, Descriptor descriptor) {
+            descriptorsReceived.increment();
+            try {
+                ByteBuffer payload = descriptor.getPayloadBuffer();
+
+                int hopsInt = descriptor.getHops();
+                int requestingPort;
+
+                switch (descriptor.getPayloadDescriptor()) {
+                    case PING:
+                        DescriptorCodec.Ping ping = DescriptorCodec.readPing(payload);
+                        String utfMessage = ping.getGreeting();
+                        Integer socketPortNumber = ping.getInitialPort();
+                        boolean fromUltrapeer = ping.isUltrapeer();
+
+                        if (utfMessage.equals("GNUTELLA CONNECT\n\n") && !neighbors.contains(socketPortNumber)
+                                && hasRoomFor(fromUltrapeer)) {
+
+                            // a leaf is marked first, so that no route table is ever sent to it
+                            if(!fromUltrapeer) {
+                                leaves.add(socketPortNumber);
+                            }
+                            neighbors.addIfAbsent(socketPortNumber);
+                            hostCache.seen(socketPortNumber, fromUltrapeer, -1, -1);
+
+                            if(!pong(socketPortNumber)) {
+                                dropNeighbor(socketPortNumber);
+                            } else if(fromUltrapeer) {
+                                // an ultrapeer looks for more of its kind, the ones this ChakNode
+                                // knows to have room spare it some probing
+                                cachedPongs(socketPortNumber, true);
+                            }
 
+                        } else if(neighbors.contains(socketPortNumber)) {
+                            // wellness check on neighbors, a leaf which has since been promoted
+                            // now counts as an ultrapeer. The pong refreshes this ChakNode's entry
+                            // in the neighbor's pong cache
+                            if(fromUltrapeer) {
+                                leaves.remove(socketPortNumber);
+                            }
+                            if(!pong(socketPortNumber)) {
+                                dropNeighbor(socketPortNumber);
+                            }
+                        } else if(connection.getRemotePort() == socketPortNumber) {
+                            // no room for the ChakNode which pinged us. Pings are never passed on,
+                            // the ChakNode is sent cached pongs of ultrapeers with room for its role
+                            // instead and our pong refuses it, so it closes the connection. A leaf's
+                            // pong also tells another leaf whether this one competes with it for
+                            // promotion. Without cached pongs, close the connection of an ultrapeer
+                            // or of a leaf pinging an ultrapeer
+                            if(cachedPongs(socketPortNumber, fromUltrapeer) || !fromUltrapeer && !ultrapeer) {
+                                pong(socketPortNumber);
+                            } else {
+                                connections.close(connection);
+                            }
+                        }
+
+                        break;
+                    case PONG:
+                        DescriptorCodec.Pong pong = DescriptorCodec.readPong(payload);
+                        utfMessage = pong.getGreeting();
+                        requestingPort = pong.getPort();
+
+                        // every neighbor holds a connection open, so their number stays bounded. A pong
+                        // beyond that is refused by closing its connection, which drops this ChakNode
+                        // from the other end's neighbors as well. A pong from a ChakNode which did not
+                        // take this one as a neighbor only carries information
+                        if(utfMessage.equals("GNUTELLA OK\n\n")) {
+                            // every ultrapeer heard of is cached, a pong passed on from another
+                            // ChakNode's cache carries the hops it travelled so far and nothing else
+                            if(pong.isUltrapeer() && requestingPort != port) {
+                                pongCache.add(requestingPort, pong.getAddress(), pong.getFileCount(),
+                                        pong.getByteCount(), pong.getFlags(), pong.getScore(), hopsInt + 1);
+                            }
+                            if(connection.getRemotePort() != requestingPort) {
+                                break;
+                            }
 
-                    int timeToLiveInt = timeToLive[0];
-                    int hopsInt = hops[0];
-                    int payloadLengthInt = ByteBuffer.wrap(payloadLength).getInt();
-                    int requestingPort;
+                            // the ChakNode answering our ping is remembered with the time its
+                            // pong took, whether it takes us or not
+                            Long pinged = pingsSent.remove(requestingPort);
+                            hostCache.seen(requestingPort, pong.isUltrapeer(),
+                                    UltrapeerElection.uptimeMinutes(pong.getScore()),
+                                    pinged == null ? -1 : (int) ((System.nanoTime() - pinged) / 1000000));
+
+                            if(!pong.isAccepted()) {
+                                if(!ultrapeer && !pong.isUltrapeer() && pong.isIsolated()) {
+                                    long rank = UltrapeerElection.rank(pong.getScore(), requestingPort);
+                                    strongestRival.accumulateAndGet(rank, Math::max);
+                                }
+                                if(!neighbors.contains(requestingPort)) {
+                                    connections.close(connection);
+                                }
+                            } else if(neighbors.contains(requestingPort) || hasRoomFor(pong.isUltrapeer())) {
+                                if(pong.isUltrapeer()) {
+                                    leaves.remove(requestingPort);
+                                } else if(!neighbors.contains(requestingPort)) {
+                                    leaves.add(requestingPort);
+                                }
+                                neighbors.addIfAbsent(requestingPort);
+                            } else {
+                                connections.close(connection);
+                            }
+                        }
+
+                        break;
+                    case ROUTE_TABLE_UPDATE:
+                        // a leaf sends every query to its ultrapeers, it has no use for their tables
+                        if(ultrapeer) {
+                            routing.receive(connection.getRemotePort(), descriptor.getPayload());
+                        }
+                        break;
+                    case QUERY:
+
+                        DescriptorCodec.Query query = DescriptorCodec.readQuery(payload);
+                        String requestID = query.getRequestId();
+                        String searchString = query.getSearch();
+
+                        requestingPort = query.getSenderPort();
+                        int ttl = query.getTtl();
+
+                        if(ttl != 0 && queryCache.add(requestID, requestingPort)) {
+                            // now we know the request and the requesting port if a query hit is found
+                            // we simply send a queryHit to this requesting port
+
+                            List<FileCatalog.Entry> matches = files.search(searchString, MAXIMUM_RESULTS);
+                            List<QueryResultCache.Result> cached = null;
+                            if(!matches.isEmpty()) {
+
+                                // send a queryHit for every matching file
+                                for(FileCatalog.Entry file : matches) {
+                                    if(!queryHit(requestID, file)) {
+                                        System.out.println("File failed to send!");
+                                    }
+                                }
 
-                    switch (payload[0]) {
-                        case PING:
-                            String utfMessage = in.readUTF();
-                            int socketPortNumber = in.readInt();
+                            } else if(ultrapeer && ttl > 1 && (cached = cachedResults(searchString, ttl)) != null) {
 
-                            if (utfMessage.equals("GNUTELLA CONNECT\n\n") && !neighbors.contains(socketPortNumber)
-                                    && neighbors.size() <= maximumConnections && pong(socketPortNumber)) {
+                                // the search came by recently, the hits routed back then answer it
+                                // and it goes no further
+                                for(QueryResultCache.Result result : cached) {
+                                    queryHit(requestID, result.getAddress(), result.getPort(),
+                                            result.getFilename(), result.getSize(), result.getHash());
+                                }
 
-                                neighbors.add(socketPortNumber);
+                            } else if(ultrapeer && ttl > 1) {
 
-                                if(timeToLiveInt-1 > 0) {
-                                    pingNeighbors(generateDescriptor(payload[0], timeToLiveInt-1,
-                                            hopsInt+1, payloadLengthInt), socketPortNumber);
+                                // the query is not sent back where it came from, nor to an ultrapeer
+                                // through which no matching file can be reached. A query on its last
+                                // hop goes no further. The hits coming back are cached for the next
+                                // time the search comes by
+                                if(RESULT_CACHE) {
+                                    resultCache.expect(requestID, searchString, ttl);
                                 }
-
-                            } else if(neighbors.contains(socketPortNumber)) {
-                                // wellness check on neighbors
-                                if(!pong(socketPortNumber)) {
-                                    neighbors.remove(socketPortNumber);
+                                Set<String> keywords = KeywordIndex.keywords(searchString);
+                                for(Integer neighbor : neighbors) {
+                                    if(neighbor == requestingPort || leaves.contains(neighbor)
+                                            || !isWorthQuerying(neighbor, keywords, ttl-1)) {
+                                        continue;
+                                    }
+                                    connections.fanOut(() -> {
+                                        if(!query(neighbor, searchString, requestID, ttl-1)) {
+                                            System.out.println("Query to neighbor failed!");
+                                        }
+                                    });
                                 }
                             }
 
+                            // an ultrapeer answers for its leaves, so they are searched along with it
+                            // whatever hops the query has left, unless the hits cached here answered
+                            // it. Leaves never pass queries on, they are only handed the queries
+                            // their route table can match
+                            if(ultrapeer && cached == null) {
+                                queryLeaves(requestID, searchString, requestingPort);
+                            }
+                        }
+                        break;
+                    case WALKER:
+                        DescriptorCodec.Walker walker = DescriptorCodec.readWalker(payload);
+                        requestID = walker.getRequestId();
+                        searchString = walker.getSearch();
+                        requestingPort = walker.getSenderPort();
+
+                        // the walkers of a walk share its request ID: only the first one to get here
+                        // is answered and sets the route back, the others just pass through. Unlike
+                        // a query, a walker goes on after a match until a check stops it
+                        if(queryCache.add(requestID, requestingPort)) {
+                            for(FileCatalog.Entry file : files.search(searchString, MAXIMUM_RESULTS)) {
+                                if(!queryHit(requestID, file)) {
+                                    System.out.println("File failed to send!");
+                                }
+                            }
+                            if(ultrapeer) {
+                                queryLeaves(requestID, searchString, requestingPort);
+                            }
+                        }
+                        walk(requestID, searchString, requestingPort, walker.getTtl(), walker.getOriginPort());
+                        break;
+                    case WALKER_CHECK:
+                        DescriptorCodec.WalkerCheck check = DescriptorCodec.readWalkerCheck(payload);
+                        requestID = check.getRequestId();
+                        if(check.getStatus() == DescriptorCodec.WALKER_ASK) {
+                            walkerCheck(connection.getRemotePort(), requestID, walkGoesOn(requestID)
+                                    ? DescriptorCodec.WALKER_CONTINUE : DescriptorCodec.WALKER_STOP);
+                        } else {
+                            resumeWalkers(requestID, check.getStatus() == DescriptorCodec.WALKER_CONTINUE);
+                        }
+                        break;
+                    case QUERY_HIT:
+                        // a malformed hit is dropped here rather than passed on
+                        DescriptorCodec.QueryHit hit = DescriptorCodec.readQueryHit(payload);
+                        requestID = hit.getRequestId();
+                        Integer route = queryCache.get(requestID);
+
+                        if(route == null) {
                             break;
-                        case PONG:
-                            utfMessage = in.readUTF();
-                            byte[] portB = new byte[4];
-                            byte[] ipAddrB = new byte[4];
-                            byte[] numberFilesB = new byte[4];
-                            byte[] byteCountB = new byte[4];
-
-                            in.read(portB, 0, 4);
-                            in.read(ipAddrB, 0, 4);
-                            in.read(numberFilesB, 0, 4);
-                            in.read(byteCountB, 0, 4);
-
-                            requestingPort = ByteBuffer.wrap(portB).getInt();
-
-                            if(utfMessage.equals("GNUTELLA OK\n\n") && !neighbors.contains(requestingPort)) {
-                                neighbors.add(requestingPort);
+                        }
+                        if(route != port) {
+                            // the result record is small, it is passed back along the query's route
+                            if(RESULT_CACHE) {
+                                resultCache.add(requestID, hit.getAddress(), hit.getPort(), hit.getFilename(),
+                                        hit.getSize(), hit.getHash());
+                            }
+                            ByteBuffer frame = frame(QUERY_HIT, TTL, 0, descriptor.getPayloadLength());
+                            send(route, frame.put(descriptor.getPayload()));
+
+                            // a file whose hits keep coming through is popular around here, a copy
+                            // of it answers the next queries sooner, unless it is here already
+                            String urn = Urn.of(hit.getHash());
+                            if(ultrapeer && files.getByHash(hit.getHash()) == null && !downloading.containsKey(urn)
+                                    && proxyCache.routed(urn, hit.getSize())) {
+                                fetchCopy(requestID, hit);
                             }
-
                             break;
-                        case QUERY:
+                        }
+
+                        Search search = activeSearches.get(requestID);
+                        if(search != null) {
+                            search.resultReceived(hit.getPort(), hit.getFilename());
+                            if(!search.downloads()) {
+                                break;
+                            }
+                        }
+
+                        if(!download(requestID, (Inet4Address) InetAddress.getByAddress(hit.getAddress()),
+                                hit.getPort(), hit.getFilename(), hit.getSize(), hit.getHash(), false)) {
+                            System.out.println("File download failed to start!");
+                        }
+                        break;
+                    case FILE_REQUEST:
+                        if(connection.isTransfer()) {
+                            DescriptorCodec.FileRequest request = DescriptorCodec.readFileRequest(payload);
+                            serveFile(connection, request.getFilename(), request.getHash(), request.getStart(),
+                                    request.getEnd());
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IOException e) {
+                // a malformed payload only costs this one descriptor
+            }
+        }
+
+        @Override
+        public PayloadStream payloadStarted(Connection connection, Descriptor header) {
+            // file data goes straight to the download waiting on the transfer connection
+            if(header.getPayloadDescriptor() == FILE_DATA && connection.isTransfer()) {
+                return downloads.get(connection);
+            }
+            return null;
+        }
+
+        @Override
+        public void connectionClosed(Connection connection) {
+            if(connection.isTransfer()) {
+                // a transfer connection closed before its chunk arrived, the chunk goes to another
+                // source or the download is resumed the next time the file is found
+                Download.Source source = downloads.get(connection);
+                if(source != null) {
+                    source.abort();
+                }
+                return;
+            }
 
-                            String requestID = in.readUTF();
-                            String searchString = in.readUTF();
+            // a neighbor lives and dies with its connection, whether the other ChakNode was
+            // killed or refused to be a neighbor it is dropped on both ends
+            dropNeighbor(connection.getRemotePort());
+            routing.forget(connection.getRemotePort());
+        }
+    }
 
-                            byte[] requestPort = new byte[4];
-                            byte[] requestTTL = new byte[4];
+    /**
+     * Downloads a file found by QUERY_HITs from every ChakNode which answered with it, up to
+     * MAXIMUM_SOURCES of them. The file is split in chunks of CHUNK_SIZE bytes and each source
+     * fetches one chunk at a time over a transfer connection of its own, asking for the next one
+     * as soon as its chunk has arrived. A fast source thus fetches more chunks than a slow one and
+     * the file arrives at about the speed of all the sources together. Sources found while the
+     * download runs join it rather than fetching the file again.
+     *
+     * Each FILE_DATA answer is written to a partial file in the content store as it arrives, so
+     * the file is never held on the heap. A chunk only counts once the source sent exactly the
+     * range asked for, of a file of the expected size and hash; a source which does not is
+     * dropped and its chunk goes to another source. The chunks written so far are fed to a SHA-1
+     * digest in order, and the file only joins this ChakNode's files once the hash matches the
+     * query hits. A download which loses every source keeps the chunks it digested, and the
+     * next download of the same file only asks for the rest.
+     */
+    private class Download {
+        private final String requestID;
+
+        /**
+         * name the sources share the file under, and name it is saved under here.
+         */
+        private final String filename;
+        private final String localName;
+        private final long size;
+        private final byte[] hash;
+        private final String partial;
+        private final ContentStore.Content file;
+
+        /**
+         * number of chunks, a file smaller than a chunk (even an empty one) is one chunk.
+         */
+        private final int chunkCount;
+
+        /**
+         * chunks written to the partial file, and chunks some source is fetching. Guarded by
+         * this, like everything below.
+         */
+        private final BitSet received = new BitSet();
+        private final BitSet requested = new BitSet();
+
+        /**
+         * digest of the bytes of the partial file before digested, every chunk of which has been
+         * received.
+         */
+        private final MessageDigest digest;
+        private long digested;
+
+        private final List<Source> sources = new ArrayList<>();
+        private boolean done;
+
+        /**
+         * true while the file is fetched as a copy for the proxy cache, which the fetch started by
+         * routed() ends with.
+         */
+        private boolean copy;
+
+        private Download(String requestID, String filename, String localName, long size, byte[] hash,
+                         boolean copy) throws IOException {
+            this.requestID = requestID;
+            this.copy = copy;
+            this.filename = filename;
+            this.localName = localName;
+            this.size = size;
+            this.hash = hash;
+            chunkCount = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+            // the partial file is named after the content, whichever name it was found under
+            partial = Urn.of(hash).substring(Urn.PREFIX.length())+".part";
+            file = contentStore().openPartial(partial, size);
+            try {
+                // whole chunks left by an earlier download are kept, the last one is always
+                // fetched so the download has something to finish on
+                long kept = Math.max(0, Math.min(file.size(), size - 1)) / CHUNK_SIZE * CHUNK_SIZE;
+                file.truncate(kept);
+                digest = sha1(file, kept);
+                digested = kept;
+                received.set(0, (int) (kept / CHUNK_SIZE));
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
 
-                            in.read(requestPort, 0, 4);
-                            in.read(requestTTL, 0, 4);
+        /**
+         * Called when the file is downloaded again while this download runs. A fetch for the
+         * proxy cache which finds the file downloaded for another reason gives up on keeping a
+         * copy, and a download which was only fetching a copy now fetches the file for good.
+         * @param copy true if the file is downloaded again for the proxy cache
+         */
+        private synchronized void joined(boolean copy) {
+            if(copy != this.copy) {
+                this.copy = false;
+                proxyCache.abandoned(Urn.of(hash));
+            }
+        }
 
-                            requestingPort = ByteBuffer.wrap(requestPort).getInt();
-                            int ttl = ByteBuffer.wrap(requestTTL).getInt();
+        /**
+         * Opens a transfer connection to another ChakNode sharing the file and has it fetch the
+         * next chunk nobody is fetching.
+         * @param host address of the ChakNode sharing the file
+         * @param hostPort port of the ChakNode sharing the file
+         * @return true if the ChakNode is fetching from, or there are enough sources already
+         */
+        private boolean addSource(Inet4Address host, int hostPort) {
+            synchronized (this) {
+                if(done) {
+                    return true;
+                }
+                for(Source source : sources) {
+                    if(source.port == hostPort && source.host.equals(host)) {
+                        return true;
+                    }
+                }
+                if(sources.size() >= MAXIMUM_SOURCES) {
+                    return true;
+                }
+            }
 
-                            if(!queryCache.containsKey(requestID) && ttl != 0) {
-                                // now we know the request and the requesting port if a query hit is found
-                                // we simply send a queryHit to this requesting port
-                                queryCache.put(requestID, requestingPort);
+            Connection connection = connections.openTransfer(host, hostPort);
+            if(connection == null) {
+                synchronized (this) {
+                    if(sources.isEmpty()) {
+                        release();
+                    }
+                }
+                return false;
+            }
 
-                                if(localFileSearch(searchString)) {
-                                    Path filePath = getFilePath(searchString);
-                                    byte[] fileData = Files.readAllBytes(filePath);
+            Source source = new Source(host, hostPort, connection);
+            synchronized (this) {
+                if(done) {
+                    connections.close(connection);
+                    return true;
+                }
+                sources.add(source);
+                downloads.put(connection, source);
+                return source.next();
+            }
+        }
 
-                                    // send a queryHit
-                                    if(!queryHit(requestID, fileData, searchString)) {
-                                        System.out.println("File failed to send!");
-                                    }
+        /**
+         * Called with this held once a source has written the whole of its chunk. The digest
+         * takes in every chunk received in order from where it stopped, reading them back from
+         * the partial file.
+         */
+        private void chunkReceived(int chunk) throws IOException {
+            received.set(chunk);
+
+            ByteBuffer buffer = null;
+            while(digested < size && received.get((int) (digested / CHUNK_SIZE))) {
+                long end = Math.min(size, digested + CHUNK_SIZE);
+                if(buffer == null) {
+                    buffer = ByteBuffer.allocate(64 * 1024);
+                }
+                while(digested < end) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - digested));
+                    int read = file.read(buffer, digested);
+                    if(read <= 0) {
+                        throw new IOException("Partial file shorter than the chunks written to it");
+                    }
+                    digest.update(buffer.flip());
+                    digested += read;
+                }
+            }
 
+            if(received.cardinality() == chunkCount) {
+                finish();
+            }
+        }
 
-                                } else {
+        /**
+         * Called with this held when a source is done, it either failed or has no chunk left to
+         * fetch. A chunk it did not finish goes to an idle source, and once no source is left
+         * the download stops.
+         */
+        private void sourceLost(Source source) {
+            sources.remove(source);
+            if(source.chunk >= 0 && !received.get(source.chunk)) {
+                requested.clear(source.chunk);
+                for(Source idle : new ArrayList<>(sources)) {
+                    if(idle.chunk < 0) {
+                        idle.next();
+                        break;
+                    }
+                }
+            }
+            if(sources.isEmpty() && !done) {
+                release();
+            }
+        }
 
-                                    for(Integer neighbor : neighbors) {
-                                        if(!query(neighbor, searchString, requestID, ttl-1)) {
-                                            System.out.println("Query to neighbor failed!");
-                                        }
-                                    }
-                                }
+        /**
+         * Moves the complete file into place if its hash matches, otherwise it is thrown away.
+         * Called with this held.
+         */
+        private void finish() {
+            int sourceCount = sources.size();
+            boolean copy = this.copy;
+            this.copy = false;
+            release();
+
+            try {
+                if(files.contains(localName) || files.getByHash(hash) != null) {
+                    // the name or the content was shared by another download in the meantime
+                    content.delete(partial);
+                } else if(Arrays.equals(digest.digest(), hash)) {
+                    content.move(partial, localName);
+                    shareFile(localName, size, hash);
+                    if(copy) {
+                        copy = false;
+                        List<String> evicted = proxyCache.stored(Urn.of(hash), localName, size);
+                        if(evicted != null) {
+                            for(String name : evicted) {
+                                unshareFile(name);
                             }
-                            break;
-                        case QUERY_HIT:
-                            requestID = in.readUTF();
-                            String filename = in.readUTF();
+                        }
+                    }
+                    System.out.println("File with requestId "+requestID+" downloaded from "+sourceCount
+                            +(sourceCount == 1 ? " source." : " sources."));
+                } else {
+                    content.delete(partial);
+                    System.out.println("File with requestId "+requestID+" was corrupted, it has been discarded.");
+                }
+            } catch (IOException e) {
+                System.out.println("File with requestId "+requestID+" could not be saved.");
+            }
+            if(copy) {
+                proxyCache.abandoned(Urn.of(hash));
+            }
+        }
+
+        /**
+         * Closes the connections of every source and the partial file, keeping the chunks
+         * digested so far, and lets the file be downloaded again. A copy for the proxy cache which
+         * did not arrive may be fetched again as well. Called with this held.
+         */
+        private void release() {
+            done = true;
+            if(copy) {
+                copy = false;
+                proxyCache.abandoned(Urn.of(hash));
+            }
+            for(Source source : sources) {
+                if(downloads.remove(source.connection, source)) {
+                    connections.close(source.connection);
+                }
+            }
+            sources.clear();
+            try {
+                file.truncate(digested);
+                file.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+            downloading.remove(Urn.of(hash), this);
+        }
 
-                            byte[] fileData = new byte[payloadLengthInt];
-                            in.readFully(fileData);
+        /**
+         * One ChakNode a download fetches from, over a transfer connection of its own. It fetches
+         * a single chunk at a time and its FILE_DATA answers are streamed into the partial file.
+         *
+         * The thread reading the connection only checks and copies each piece of a FILE_DATA,
+         * writing it, digesting a complete chunk and finishing the file are left to
+         * DOWNLOAD_WRITERS. The tasks of a source run one at a time in the order they were handed
+         * over, and the connection stops reading while MAXIMUM_UNWRITTEN bytes wait for them.
+         */
+        private class Source implements PayloadStream {
+            private final Inet4Address host;
+            private final int port;
+            private final Connection connection;
+
+            /**
+             * chunk being fetched, or -1 while there is none left to fetch.
+             */
+            private int chunk = -1;
+
+            /**
+             * offset of the next byte of the chunk to write, and offset after its last byte.
+             */
+            private long offset;
+            private long end;
+
+            /**
+             * offset after the last byte of the chunk which has arrived, only touched by the thread
+             * reading the connection.
+             */
+            private long arrived;
+
+            /**
+             * tasks waiting for DOWNLOAD_WRITERS, whether one of them is running, the bytes of the
+             * pieces waiting to be written, and the resume of the connection if it stopped reading
+             * until they are. Guarded by tasks.
+             */
+            private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+            private boolean running;
+            private int unwritten;
+            private Runnable resume;
+
+            /**
+             * true once the source has been taken out of the download, its tasks left are skipped.
+             * Guarded by the download.
+             */
+            private boolean dropped;
+
+            /**
+             * start of a FILE_DATA payload: the start of the range and the size of the file.
+             */
+            private final ByteBuffer range = ByteBuffer.allocate(16);
+
+            /**
+             * true if the ChakNode did not send the range asked for.
+             */
+            private boolean refused;
+
+            private Source(Inet4Address host, int port, Connection connection) {
+                this.host = host;
+                this.port = port;
+                this.connection = connection;
+            }
 
-                            if(queryCache.get(requestID) == port) {
-                                fileByteCount+=payloadLengthInt;
-                                files.add(Files.write( Paths.get(fileDirectory+"/"+filename), fileData));
-                                System.out.println("File with requestId "+requestID+" downloaded.");
-                            } else {
-                                queryHit(requestID, fileData, filename);
+            /**
+             * Asks for the first chunk nobody has received or is fetching, or goes idle if there
+             * is none. Called with the download held.
+             * @return false if the request could not be sent, the source is then dropped
+             */
+            private boolean next() {
+                int next = requested.nextClearBit(0);
+                while(next < chunkCount && received.get(next)) {
+                    next = requested.nextClearBit(next + 1);
+                }
+                if(next >= chunkCount) {
+                    chunk = -1;
+                    return true;
+                }
+
+                chunk = next;
+                requested.set(chunk);
+                offset = (long) chunk * CHUNK_SIZE;
+                arrived = offset;
+                end = Math.min(size, offset + CHUNK_SIZE);
+                range.clear();
+                refused = false;
+
+                try {
+                    ByteBuffer frame = frame(FILE_REQUEST, TTL, 0, DescriptorCodec.fileRequestLength(filename));
+                    DescriptorCodec.writeFileRequest(frame, filename, hash, offset, end);
+                    frame.flip();
+                    connection.send(frame);
+                    return true;
+                } catch (IOException e) {
+                    drop();
+                    return false;
+                }
+            }
+
+            @Override
+            public boolean write(ByteBuffer bytes, Runnable resume) throws IOException {
+                if(range.hasRemaining()) {
+                    while(range.hasRemaining() && bytes.hasRemaining()) {
+                        range.put(bytes.get());
+                    }
+                    if(range.hasRemaining()) {
+                        return true;
+                    }
+                    refused = range.getLong(0) != offset || range.getLong(8) != size;
+                }
+
+                if(refused || bytes.remaining() > end - arrived) {
+                    refused = true;
+                    bytes.position(bytes.limit());
+                    return true;
+                }
+                if(!bytes.hasRemaining()) {
+                    return true;
+                }
+
+                // the piece is only valid for this call
+                ByteBuffer piece = ByteBuffer.allocate(bytes.remaining()).put(bytes).flip();
+                long position = arrived;
+                arrived += piece.remaining();
+                synchronized (tasks) {
+                    unwritten += piece.remaining();
+                    if(unwritten > MAXIMUM_UNWRITTEN) {
+                        this.resume = resume;
+                    }
+                }
+                submit(() -> writePiece(piece, position));
+                synchronized (tasks) {
+                    return this.resume != resume;
+                }
+            }
+
+            /**
+             * Writes a piece to the partial file, on DOWNLOAD_WRITERS. A piece which cannot be
+             * written drops the source.
+             */
+            private void writePiece(ByteBuffer piece, long position) {
+                int length = piece.remaining();
+                synchronized (Download.this) {
+                    if(!done && !dropped) {
+                        try {
+                            while(piece.hasRemaining()) {
+                                position += file.write(piece, position);
                             }
+                            offset = position;
+                        } catch (IOException e) {
+                            drop();
+                        }
+                    }
+                }
 
-                            break;
-                        default:
-                            break;
+                Runnable resumed = null;
+                synchronized (tasks) {
+                    unwritten -= length;
+                    if(unwritten <= MAXIMUM_UNWRITTEN && resume != null) {
+                        resumed = resume;
+                        resume = null;
+                    }
+                }
+                if(resumed != null) {
+                    resumed.run();
+                }
+            }
+
+            @Override
+            public void complete() {
+                submit(this::completeChunk);
+            }
+
+            /**
+             * Checks the chunk once every piece of it has been written, and asks for the next one.
+             * On DOWNLOAD_WRITERS, since the chunk is read back to be digested and may finish the
+             * file.
+             */
+            private void completeChunk() {
+                synchronized (Download.this) {
+                    if(done || dropped || chunk < 0) {
+                        return;
+                    }
+                    if(refused || range.hasRemaining() || offset != end) {
+                        System.out.println("File with requestId "+requestID+" is no longer available from "+port+".");
+                        drop();
+                        return;
+                    }
+                    try {
+                        chunkReceived(chunk);
+                    } catch (IOException e) {
+                        release();
+                        return;
+                    }
+                    if(!done) {
+                        next();
+                    }
+                }
+            }
+
+            /**
+             * The connection was closed or the chunk cut short, the chunk goes to another source
+             * once the pieces handed over before have been written.
+             */
+            @Override
+            public void abort() {
+                submit(() -> {
+                    synchronized (Download.this) {
+                        if(!done && !dropped) {
+                            drop();
+                        }
                     }
+                });
+            }
 
-                    in.close();
+            /**
+             * Closes the connection and takes the source out of the download. Called with the
+             * download held.
+             */
+            private void drop() {
+                dropped = true;
+                if(downloads.remove(connection, this)) {
+                    connections.close(connection);
+                }
+                sourceLost(this);
+            }
 
-                } catch (IOException e) {
-                    //Fails are expected to be common due to the nature of the port searching.
+            /**
+             * Runs a task on DOWNLOAD_WRITERS after the tasks handed over before it.
+             */
+            private void submit(Runnable task) {
+                synchronized (tasks) {
+                    tasks.add(task);
+                    if(running) {
+                        return;
+                    }
+                    running = true;
+                }
+                DOWNLOAD_WRITERS.execute(this::runTasks);
+            }
+
+            private void runTasks() {
+                while(true) {
+                    Runnable task;
+                    synchronized (tasks) {
+                        task = tasks.poll();
+                        if(task == null) {
+                            running = false;
+                            return;
+                        }
+                    }
+                    task.run();
                 }
             }
         }
@@ -658,31 +2609,35 @@ public class ChakNode {
     public void kill() {
         try {
 
-            for (Path p : files) {
-                Files.deleteIfExists(p);
+            // the files still being written in the background would be left behind. Partial
+            // downloads are only kept for as long as this ChakNode lives
+            if(contentStore() != null) {
+                content.clear();
             }
 
-            Files.deleteIfExists(fileDirectory);
+            // unlike the files, the host cache outlives this ChakNode
+            saveHostCache();
 
         } catch(IOException e) {
             e.printStackTrace();
         }
 
-        executorService.shutdown();
+        connections.closeAll();
+        executorService.shutdownNow();
+        searches.shutdownNow();
     }
 
     /**
-     * Add a temporary file to this ChakNode's temporary directory
+     * Add a temporary file to this ChakNode's content store
      * @param filename name of the file you wish to generate
      * @return boolean to represent if the file was added without error.
      */
     public boolean addFile(String filename) {
         try {
 
-            Path newFilePath = Files.createFile(Paths.get(fileDirectory+"/"+filename));
-            files.add(newFilePath);
-            Files.write(files.get(files.size()-1), Collections.singleton(Quote.getQuote()));
-            fileByteCount += Files.size(files.get(files.size()-1));
+            byte[] quote = (Quote.getQuote()+System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+            contentStore().create(filename, quote);
+            shareFile(filename, quote.length, sha1(quote));
 
             return true;
         } catch (IOException e) {
@@ -697,10 +2652,16 @@ public class ChakNode {
      */
     public boolean readFile(String filename) {
         try {
-            Path filePath = getFilePath(filename);
-            if(filePath!= null) {
+            ContentStore.Content fileData = files.contains(filename) ? contentStore().open(filename) : null;
+            if(fileData != null) {
+                byte[] bytes;
+                try {
+                    bytes = fileData.readAll();
+                } finally {
+                    fileData.close();
+                }
                 System.out.println();
-                for(String line : Files.readAllLines(filePath)) {
+                for(String line : new String(bytes, StandardCharsets.UTF_8).split("\\R")) {
                     System.out.println(line);
                 }
                 System.out.println();
@@ -714,28 +2675,314 @@ public class ChakNode {
     }
 
     /**
-     * Begins both threads which allow the node to connect to, and discover other nodes.
+     * Begins the threads which allow the node to connect to, and discover other nodes.
      */
     public void joinNetwork() {
-        executorService.execute(new ConnectionListener());
+        executorService.execute(listener);
         executorService.execute(new DiscoveryThread());
+        if(QUERY_ROUTING) {
+            executorService.execute(new RouteTableThread());
+        }
+    }
+
+    /**
+     * How a search sends its query through the network: flooded with the full TTL at once,
+     * widened step by step (see DynamicQuery) or carried by random walkers (see RandomWalk).
+     */
+    public enum SearchMode {
+        FLOOD, DYNAMIC, RANDOM_WALK
+    }
+
+    /**
+     * A search started by this ChakNode. It counts the distinct results coming back for the
+     * request IDs it registered until SEARCH_LIFETIME after it began, each mode decides how its
+     * queries are sent. The files found by a search which does not download are only counted.
+     */
+    private abstract class Search {
+        final String searchCriteria;
+        final Set<String> keywords;
+        private final boolean download;
+        private final List<String> requestIDs = new CopyOnWriteArrayList<>();
+
+        /**
+         * host port and file name of each result, guarded by itself.
+         */
+        private final Set<String> results = new HashSet<>();
+        private final CountDownLatch firstResult = new CountDownLatch(1);
+
+        private Search(String searchCriteria, boolean download) {
+            this.searchCriteria = searchCriteria;
+            this.download = download;
+            keywords = KeywordIndex.keywords(searchCriteria);
+        }
+
+        /**
+         * Sends the first queries.
+         */
+        abstract void start();
+
+        /**
+         * Starts the search and stops counting its results SEARCH_LIFETIME later.
+         */
+        void begin() {
+            start();
+            try {
+                searches.schedule(this::finish, SEARCH_LIFETIME, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // the ChakNode has been killed
+                finish();
+            }
+        }
+
+        /**
+         * Counts a query hit, unless the same file on the same ChakNode was already counted.
+         */
+        void resultReceived(int hostPort, String filename) {
+            synchronized (results) {
+                results.add(hostPort+"/"+filename);
+            }
+            firstResult.countDown();
+        }
+
+        int resultCount() {
+            synchronized (results) {
+                return results.size();
+            }
+        }
+
+        /**
+         * @return true once TARGET_RESULTS distinct results came back
+         */
+        boolean isSatisfied() {
+            return resultCount() >= TARGET_RESULTS;
+        }
+
+        /**
+         * @return true if the files found are downloaded
+         */
+        boolean downloads() {
+            return download;
+        }
+
+        /**
+         * @return true if a result came back within the timeout
+         */
+        boolean awaitFirstResult(long timeout) throws InterruptedException {
+            return firstResult.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return a new request ID whose query hits are counted by this search
+         */
+        String register() {
+            String id = newRequestID();
+            requestIDs.add(id);
+            activeSearches.put(id, this);
+            return id;
+        }
+
+        /**
+         * @return true if the query was sent to the neighbor
+         */
+        boolean send(int neighbor, String id, int ttl) {
+            if(!neighbors.contains(neighbor) || !isWorthQuerying(neighbor, keywords, ttl)) {
+                return false;
+            }
+            connections.fanOut(() -> query(neighbor, searchCriteria, id, ttl));
+            return true;
+        }
+
+        /**
+         * Stops counting results, query hits still arriving are downloaded all the same.
+         */
+        private void finish() {
+            for(String id : requestIDs) {
+                activeSearches.remove(id);
+            }
+        }
+    }
+
+    /**
+     * A search which sends its query with the full TTL to every neighbor at once.
+     */
+    private class Flood extends Search {
+        private Flood(String searchCriteria, boolean download) {
+            super(searchCriteria, download);
+        }
+
+        @Override
+        void start() {
+            String requestID = register();
+            for(Integer neighbor : neighbors) {
+                send(neighbor, requestID, TTL);
+            }
+        }
     }
 
     /**
-     * Pings neighbors with descriptors to forward and the initial port which sent first ping
-     * @param descriptors forwarded descriptor header in bytes
-     * @param initialPort port which sent first initial ping
+     * A search which widens step by step rather than flooding the network at once. It starts
+     * with a probe one hop deep to every neighbor, then sends the query to one ultrapeer
+     * neighbor at a time and waits for the results before sending it to the next. The TTL of
+     * each query is the smallest one expected to bring the results up to TARGET_RESULTS, judging
+     * by the number of results per ChakNode reached so far, or the full TTL while nothing has
+     * been found. The search stops as soon as TARGET_RESULTS distinct results came back, so a
+     * popular file only costs the probe and a query or two, while a rare file ends up being
+     * looked for with the full TTL through every neighbor, much like a flood.
+     *
+     * The probe has a request ID of its own, since the neighbors it reached would drop a second
+     * query with the same ID. Results found again are only counted once.
      */
-    private void pingNeighbors(byte[] descriptors, int initialPort) {
-        //periodically ping neighbors
-        for (Integer neighbor : neighbors) {
-            if(neighbor != initialPort) {
-                if(!ping(neighbor, descriptors, initialPort)) {
-                    // removes dead neighbors
-                    neighbors.remove(neighbor);
+    private class DynamicQuery extends Search implements Runnable {
+
+        /**
+         * request ID of the queries sent one neighbor at a time, and the neighbors still to go.
+         */
+        private String requestID;
+        private List<Integer> remaining;
+
+        /**
+         * estimated number of ChakNodes the queries sent so far reached.
+         */
+        private long hostsQueried;
+
+        private DynamicQuery(String searchCriteria, boolean download) {
+            super(searchCriteria, download);
+        }
+
+        /**
+         * Sends the probe to every neighbor, leaves included, and waits for its results.
+         */
+        @Override
+        void start() {
+            String probeID = register();
+            for(Integer neighbor : neighbors) {
+                if(send(neighbor, probeID, 1)) {
+                    ++hostsQueried;
+                }
+            }
+
+            requestID = register();
+            // leaves do not pass queries on, the probe already reached them
+            remaining = ultrapeerNeighbors();
+            Collections.shuffle(remaining);
+            schedule(1);
+        }
+
+        /**
+         * Sends the query to the next ultrapeer neighbor, unless enough results came back.
+         */
+        @Override
+        public void run() {
+            if(isSatisfied() || !connections.isOpen()) {
+                return;
+            }
+
+            while (!remaining.isEmpty()) {
+                int ttl = nextTimeToLive();
+                if(send(remaining.remove(remaining.size() - 1), requestID, ttl)) {
+                    hostsQueried += horizon(ttl);
+                    schedule(ttl);
+                    return;
                 }
             }
         }
+
+        /**
+         * @return the TTL expected to reach as many ChakNodes as the missing results need, at
+         * least 2 since the probe already asked the neighbor itself
+         */
+        private int nextTimeToLive() {
+            int found = resultCount();
+            if(found == 0) {
+                return TTL;
+            }
+            double hostsNeeded = (TARGET_RESULTS - found) * (double) hostsQueried / found;
+            int ttl = 2;
+            while (ttl < TTL && horizon(ttl) < hostsNeeded) {
+                ++ttl;
+            }
+            return ttl;
+        }
+
+        /**
+         * @return the number of ChakNodes a query with the ttl reaches through one ultrapeer
+         * neighbor, if every ultrapeer it passes has maximumConnections ultrapeer neighbors
+         */
+        private long horizon(int ttl) {
+            long hosts = 0;
+            long level = 1;
+            for(int hop = 0; hop < ttl; ++hop) {
+                hosts += level;
+                level *= maximumConnections - 1;
+            }
+            return hosts;
+        }
+
+        /**
+         * Runs the next step once the results of a query with the ttl had time to come back.
+         */
+        private void schedule(int ttl) {
+            try {
+                searches.schedule(this, ttl * DYNAMIC_QUERY_HOP_WAIT, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // the ChakNode has been killed
+            }
+        }
+    }
+
+    /**
+     * A search which sends WALKERS walkers rather than a flood. A walker is passed from ultrapeer
+     * to ultrapeer, to one neighbor per hop chosen at random among those whose route table could
+     * match it, and every ultrapeer it reaches answers it and hands it to those of its leaves
+     * whose route table matches it. Every WALKER_CHECK_HOPS hops a walker waits for this ChakNode
+     * to say whether the walk goes on, so once TARGET_RESULTS distinct results came back (or the
+     * search is over) every walker stops within a few hops. A walk costs about one message per
+     * hop whatever the size of the network, it finds a popular file nearly as fast as a flood but
+     * takes longer over a rare one.
+     *
+     * All walkers carry the same request ID, every ChakNode on the way remembers where the first
+     * one came from and query hits travel back along that route like those of any other query.
+     */
+    private class RandomWalk extends Search {
+        private RandomWalk(String searchCriteria, boolean download) {
+            super(searchCriteria, download);
+        }
+
+        @Override
+        void start() {
+            String requestID = register();
+            if(ultrapeer) {
+                queryLeaves(requestID, searchCriteria, port);
+            }
+
+            // a leaf starts its walkers at its ultrapeers
+            List<Integer> ultrapeers = walkerCandidates(keywords, WALKER_TTL);
+            if(ultrapeers.isEmpty()) {
+                return;
+            }
+            Collections.shuffle(ultrapeers);
+            for(int i = 0; i < WALKERS; ++i) {
+                int first = ultrapeers.get(i % ultrapeers.size());
+                connections.fanOut(() -> walker(first, searchCriteria, requestID, WALKER_TTL, port));
+            }
+        }
+    }
+
+    /**
+     * A walker waiting on this ChakNode for the answer to its check.
+     */
+    private static class ParkedWalker {
+        private final String searchString;
+        private final int from;
+        private final int ttl;
+        private final int originPort;
+
+        private ParkedWalker(String searchString, int from, int ttl, int originPort) {
+            this.searchString = searchString;
+            this.from = from;
+            this.ttl = ttl;
+            this.originPort = originPort;
+        }
     }
 
     public static void main(String args[]) throws Exception{
@@ -755,16 +3002,19 @@ public class ChakNode {
         }
 
 
-        System.out.println("ChakNode port: "+c.getPort());
+        System.out.println("ChakNode port: "+c.getPort()+" (started in "+c.getStartupTimings()+")");
 
         System.out.println("\nEnter a command\n" +
                 "\n\thelp: to view all options"+
                 "\n\t0: to join network" +
                 "\n\t1: to print neighbors" +
                 "\n\t2 'someFileName': to create a new file with name: 'someFileName'" +
-                "\n\t3 'someFileName': to search for a file with name: 'someFileName'" +
-                "\n\t4: to list all files on this node"+
+                "\n\t3 'someFileName': to search for files whose names contain every keyword of 'someFileName' (e.g. file_txt),\n\t   or for the file with a URN, whatever its name (e.g. urn:sha1:...)" +
+                "\n\t4: to list all files on this node and their URNs"+
                 "\n\t5 'someFileName': to read a file with name: 'someFileName'" +
+                "\n\t6: to print query cache statistics" +
+                "\n\t7: to print message statistics" +
+                "\n\t8 'someFileName' 'mode': to search like 3 but with mode flood, dynamic or random_walk" +
                 "\n\texit to terminate the program and remove the node from the network\n");
 
         while(!(input = scanner.next()).equals("exit")) {
@@ -791,7 +3041,7 @@ public class ChakNode {
                         c.beginFileSearch(fileName);
                     } else{
                         System.out.println("Incorrect command. You must enter: " +
-                                "\n\t3 'someFileName' to search for a file with name: 'someFileName'");
+                                "\n\t3 'someFileName' to search for files whose names contain every keyword of 'someFileName'");
                     }
                     break;
                 case "4":
@@ -802,15 +3052,32 @@ public class ChakNode {
                         System.out.println("File doesn't exist!");
                     }
                     break;
+                case "6":
+                    c.printQueryCacheStatistics();
+                    break;
+                case "7":
+                    c.printMessageStatistics();
+                    break;
+                case "8":
+                    fileName = scanner.next();
+                    try {
+                        c.beginFileSearch(fileName, SearchMode.valueOf(scanner.next().toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Unknown mode. You must enter one of: flood, dynamic, random_walk");
+                    }
+                    break;
                 default:
                     System.out.println("\nEnter a command\n" +
                             "\n\thelp: to view all options"+
                             "\n\t0: to join network" +
                             "\n\t1: to print neighbors" +
                             "\n\t2 'someFileName': to create a new file with name: 'someFileName'" +
-                            "\n\t3 'someFileName': to search for a file with name: 'someFileName'" +
-                            "\n\t4: to list all files on this node"+
+                            "\n\t3 'someFileName': to search for files whose names contain every keyword of 'someFileName' (e.g. file_txt),\n\t   or for the file with a URN, whatever its name (e.g. urn:sha1:...)" +
+                            "\n\t4: to list all files on this node and their URNs"+
                             "\n\t5 'someFileName': to read a file with name: 'someFileName'" +
+                            "\n\t6: to print query cache statistics" +
+                            "\n\t7: to print message statistics" +
+                            "\n\t8 'someFileName' 'mode': to search like 3 but with mode flood, dynamic or random_walk" +
                             "\n\texit to terminate the program and remove the node from the network\n");
                     break;
             }
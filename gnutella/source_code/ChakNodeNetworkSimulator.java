@@ -1,4 +1,7 @@
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
 import java.util.Scanner;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -7,6 +10,11 @@ public class ChakNodeNetworkSimulator {
 
     static AtomicReference<Boolean> exit = new AtomicReference<>(false);
 
+    /**
+     * Number of files the skewed workload searches for
+     */
+    private static final int WORKLOAD_FILES = 20;
+
     public static void main(String args[]) throws Exception {
 
         int count = 100;
@@ -16,12 +24,18 @@ public class ChakNodeNetworkSimulator {
 
         HashMap<Integer, ChakNode> nodes = new HashMap<>(count);
 
+        long started = System.nanoTime();
         while (nodes.size() < count) {
             ChakNode c = new ChakNode();
             nodes.put(c.getPort(), c);
         }
 
-        System.out.println(count+" nodes added!");
+        StartupTimings timings = new StartupTimings();
+        for(ChakNode node : nodes.values()) {
+            timings.add(node.getStartupTimings());
+        }
+        System.out.println(count+" nodes added in "+(System.nanoTime() - started) / 1000000+" ms! ("+timings
+                +" over all nodes)");
 
 
         for(ChakNode node : nodes.values()) {
@@ -37,11 +51,17 @@ public class ChakNodeNetworkSimulator {
                     "\n\t0 'portNumber1' 'portNumber2': to ping a port number 'portNumber2' from 'portNumber1'" +
                     "\n\t1: to print neighbors of each node" +
                     "\n\t2 'someFileName' 'portNumber': to create a new file with name 'someFileName' on a node with 'portNumber" +
-                    "\n\t3 'someFileName' 'portNumber': to start a search for a file 'someFileName' on a node with 'portNumber'" +
+                    "\n\t3 'someFileName' 'portNumber': to start a search for files whose names contain every keyword of 'someFileName' on a node with 'portNumber'" +
                     "\n\t4 'portNumber': to list all files on a node with a port number 'portNumber'"+
                     "\n\t5 'someFileName' 'portNumber': to read a file with a name 'someFileName' on a node with 'portNumber'" +
                     "\n\t6 'portNumber': to add a node with a port 'portNumber'" +
                     "\n\t7 'portNumber': to print the neighbors of a single node"+
+                    "\n\t8 'portNumber': to print the query cache statistics of a single node"+
+                    "\n\t9: to print the number of queries sent by the whole network"+
+                    "\n\t10: to print the descriptors received by ultrapeers and by leaves"+
+                    "\n\t11 'someFileName' 'portNumber': to compare the messages and the time to the first result of a flood, a dynamic query and a random walk from a node with 'portNumber'"+
+                    "\n\t12 'searches' 'mode': to run that many searches from random nodes for files whose popularity follows a Zipf distribution, with mode flood, dynamic or random_walk"+
+                    "\n\t13: to print the bytes sent by the whole network before and after compression, and the time spent compressing"+
                     "\n\tkill 'portNumber': to kill and remove a node from the network with the port number 'portNumber'"+
                     "\n\texit: to terminate the program\n");
 
@@ -124,6 +144,72 @@ public class ChakNodeNetworkSimulator {
                             System.out.println("Invalid port.");
                         }
                         break;
+                    case "8":
+                        try {
+                            nodes.get(scan.nextInt()).printQueryCacheStatistics();
+                        } catch (Exception e) {
+                            System.out.println("Invalid port.");
+                        }
+                        break;
+                    case "9":
+                        long queries = 0;
+                        for(ChakNode node : nodes.values()) {
+                            queries += node.getQueriesSent();
+                        }
+                        System.out.println(queries+" queries sent by "+nodes.size()+" nodes.");
+                        break;
+                    case "10":
+                        int ultrapeers = 0;
+                        long ultrapeerLoad = 0, leafLoad = 0;
+                        for(ChakNode node : nodes.values()) {
+                            if(node.isUltrapeer()) {
+                                ++ultrapeers;
+                                ultrapeerLoad += node.getDescriptorsReceived();
+                            } else {
+                                leafLoad += node.getDescriptorsReceived();
+                            }
+                        }
+                        int leaves = nodes.size() - ultrapeers;
+                        System.out.println(ultrapeers+" ultrapeers received "+(ultrapeers == 0 ? 0 : ultrapeerLoad/ultrapeers)
+                                +" descriptors each, "+leaves+" leaves received "+(leaves == 0 ? 0 : leafLoad/leaves)+" each.");
+                        break;
+                    case "11":
+                        try {
+                            String fileName = scan.next();
+                            ChakNode node = nodes.get(scan.nextInt());
+                            for(ChakNode.SearchMode mode : ChakNode.SearchMode.values()) {
+                                long before = messagesSent(nodes);
+                                long latency = node.measureSearch(fileName, mode, 10000);
+
+                                // the search is over once the network has been quiet for a second
+                                long sent = quietMessagesSent(nodes);
+
+                                System.out.println(mode+": "+(latency < 0 ? "no result" : "first result after "+latency+" ms")
+                                        +", "+(sent - before)+" messages.");
+                            }
+                        } catch (Exception e) {
+                            System.out.println("Something went wrong.");
+                        }
+                        break;
+                    case "12":
+                        try {
+                            int searches = scan.nextInt();
+                            ChakNode.SearchMode mode = ChakNode.SearchMode.valueOf(scan.next().toUpperCase());
+                            skewedWorkload(nodes, searches, mode);
+                        } catch (Exception e) {
+                            System.out.println("Something went wrong.");
+                        }
+                        break;
+                    case "13":
+                        long plain = 0, wire = 0, nanos = 0;
+                        for(ChakNode node : nodes.values()) {
+                            plain += node.getPlainBytesSent();
+                            wire += node.getWireBytesSent();
+                            nanos += node.getCompressionNanos();
+                        }
+                        System.out.println(plain+" bytes sent as "+wire+" bytes by "+nodes.size()+" nodes, "
+                                +nanos / 1000000+" ms spent compressing and decompressing.");
+                        break;
                     case "kill":
                         try {
                             int port = scan.nextInt();
@@ -143,11 +229,17 @@ public class ChakNodeNetworkSimulator {
                                 "\n\t0 'portNumber1' 'portNumber2': to ping a port number 'portNumber2' from 'portNumber1'" +
                                 "\n\t1: to print neighbors of each node" +
                                 "\n\t2 'someFileName' 'portNumber': to create a new file with name 'someFileName' on a node with 'portNumber" +
-                                "\n\t3 'someFileName' 'portNumber': to start a search for a file 'someFileName' on a node with 'portNumber'" +
+                                "\n\t3 'someFileName' 'portNumber': to start a search for files whose names contain every keyword of 'someFileName' on a node with 'portNumber'" +
                                 "\n\t4 'portNumber': to list all files on a node with a port number 'portNumber'"+
                                 "\n\t5 'someFileName' 'portNumber': to read a file with a name 'someFileName' on a node with 'portNumber'" +
                                 "\n\t6 'portNumber': to add a node with a port 'portNumber'" +
                                 "\n\t7 'portNumber': to print the neighbors of a single node"+
+                                "\n\t8 'portNumber': to print the query cache statistics of a single node"+
+                                "\n\t9: to print the number of queries sent by the whole network"+
+                                "\n\t10: to print the descriptors received by ultrapeers and by leaves"+
+                                "\n\t11 'someFileName' 'portNumber': to compare the messages and the time to the first result of a flood, a dynamic query and a random walk from a node with 'portNumber'"+
+                                "\n\t12 'searches' 'mode': to run that many searches from random nodes for files whose popularity follows a Zipf distribution, with mode flood, dynamic or random_walk"+
+                    "\n\t13: to print the bytes sent by the whole network before and after compression, and the time spent compressing"+
                                 "\n\tkill 'portNumber': to kill and remove a node from the network with the port number 'portNumber'"+
                                 "\n\texit: to terminate the program\n");
                         break;
@@ -171,4 +263,113 @@ public class ChakNodeNetworkSimulator {
 
         System.exit(0);
     }
+
+    /**
+     * Runs a skewed search workload: WORKLOAD_FILES new files are added on random nodes, then
+     * searches are started one after the other from random nodes, each for a file picked with
+     * a probability falling with its popularity rank (Zipf, exponent 1), so a few files make up
+     * most searches. Prints how many searches found their file, the mean time to the first
+     * result, the messages sent, how often ultrapeers answered from their result cache and how
+     * many query hits came from proxy cache copies. Run it again with -Dchaknode.resultCache=false
+     * to compare with every search forwarded, or with -Dchaknode.proxyCacheBytes=n to have
+     * ultrapeers keep copies of the popular files.
+     * @param nodes every node of the network
+     * @param searches number of searches
+     * @param mode how the searches are sent through the network
+     */
+    static void skewedWorkload(HashMap<Integer, ChakNode> nodes, int searches, ChakNode.SearchMode mode)
+            throws InterruptedException {
+        Random random = new Random();
+        List<ChakNode> all = new ArrayList<>(nodes.values());
+
+        String[] names = new String[WORKLOAD_FILES];
+        double[] cumulative = new double[WORKLOAD_FILES];
+        double total = 0;
+        String prefix = "popular_"+Long.toUnsignedString(random.nextLong(), 36)+"_";
+        for(int rank = 0; rank < WORKLOAD_FILES; ++rank) {
+            names[rank] = prefix+rank+".txt";
+            all.get(random.nextInt(all.size())).addFile(names[rank]);
+            total += 1.0 / (rank + 1);
+            cumulative[rank] = total;
+        }
+
+        // lets the new files reach the route tables
+        Thread.sleep(3000);
+
+        long messagesBefore = messagesSent(nodes);
+        long hitsBefore = resultCacheLookups(nodes, true), missesBefore = resultCacheLookups(nodes, false);
+        long proxyBefore = proxyCacheUses(nodes);
+        int found = 0;
+        long latencies = 0;
+        for(int i = 0; i < searches; ++i) {
+            double pick = random.nextDouble() * total;
+            int rank = 0;
+            while(cumulative[rank] < pick) {
+                ++rank;
+            }
+            long latency = all.get(random.nextInt(all.size())).measureSearch(names[rank], mode, 5000);
+            if(latency >= 0) {
+                ++found;
+                latencies += latency;
+            }
+        }
+        long messages = quietMessagesSent(nodes) - messagesBefore;
+        long hits = resultCacheLookups(nodes, true) - hitsBefore;
+        long lookups = hits + resultCacheLookups(nodes, false) - missesBefore;
+        long proxied = proxyCacheUses(nodes) - proxyBefore;
+
+        System.out.println(searches+" "+mode+" searches for "+WORKLOAD_FILES+" files: "+found+" found, "
+                +(found == 0 ? "no result" : "first result after "+latencies / found+" ms on average")+", "
+                +messages+" messages, result cache hit ratio "
+                +String.format("%.2f", lookups == 0 ? 0 : (double) hits / lookups)+", "
+                +proxied+" query hits from proxy copies.");
+    }
+
+    /**
+     * Waits for the network to be quiet for a second.
+     * @return the messages sent by the whole network by then
+     */
+    private static long quietMessagesSent(HashMap<Integer, ChakNode> nodes) throws InterruptedException {
+        long sent = messagesSent(nodes), previous;
+        do {
+            previous = sent;
+            Thread.sleep(1000);
+            sent = messagesSent(nodes);
+        } while (sent != previous);
+        return sent;
+    }
+
+    /**
+     * @return the searches the whole network answered from its result caches if hits is true,
+     * the searches it looked up there without finding them otherwise
+     */
+    private static long resultCacheLookups(HashMap<Integer, ChakNode> nodes, boolean hits) {
+        long lookups = 0;
+        for(ChakNode node : nodes.values()) {
+            lookups += hits ? node.getResultCacheHits() : node.getResultCacheMisses();
+        }
+        return lookups;
+    }
+
+    /**
+     * @return the query hits the whole network sent for copies kept by proxy caches
+     */
+    private static long proxyCacheUses(HashMap<Integer, ChakNode> nodes) {
+        long uses = 0;
+        for(ChakNode node : nodes.values()) {
+            uses += node.getProxyCacheUses();
+        }
+        return uses;
+    }
+
+    /**
+     * @return the queries, walkers and walker checks sent by the whole network
+     */
+    private static long messagesSent(HashMap<Integer, ChakNode> nodes) {
+        long messages = 0;
+        for(ChakNode node : nodes.values()) {
+            messages += node.getQueriesSent() + node.getWalkerChecksSent();
+        }
+        return messages;
+    }
 }
@@ -0,0 +1,56 @@
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * A Connection carries framed descriptors (header plus exactly payloadLength bytes) between this
+ * ChakNode and another one, in both directions, whichever Transport it belongs to. Descriptors
+ * sent over the same connection arrive in the order they were sent.
+ *
+ * A transfer connection only carries a file download between two ChakNodes and is never used
+ * for neighbor traffic.
+ */
+public interface Connection {
+
+    /**
+     * @return listening port of the ChakNode on the other end, 0 until it is known
+     */
+    int getRemotePort();
+
+    /**
+     * @return true if this connection only carries a file download
+     */
+    boolean isTransfer();
+
+    boolean isClosed();
+
+    /**
+     * Sends a descriptor to the other ChakNode. Safe to call from several threads.
+     * @param frame header and payload, as encoded by DescriptorCodec, from position to limit.
+     *              The buffer is sent as it is rather than copied, so it must not be changed
+     *              afterwards
+     * @throws IOException if the connection is broken
+     */
+    void send(ByteBuffer frame) throws IOException;
+
+    /**
+     * Sends a descriptor whose payload ends with a range of a file, the file channel is closed
+     * once the range has been sent or the connection closes.
+     * @param frameHead header and start of the payload, sent before the file and not copied
+     * @param file channel of the file to send, taken over by this connection
+     * @param position offset of the first file byte to send
+     * @param count number of file bytes the header accounts for
+     * @throws IOException if the connection is broken
+     */
+    void sendFile(ByteBuffer frameHead, FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Sends a descriptor whose payload ends with content already in memory.
+     * @param frameHead header and start of the payload
+     * @param content rest of the payload, which must not change until it has been sent
+     * @throws IOException if the connection is broken
+     */
+    void sendFile(ByteBuffer frameHead, ByteBuffer content) throws IOException;
+}
@@ -0,0 +1,875 @@
+import java.io.IOException;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+
+/**
+ * The ConnectionTable is the TCP transport: the owning ChakNode listens on a server channel and
+ * keeps one long-lived NeighborConnection per remote ChakNode port. Sending to a port reuses the
+ * open connection, opening (or re-opening) it only when needed.
+ *
+ * All connections are non-blocking and serviced by a single selector loop (see serve()), which
+ * accepts new connections, parses descriptors incrementally out of each connection's read
+ * buffer and writes queued descriptors. Complete descriptors are handed to a small dispatcher
+ * pool, so protocol handling (which may open connections or read files) never holds up the
+ * selector and a slow peer only ever costs its own connection. Payloads the listener streams
+ * (file data) are the exception: their pieces go to the listener's PayloadStream on the selector
+ * thread as they arrive, which keeps them in order.
+ *
+ * Descriptors sent to a port are batched (see NeighborConnection.sendBatched()): a connection
+ * holding back descriptors is queued here and flushed by the selector loop once its
+ * NeighborConnection.FLUSH_DELAY_NANOS are up, so a burst of descriptors to a neighbor goes out
+ * in a single write.
+ *
+ * Connections to other ChakNodes, transfer connections included, are opened without blocking:
+ * the connect is registered with the selector and descriptors sent meanwhile wait in the
+ * connection's queue, so an unreachable ChakNode never holds up the dispatcher sending to it. A connect which has not finished within
+ * NeighborConnection.CONNECT_TIMEOUT is given up on, closing the connection.
+ *
+ * Transfer connections, which carry a single file download, are serviced the same way but are
+ * kept out of the per-port table (see openTransfer()).
+ *
+ * In virtual-thread mode there is no selector: every connection is read by its own virtual
+ * thread, which also handles the descriptors it reads, and fan-out sends each run on a virtual
+ * thread of their own. A semaphore caps how many of these threads run at once. A batched
+ * connection is flushed by a virtual thread which sleeps out the delay.
+ *
+ * Discovery probes (see openProbes()) are non-blocking connects on a selector of their own, a
+ * probe which connected is wrapped as the connection to its port once it is adopted.
+ */
+public class ConnectionTable implements Transport {
+
+    /**
+     * Number of threads handling descriptors once the selector has parsed them.
+     */
+    private static final int DISPATCHER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final ServerSocketChannel server;
+    private final Inet4Address ip;
+    private final int localPort;
+    private final Listener listener;
+
+    /**
+     * whether connections compress their streams, shared by all of them to count the bytes
+     */
+    private final StreamCompression compression;
+
+    /**
+     * services every connection, null in virtual-thread mode.
+     */
+    private final Selector selector;
+
+    /**
+     * open connections keyed by the listening port of the ChakNode on the other end.
+     */
+    private final ConcurrentHashMap<Integer, NeighborConnection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * every connection registered with the selector, including duplicates which lost the race
+     * for a slot in connections because both ChakNodes connected to each other at the same time.
+     */
+    private final Set<NeighborConnection> open = ConcurrentHashMap.newKeySet();
+
+    /**
+     * connections holding back batched descriptors in the order their flushes are due, and how
+     * many there are. Flushed by the selector loop, which is only woken up when the first one
+     * arrives.
+     */
+    private final ConcurrentLinkedQueue<Scheduled> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingFlushCount = new AtomicInteger();
+
+    /**
+     * connections still connecting in the order their connects time out, checked by the selector
+     * loop.
+     */
+    private final ConcurrentLinkedQueue<Scheduled> pendingConnects = new ConcurrentLinkedQueue<>();
+
+    /**
+     * set by closeAll() to stop the selector loop, which then closes the selector itself so that
+     * it is never closed under the loop's feet.
+     */
+    private volatile boolean closed;
+
+    /**
+     * true once serve() runs the selector loop, from then on the loop closes the selector.
+     */
+    private volatile boolean serving;
+
+    /**
+     * handles complete descriptors and connection closes off the selector thread.
+     */
+    private final ExecutorService dispatcher;
+
+    /**
+     * runs connections and fan-out sends in virtual-thread mode, null otherwise.
+     */
+    private final ExecutorService virtualThreads;
+
+    /**
+     * caps the number of virtual threads running at once.
+     */
+    private final Semaphore virtualThreadPermits;
+
+    /**
+     * @param server the owning ChakNode's server channel, bound to localPort and closed along with
+     *               the table
+     * @param ip address shared by all ChakNodes
+     * @param localPort listening port of the owning ChakNode
+     * @param listener receives descriptors and connection closes
+     * @param maximumVirtualThreads 0 to service connections with a selector, otherwise the most
+     *                              virtual threads this table runs at once
+     * @param compression whether connections compress their streams when the other end agrees
+     * @throws IOException if the selector cannot be opened
+     */
+    public ConnectionTable(ServerSocketChannel server, Inet4Address ip, int localPort, Listener listener,
+                           int maximumVirtualThreads, StreamCompression compression) throws IOException {
+        this.server = server;
+        this.ip = ip;
+        this.localPort = localPort;
+        this.listener = listener;
+        this.compression = compression;
+
+        if(maximumVirtualThreads > 0) {
+            selector = null;
+            dispatcher = null;
+            virtualThreads = Executors.newThreadPerTaskExecutor(
+                    Thread.ofVirtual().name("chaknode-"+localPort+"-", 0).factory());
+            virtualThreadPermits = new Semaphore(maximumVirtualThreads);
+        } else {
+            selector = Selector.open();
+            dispatcher = Executors.newFixedThreadPool(DISPATCHER_THREADS);
+            virtualThreads = null;
+            virtualThreadPermits = null;
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return localPort;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return server.isOpen();
+    }
+
+    /**
+     * Services connections on the calling thread until the server channel or the table is
+     * closed. Until this is running, descriptors can be sent but none are received on
+     * connections accepted or opened by the selector.
+     */
+    @Override
+    public void serve() {
+        if(virtualThreads != null) {
+            acceptOnVirtualThreads(server);
+            return;
+        }
+
+        serving = true;
+        try {
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (!closed && server.isOpen()) {
+                Scheduled next = earliest(pendingFlushes.peek(), pendingConnects.peek());
+                if(next == null) {
+                    selector.select();
+                } else {
+                    // wait until the next batch or connect is due, rounded up to the selector's
+                    // milliseconds
+                    long wait = next.due - System.nanoTime();
+                    if(wait > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999999)));
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        if(key.isAcceptable()) {
+                            accept(server);
+                        } else {
+                            service((NeighborConnection) key.attachment(), key);
+                        }
+                    } catch (CancelledKeyException e) {
+                        // another thread closed the connection after it was selected
+                    }
+                }
+                flushDue();
+                abandonConnectsDue();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // the ChakNode has been killed
+        } finally {
+            closeSelector();
+        }
+    }
+
+    /**
+     * @return whichever of two scheduled connections is due first, or null if both are
+     */
+    private static Scheduled earliest(Scheduled a, Scheduled b) {
+        if(a == null) {
+            return b;
+        }
+        return b == null || a.due - b.due <= 0 ? a : b;
+    }
+
+    /**
+     * Runs one send of a fan-out (the same descriptor going to several neighbors). In
+     * virtual-thread mode the send gets its own virtual thread so that one slow neighbor does
+     * not hold up the others, unless the cap is reached in which case it runs on the caller.
+     * Otherwise it simply runs on the caller, sends only queue bytes on the selector's channels.
+     * @param send the send to run
+     */
+    @Override
+    public void fanOut(Runnable send) {
+        if(virtualThreads == null || !startVirtualThread(send, false)) {
+            send.run();
+        }
+    }
+
+    /**
+     * Sends a descriptor to a port, opening a connection if there is none. If the connection
+     * turns out to be broken it is re-established once before giving up.
+     * @param port listening port of the receiving ChakNode
+     * @param frame header and payload from position to limit, left untouched so that the same
+     *              frame can be sent to several ChakNodes
+     * @return true if the descriptor was queued on an open connection
+     */
+    @Override
+    public boolean send(int port, ByteBuffer frame) {
+        for(int attempt = 0; attempt < 2; ++attempt) {
+            NeighborConnection connection = connect(port);
+            if(connection == null) {
+                return false;
+            }
+            try {
+                if(connection.sendBatched(frame.duplicate())) {
+                    scheduleFlush(connection);
+                }
+                return true;
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Arranges for a connection holding back batched descriptors to be flushed once
+     * NeighborConnection.FLUSH_DELAY_NANOS are up.
+     */
+    private void scheduleFlush(NeighborConnection connection) {
+        if(virtualThreads != null) {
+            if(!startVirtualThread(() -> {
+                try {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(NeighborConnection.FLUSH_DELAY_NANOS));
+                } catch (InterruptedException e) {
+                    // the table has been closed, flush() tells
+                }
+                flush(connection);
+            }, false)) {
+                flush(connection);
+            }
+            return;
+        }
+
+        long due = System.nanoTime() + NeighborConnection.FLUSH_DELAY_NANOS;
+        pendingFlushes.add(new Scheduled(connection, due));
+        if(pendingFlushCount.incrementAndGet() == 1) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Flushes the connections whose batches are due, on the selector thread.
+     */
+    private void flushDue() {
+        long now = System.nanoTime();
+        Scheduled next;
+        while((next = pendingFlushes.peek()) != null && next.due - now <= 0) {
+            pendingFlushes.poll();
+            pendingFlushCount.decrementAndGet();
+            flush(next.connection);
+        }
+    }
+
+    /**
+     * Closes the connections whose connect has not finished in time, on the selector thread.
+     */
+    private void abandonConnectsDue() {
+        long now = System.nanoTime();
+        Scheduled next;
+        while((next = pendingConnects.peek()) != null && next.due - now <= 0) {
+            pendingConnects.poll();
+            if(next.connection.isConnecting()) {
+                close(next.connection);
+            }
+        }
+    }
+
+    private void flush(NeighborConnection connection) {
+        try {
+            connection.flush();
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Opens a transfer connection to a port for a file download. It is read and written like any
+     * other connection but never takes a port's slot in the table, so neighbor traffic does not
+     * queue behind the file and closing it does not drop a neighbor. Like connect(), outside
+     * virtual-thread mode the connection may still be connecting, a download's requests wait in
+     * its queue until it is connected.
+     * @param host address of the ChakNode sharing the file
+     * @param port listening port of the ChakNode sharing the file
+     * @return the new connection or null if the ChakNode cannot be reached
+     */
+    @Override
+    public NeighborConnection openTransfer(Inet4Address host, int port) {
+        NeighborConnection connection;
+        try {
+            connection = NeighborConnection.openTransfer(host, port, localPort, virtualThreads != null, compression);
+        } catch (IOException e) {
+            return null;
+        }
+        if(!start(connection)) {
+            return null;
+        }
+        awaitConnect(connection);
+        return connection;
+    }
+
+    /**
+     * Returns the open connection to a port, opening a new one if there is none. Outside
+     * virtual-thread mode the new connection may still be connecting, if the connect then fails
+     * it is closed like any other broken connection.
+     * @param port listening port of the remote ChakNode
+     * @return the connection or null if the ChakNode cannot be reached
+     */
+    @Override
+    public NeighborConnection connect(int port) {
+        NeighborConnection connection = connections.get(port);
+        if(connection != null && !connection.isClosed()) {
+            return connection;
+        }
+
+        try {
+            connection = NeighborConnection.open(ip, port, localPort, virtualThreads != null, compression);
+        } catch (IOException e) {
+            return null;
+        }
+
+        // if another thread connected to the same port meanwhile, both connections stay open
+        // rather than closing one under the other ChakNode's feet
+        NeighborConnection registered = register(connection);
+        boolean started = start(connection);
+        if(started) {
+            awaitConnect(connection);
+        }
+        return started || registered != connection ? registered : null;
+    }
+
+    /**
+     * Gives a started connection which is still connecting CONNECT_TIMEOUT to finish, after
+     * which the selector loop closes it.
+     */
+    private void awaitConnect(NeighborConnection connection) {
+        if(connection.isConnecting()) {
+            pendingConnects.add(new Scheduled(connection,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NeighborConnection.CONNECT_TIMEOUT)));
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Takes over a channel which a discovery probe has already connected to a port, so that
+     * descriptors sent to the port go over it.
+     * @param channel the connected channel, no longer registered with the probe's selector
+     * @param port listening port of the remote ChakNode
+     * @return the connection now in the table for the port, or null if the channel is unusable
+     */
+    private NeighborConnection adopt(SocketChannel channel, int port) {
+        NeighborConnection connection;
+        try {
+            connection = NeighborConnection.connected(channel, port, localPort, virtualThreads != null, compression);
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing left to release
+            }
+            return null;
+        }
+
+        NeighborConnection registered = register(connection);
+        return start(connection) || registered != connection ? registered : null;
+    }
+
+    /**
+     * Closes the connection to a port, if there is one.
+     * @param port listening port of the remote ChakNode
+     */
+    @Override
+    public void disconnect(int port) {
+        NeighborConnection connection = connections.get(port);
+        if(connection != null) {
+            close(connection);
+        }
+    }
+
+    /**
+     * @param port listening port of the remote ChakNode
+     * @return true if there is an open connection to the port
+     */
+    @Override
+    public boolean isConnected(int port) {
+        NeighborConnection connection = connections.get(port);
+        return connection != null && !connection.isClosed();
+    }
+
+    /**
+     * Closes connections which do not belong to a neighbor and have been idle for too long,
+     * these are left over from discovery pings and pongs to ChakNodes that never became
+     * neighbors, or are transfer connections whose download has stalled.
+     * @param neighbors current neighbors of the owning ChakNode
+     * @param maximumIdleMillis idle time after which a connection is closed
+     */
+    @Override
+    public void closeIdle(List<Integer> neighbors, long maximumIdleMillis) {
+        long now = System.currentTimeMillis();
+        for(NeighborConnection connection : open) {
+            if((connection.isTransfer() || !neighbors.contains(connection.getRemotePort()))
+                    && now - connection.getLastActivity() > maximumIdleMillis) {
+                close(connection);
+            }
+        }
+    }
+
+    /**
+     * Closes the server channel and every connection and stops the selector and dispatcher, or
+     * waits briefly for the virtual threads to finish once their connections are closed.
+     */
+    @Override
+    public void closeAll() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+        if(virtualThreads != null) {
+            virtualThreads.shutdown();
+        } else {
+            dispatcher.shutdownNow();
+        }
+
+        for(NeighborConnection connection : open) {
+            connection.closeConnection();
+        }
+        open.clear();
+        connections.clear();
+        pendingConnects.clear();
+
+        if(selector != null) {
+            // a running selector loop sees the flag once woken up and closes the selector on its way out
+            selector.wakeup();
+            if(!serving) {
+                closeSelector();
+            }
+            return;
+        }
+        try {
+            if(!virtualThreads.awaitTermination(1, TimeUnit.SECONDS)) {
+                virtualThreads.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            virtualThreads.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeSelector() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+
+    /**
+     * Blocks accepting connections, each one is then read on its own virtual thread. Accepting
+     * waits whenever the virtual thread cap is reached.
+     */
+    private void acceptOnVirtualThreads(ServerSocketChannel server) {
+        try {
+            server.configureBlocking(true);
+            while (server.isOpen()) {
+                SocketChannel channel = server.accept();
+                NeighborConnection connection = NeighborConnection.accepted(channel, true, compression);
+                open.add(connection);
+                if(!startVirtualThread(() -> readOnVirtualThread(connection), true)) {
+                    open.remove(connection);
+                    connection.closeConnection();
+                }
+            }
+        } catch (IOException e) {
+            // the ChakNode has been killed
+        }
+    }
+
+    /**
+     * Reads a blocking connection until it closes, handling every descriptor on this thread.
+     */
+    private void readOnVirtualThread(NeighborConnection connection) {
+        try {
+            while (!connection.isClosed()) {
+                connection.read(localPort, () -> register(connection),
+                        header -> listener.payloadStarted(connection, header),
+                        descriptor -> listener.descriptorReceived(connection, descriptor));
+            }
+        } catch (IOException e) {
+            // the other ChakNode went away or sent garbage
+        } finally {
+            close(connection);
+        }
+    }
+
+    /**
+     * Starts a task on a virtual thread once a permit is available.
+     * @param task the task to run
+     * @param wait true to wait for a permit, false to give up if there is none
+     * @return false if the task was not started
+     */
+    private boolean startVirtualThread(Runnable task, boolean wait) {
+        try {
+            if(wait) {
+                virtualThreadPermits.acquire();
+            } else if(!virtualThreadPermits.tryAcquire()) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        try {
+            virtualThreads.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    virtualThreadPermits.release();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            // the table has been closed
+            virtualThreadPermits.release();
+            return false;
+        }
+    }
+
+    /**
+     * Accepts a pending connection, its handshake arrives through the selector like any
+     * other bytes.
+     */
+    private void accept(ServerSocketChannel server) {
+        try {
+            SocketChannel channel = server.accept();
+            if(channel != null) {
+                start(NeighborConnection.accepted(channel, false, compression));
+            }
+        } catch (IOException e) {
+            //Fails are expected to be common due to the nature of the port searching.
+        }
+    }
+
+    /**
+     * Reads and writes a connection the selector reported as ready.
+     */
+    private void service(NeighborConnection connection, SelectionKey key) {
+        try {
+            if(key.isConnectable()) {
+                connection.finishConnect();
+            }
+            if(key.isValid() && key.isReadable()) {
+                connection.read(localPort, () -> register(connection),
+                        header -> listener.payloadStarted(connection, header),
+                        descriptor -> dispatch(() -> listener.descriptorReceived(connection, descriptor)));
+            }
+            if(key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            // the other ChakNode went away or sent garbage, or another thread closed the connection
+            close(connection);
+        }
+    }
+
+    /**
+     * Adds a connection to the table unless one to the same port is already open. Transfer
+     * connections are left out of the table.
+     * @return the connection now in the table
+     */
+    private NeighborConnection register(NeighborConnection connection) {
+        if(connection.isTransfer()) {
+            return connection;
+        }
+        NeighborConnection existing = connections.putIfAbsent(connection.getRemotePort(), connection);
+        if(existing == null) {
+            return connection;
+        }
+        if(existing.isClosed() && connections.replace(connection.getRemotePort(), existing, connection)) {
+            return connection;
+        }
+        return existing;
+    }
+
+    /**
+     * Registers a connection with the selector, or starts its virtual thread.
+     * @return false if the table has been closed or is out of virtual threads
+     */
+    private boolean start(NeighborConnection connection) {
+        open.add(connection);
+        if(virtualThreads != null) {
+            if(startVirtualThread(() -> readOnVirtualThread(connection), false)) {
+                return true;
+            }
+            close(connection);
+            return false;
+        }
+
+        try {
+            connection.register(selector);
+            return true;
+        } catch (IOException | ClosedSelectorException e) {
+            close(connection);
+            return false;
+        }
+    }
+
+    /**
+     * Closes a connection and lets the listener know, exactly once per connection. If another
+     * connection to the same ChakNode is still open it takes over the closed one's slot.
+     * @param connection the connection to close
+     */
+    @Override
+    public void close(Connection closed) {
+        NeighborConnection connection = (NeighborConnection) closed;
+        if(connection.closeConnection()) {
+            open.remove(connection);
+            if(connections.remove(connection.getRemotePort(), connection)) {
+                for(NeighborConnection duplicate : open) {
+                    if(duplicate.getRemotePort() == connection.getRemotePort() && duplicate.isHandshakeComplete()
+                            && !duplicate.isTransfer()
+                            && register(duplicate) == duplicate) {
+                        break;
+                    }
+                }
+            }
+            dispatch(() -> listener.connectionClosed(connection));
+        }
+    }
+
+    /**
+     * A connection whose batched descriptors are due to be flushed, or whose connect is due to
+     * be given up on, at System.nanoTime() due.
+     */
+    private static class Scheduled {
+        private final NeighborConnection connection;
+        private final long due;
+
+        private Scheduled(NeighborConnection connection, long due) {
+            this.connection = connection;
+            this.due = due;
+        }
+    }
+
+    /**
+     * Runs a task on the dispatcher, or on a virtual thread in virtual-thread mode.
+     */
+    private void dispatch(Runnable task) {
+        if(virtualThreads != null) {
+            fanOut(task);
+            return;
+        }
+
+        try {
+            dispatcher.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the table has been closed
+        }
+    }
+
+    @Override
+    public Probes openProbes() throws IOException {
+        return new SocketProbes();
+    }
+
+    /**
+     * Probes connecting without blocking on a selector of their own, a port that does not accept
+     * by its deadline is given up on. A probe which connected holds a socket on both ChakNodes
+     * until it is adopted or discarded.
+     */
+    private class SocketProbes implements Probes {
+        private final Selector probes = Selector.open();
+
+        /**
+         * channels of the probes which connected, by port.
+         */
+        private final HashMap<Integer, SocketChannel> connected = new HashMap<>();
+
+        private SocketProbes() throws IOException {
+        }
+
+        @Override
+        public void start(int port, long deadline) {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if(channel.connect(new InetSocketAddress(ip, port))) {
+                    // connected straight away, finishConnect() reports it on the next select
+                    channel.register(probes, SelectionKey.OP_WRITE, new Probe(port, deadline));
+                } else {
+                    channel.register(probes, SelectionKey.OP_CONNECT, new Probe(port, deadline));
+                }
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+
+        @Override
+        public int connecting() {
+            return probes.keys().size();
+        }
+
+        /**
+         * A virtual thread blocked in select() would hold on to its carrier thread, so on a
+         * virtual thread the selector is polled and the thread sleeps in between instead.
+         */
+        @Override
+        public void await(long timeoutMillis, IntConsumer connectedPorts) throws IOException {
+            if(!Thread.currentThread().isVirtual()) {
+                probes.select(timeoutMillis);
+            } else if(probes.selectNow() == 0) {
+                try {
+                    Thread.sleep(timeoutMillis);
+                } catch (InterruptedException e) {
+                    // the ChakNode has been killed, the discovery loop checks the flag
+                    Thread.currentThread().interrupt();
+                }
+                probes.selectNow();
+            }
+
+            Iterator<SelectionKey> keys = probes.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                SocketChannel channel = (SocketChannel) key.channel();
+                key.cancel();
+                try {
+                    if(channel.finishConnect()) {
+                        int port = ((Probe) key.attachment()).port;
+                        connected.put(port, channel);
+                        connectedPorts.accept(port);
+                    } else {
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    // nothing is listening on the port
+                    channel.close();
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            for(SelectionKey key : probes.keys()) {
+                if(key.isValid() && now > ((Probe) key.attachment()).deadline) {
+                    key.cancel();
+                    key.channel().close();
+                }
+            }
+
+            // flushes the cancelled keys, a channel can only be reconfigured once it has left
+            // the selector
+            probes.selectNow();
+        }
+
+        @Override
+        public Connection adopt(int port) {
+            SocketChannel channel = connected.remove(port);
+            return channel == null ? null : ConnectionTable.this.adopt(channel, port);
+        }
+
+        @Override
+        public void discard(int port) {
+            closeQuietly(connected.remove(port));
+        }
+
+        @Override
+        public void close() throws IOException {
+            for(SelectionKey key : probes.keys()) {
+                key.channel().close();
+            }
+            probes.close();
+            for(SocketChannel channel : connected.values()) {
+                channel.close();
+            }
+            connected.clear();
+        }
+
+        private void closeQuietly(SocketChannel channel) {
+            if(channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // nothing left to release
+                }
+            }
+        }
+    }
+
+    /**
+     * A connect in flight.
+     */
+    private static class Probe {
+        private final int port;
+        private final long deadline;
+
+        private Probe(int port, long deadline) {
+            this.port = port;
+            this.deadline = deadline;
+        }
+    }
+}
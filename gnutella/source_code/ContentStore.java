@@ -0,0 +1,140 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A ContentStore holds the bytes of the files a ChakNode shares, downloads and generates, by
+ * file name. Which files are shared is up to the ChakNode's FileCatalog, the store only knows
+ * about their content, along with that of partial downloads.
+ *
+ * There are three stores, picked with -Dchaknode.contentStore:
+ *
+ *     directory   one real file per name in the ChakNode's directory (DirectoryContentStore),
+ *                 served from disk with transferTo(). This is the default.
+ *     mapped      content packed into memory-mapped segment files in that directory
+ *                 (MappedContentStore), served straight from the mapping.
+ *     memory      content packed into off-heap segments (MemoryContentStore), nothing touches
+ *                 the disk. Meant for simulations with many files.
+ *
+ * A store is safe to use from any thread, but a Content handle belongs to one thread at a time.
+ */
+public interface ContentStore {
+
+    /**
+     * Stores new content under a name.
+     * @param name file name
+     * @param bytes the whole content
+     * @throws java.nio.file.FileAlreadyExistsException if there already is content under the name
+     * @throws IOException if the content cannot be stored
+     */
+    void create(String name, byte[] bytes) throws IOException;
+
+    /**
+     * Opens the content stored under a name for reading.
+     * @param name file name
+     * @return the content, or null if there is none under the name
+     * @throws IOException if the content cannot be opened
+     */
+    Content open(String name) throws IOException;
+
+    /**
+     * Opens the content under a name for writing, creating it empty if there is none. Content
+     * already there is kept, so a partial download picks up where it stopped.
+     * @param name file name
+     * @param size most bytes that will be written
+     * @return the content
+     * @throws IOException if the content cannot be opened or the store cannot hold that many bytes
+     */
+    Content openPartial(String name, long size) throws IOException;
+
+    /**
+     * Moves content to another name, replacing any content already under that name.
+     * @param from current file name
+     * @param to new file name
+     * @throws IOException if there is no content under from or it cannot be moved
+     */
+    void move(String from, String to) throws IOException;
+
+    /**
+     * Removes the content under a name, if there is any.
+     * @param name file name
+     * @throws IOException if the content cannot be removed
+     */
+    void delete(String name) throws IOException;
+
+    /**
+     * Removes all content, along with anything the store created to hold it. The store is not
+     * used again afterwards.
+     * @throws IOException if some of it cannot be removed
+     */
+    void clear() throws IOException;
+
+    /**
+     * The content under one name, open for reading or writing. Reads and writes are positional,
+     * like those of a FileChannel.
+     */
+    interface Content extends Closeable {
+
+        /**
+         * @return number of bytes of content
+         * @throws IOException if the size cannot be read
+         */
+        long size() throws IOException;
+
+        /**
+         * Reads bytes from a position into a buffer.
+         * @param destination buffer to read into
+         * @param position offset of the first byte to read
+         * @return number of bytes read, or -1 at the end of the content
+         * @throws IOException if the content cannot be read
+         */
+        int read(ByteBuffer destination, long position) throws IOException;
+
+        /**
+         * Writes bytes at a position.
+         * @param source buffer to write from
+         * @param position offset of the first byte to write
+         * @return number of bytes written
+         * @throws IOException if the content cannot be written or would grow past its size
+         */
+        int write(ByteBuffer source, long position) throws IOException;
+
+        /**
+         * @param size number of bytes to keep, bytes past it are dropped
+         * @throws IOException if the content cannot be truncated
+         */
+        void truncate(long size) throws IOException;
+
+        /**
+         * Queues a descriptor whose payload ends with a range of this content on a connection,
+         * without copying the range onto the heap. The content is closed once the range has been
+         * sent, or straight away if it cannot be.
+         * @param connection connection to send on
+         * @param frameHead header and start of the payload
+         * @param position offset of the first byte to send
+         * @param count number of bytes to send
+         * @throws IOException if the connection is broken
+         */
+        void send(Connection connection, ByteBuffer frameHead, long position, long count)
+                throws IOException;
+
+        /**
+         * @return the whole content
+         * @throws IOException if the content cannot be read
+         */
+        default byte[] readAll() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            long position = 0;
+            int read;
+            while((read = read(buffer.clear(), position)) > 0) {
+                bytes.write(buffer.array(), 0, read);
+                position += read;
+            }
+            return bytes.toByteArray();
+        }
+    }
+}
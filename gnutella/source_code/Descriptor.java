@@ -0,0 +1,102 @@
+import java.nio.ByteBuffer;
+
+
+/**
+ * A Descriptor is a single framed Gnutella message as it travels over a neighbor connection.
+ * Every descriptor is a 23 byte header followed by exactly payloadLength bytes of payload,
+ * which is what allows many descriptors to share one long-lived connection.
+ */
+public class Descriptor {
+
+    /**
+     * Length of the descriptor header: 16 byte id, payload descriptor, TTL, hops and a 4 byte
+     * payload length.
+     */
+    public static final int HEADER_LENGTH = 23;
+
+    /**
+     * Upper bound on the payload of a single descriptor which is not streamed, anything larger
+     * is treated as a corrupt frame.
+     */
+    public static final int MAXIMUM_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    private final String id;
+    private final byte payloadDescriptor;
+    private final int timeToLive;
+    private final int hops;
+    private final byte[] payload;
+    private final int payloadLength;
+
+    /**
+     * Creates a descriptor from an already parsed header and its payload.
+     * @param id 16 byte id of the ChakNode which generated the header
+     * @param payloadDescriptor the type of the descriptor (PING, PONG, QUERY or QUERY_HIT)
+     * @param timeToLive remaining hops before the descriptor is dropped
+     * @param hops number of hops the descriptor has travelled
+     * @param payload the payload bytes
+     */
+    public Descriptor(String id, byte payloadDescriptor, int timeToLive, int hops, byte[] payload) {
+        this(id, payloadDescriptor, timeToLive, hops, payload, payload.length);
+    }
+
+    /**
+     * Creates a descriptor, used by DescriptorCodec.readHeader() for headers whose payload has
+     * not been read yet.
+     * @param payload the payload bytes, or null if they have not been read
+     * @param payloadLength number of payload bytes announced by the header
+     */
+    Descriptor(String id, byte payloadDescriptor, int timeToLive, int hops, byte[] payload, int payloadLength) {
+        this.id = id;
+        this.payloadDescriptor = payloadDescriptor;
+        this.timeToLive = timeToLive;
+        this.hops = hops;
+        this.payload = payload;
+        this.payloadLength = payloadLength;
+    }
+
+    /**
+     * Completes a descriptor read by DescriptorCodec.readHeader() once its payload has arrived.
+     * @param payload the payload bytes, exactly getPayloadLength() of them
+     * @return the complete descriptor
+     */
+    public Descriptor withPayload(byte[] payload) {
+        if(payload.length != payloadLength) {
+            throw new IllegalArgumentException("Payload length "+payload.length+" does not match the header");
+        }
+        return new Descriptor(id, payloadDescriptor, timeToLive, hops, payload, payloadLength);
+    }
+
+    /**
+     * @return the payload as a buffer for DescriptorCodec to read, positioned at its first byte
+     */
+    public ByteBuffer getPayloadBuffer() {
+        return ByteBuffer.wrap(payload);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public byte getPayloadDescriptor() {
+        return payloadDescriptor;
+    }
+
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+
+    /**
+     * @return the payload bytes, null for a descriptor built by DescriptorCodec.readHeader()
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+}
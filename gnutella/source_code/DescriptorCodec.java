@@ -0,0 +1,743 @@
+import java.net.ProtocolException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * DescriptorCodec encodes and decodes descriptor headers and payloads directly on ByteBuffers,
+ * heap or direct. Encoding writes at the buffer's position and allocates nothing, the 16 id bytes
+ * are encoded once by the caller and reused for every header. Decoding reads from the buffer's
+ * position but is not allocation-free: every header and payload decodes to a new object, and the
+ * strings in it (the id, greetings, search criteria and file names) are copied out of the buffer,
+ * through a temporary array when the buffer is direct.
+ *
+ * Nor are the buffers around the codec pooled. ChakNode allocates a frame for every descriptor
+ * it sends and NeighborConnection copies every payload it receives into an array of its own,
+ * since both outlive the call which made them: a frame may wait in the queues of several
+ * connections, and a descriptor is handled on a dispatcher thread after the read buffer has moved
+ * on. What the codec saves over DataOutputStream are the streams and the copies between them,
+ * DescriptorCodecBenchmark reports the bytes still allocated per descriptor.
+ *
+ * Numbers are big-endian and strings a two byte length followed by modified UTF-8 (see
+ * DataOutput.writeUTF), the encoding DataOutputStream produced before.
+ *
+ * Decoding is strict: a field running past the end of the payload, a malformed string or bytes
+ * left over after the last field are reported with a ProtocolException, never parsed as
+ * whatever happens to follow.
+ */
+public final class DescriptorCodec {
+
+    /**
+     * Length of a descriptor id.
+     */
+    public static final int ID_LENGTH = 16;
+
+    /**
+     * Length of an IPv4 address, a SHA-1 hash and the numbers in a PONG.
+     */
+    public static final int ADDRESS_LENGTH = 4;
+    public static final int HASH_LENGTH = 20;
+    private static final int PONG_INFO_LENGTH = 21;
+
+    /**
+     * Flags of a PONG: the ChakNode answering is an ultrapeer, it is a leaf without any
+     * ultrapeer, it keeps the ChakNode it answers as a neighbor, and it has room for another
+     * ultrapeer and for another leaf.
+     */
+    public static final int PONG_ULTRAPEER = 0x01;
+    public static final int PONG_ISOLATED = 0x02;
+    public static final int PONG_ACCEPTED = 0x04;
+    public static final int PONG_ULTRAPEER_SLOTS = 0x08;
+    public static final int PONG_LEAF_SLOTS = 0x10;
+
+    /**
+     * Status of a WALKER_CHECK: a ChakNode holding a walker asks whether the walk goes on, and
+     * the ChakNode which started it answers that it does or that the walker is to stop.
+     */
+    public static final int WALKER_ASK = 0;
+    public static final int WALKER_CONTINUE = 1;
+    public static final int WALKER_STOP = 2;
+
+    /**
+     * Most bytes a string can encode to, its length has to fit in two bytes.
+     */
+    private static final int MAXIMUM_UTF_LENGTH = 0xFFFF;
+
+    private DescriptorCodec() {
+    }
+
+    /**
+     * Writes a descriptor header.
+     * @param out buffer to write the 23 header bytes to
+     * @param id the 16 id bytes of the ChakNode generating the header
+     * @param payloadDescriptor the type of the descriptor
+     * @param timeToLive remaining hops, 0 to 255
+     * @param hops hops travelled so far, 0 to 255
+     * @param payloadLength number of payload bytes following the header
+     * @throws IllegalArgumentException if a field does not fit the header
+     */
+    public static void writeHeader(ByteBuffer out, byte[] id, byte payloadDescriptor, int timeToLive, int hops,
+                                   int payloadLength) {
+        if(id.length != ID_LENGTH || (timeToLive & ~0xFF) != 0 || (hops & ~0xFF) != 0 || payloadLength < 0) {
+            throw new IllegalArgumentException("Invalid descriptor header");
+        }
+        out.put(id).put(payloadDescriptor).put((byte) timeToLive).put((byte) hops).putInt(payloadLength);
+    }
+
+    /**
+     * Reads a descriptor header without moving the buffer's position. Streamed payloads are not
+     * bound by Descriptor.MAXIMUM_PAYLOAD_LENGTH, so only a negative length is rejected here.
+     * @param in buffer holding at least 23 bytes from offset on
+     * @param offset index of the first header byte
+     * @return a descriptor without payload bytes, getPayloadLength() tells how many follow
+     * @throws ProtocolException if the payload length is negative
+     */
+    public static Descriptor readHeader(ByteBuffer in, int offset) throws ProtocolException {
+        int payloadLength = in.getInt(offset + 19);
+        if(payloadLength < 0) {
+            throw new ProtocolException("Invalid payload length "+payloadLength);
+        }
+        return new Descriptor(ascii(in, offset, ID_LENGTH), in.get(offset + 16),
+                in.get(offset + 17) & 0xFF, in.get(offset + 18) & 0xFF, null, payloadLength);
+    }
+
+    /**
+     * @return length of a PING payload carrying the greeting
+     */
+    public static int pingLength(String greeting) {
+        return 2 + utfLength(greeting) + 5;
+    }
+
+    /**
+     * Writes a PING payload.
+     * @param out buffer with room for pingLength(greeting) bytes
+     * @param greeting "GNUTELLA CONNECT\n\n"
+     * @param initialPort port of the ChakNode which sent the first ping
+     * @param ultrapeer true if the ChakNode which sent the first ping is an ultrapeer
+     */
+    public static void writePing(ByteBuffer out, String greeting, int initialPort, boolean ultrapeer) {
+        writeUTF(out, greeting);
+        out.putInt(initialPort).put((byte) (ultrapeer ? 1 : 0));
+    }
+
+    /**
+     * Reads a PING payload.
+     * @param in the remaining bytes of the buffer are the payload
+     * @return the ping
+     * @throws ProtocolException if the payload is malformed
+     */
+    public static Ping readPing(ByteBuffer in) throws ProtocolException {
+        Ping ping = new Ping(readUTF(in), readInt(in), readUnsignedByte(in) != 0);
+        expectEnd(in);
+        return ping;
+    }
+
+    /**
+     * @return length of a PONG payload carrying the greeting
+     */
+    public static int pongLength(String greeting) {
+        return 2 + utfLength(greeting) + PONG_INFO_LENGTH;
+    }
+
+    /**
+     * Writes a PONG payload.
+     * @param out buffer with room for pongLength(greeting) bytes
+     * @param greeting "GNUTELLA OK\n\n"
+     * @param port listening port of the ChakNode answering
+     * @param address IPv4 address of the ChakNode answering
+     * @param fileCount number of files it shares
+     * @param byteCount number of bytes it shares
+     * @param flags PONG_ULTRAPEER, PONG_ISOLATED, PONG_ACCEPTED, PONG_ULTRAPEER_SLOTS and
+     *              PONG_LEAF_SLOTS or'ed together
+     * @param score how well suited the ChakNode answering is to be an ultrapeer
+     */
+    public static void writePong(ByteBuffer out, String greeting, int port, byte[] address, int fileCount,
+                                 int byteCount, int flags, int score) {
+        checkLength(address, ADDRESS_LENGTH);
+        if(flags < 0 || flags > 0xFF) {
+            throw new IllegalArgumentException("Invalid pong flags "+flags);
+        }
+        writeUTF(out, greeting);
+        out.putInt(port).put(address).putInt(fileCount).putInt(byteCount).put((byte) flags).putInt(score);
+    }
+
+    /**
+     * Reads a PONG payload.
+     * @param in the remaining bytes of the buffer are the payload
+     * @return the pong
+     * @throws ProtocolException if the payload is malformed
+     */
+    public static Pong readPong(ByteBuffer in) throws ProtocolException {
+        Pong pong = new Pong(readUTF(in), readInt(in), readBytes(in, ADDRESS_LENGTH), readInt(in), readInt(in),
+                readUnsignedByte(in), readInt(in));
+        expectEnd(in);
+        return pong;
+    }
+
+    /**
+     * @return length of a QUERY payload
+     */
+    public static int queryLength(String requestId, String search) {
+        return 2 + utfLength(requestId) + 2 + utfLength(search) + 8;
+    }
+
+    /**
+     * Writes a QUERY payload.
+     * @param out buffer with room for queryLength(requestId, search) bytes
+     * @param requestId unique id of the search
+     * @param search keywords searched for
+     * @param senderPort port of the ChakNode sending the query, where query hits are routed
+     * @param ttl hops the query has left
+     */
+    public static void writeQuery(ByteBuffer out, String requestId, String search, int senderPort, int ttl) {
+        writeUTF(out, requestId);
+        writeUTF(out, search);
+        out.putInt(senderPort).putInt(ttl);
+    }
+
+    /**
+     * Reads a QUERY payload.
+     * @param in the remaining bytes of the buffer are the payload
+     * @return the query
+     * @throws ProtocolException if the payload is malformed
+     */
+    public static Query readQuery(ByteBuffer in) throws ProtocolException {
+        Query query = new Query(readUTF(in), readUTF(in), readInt(in), readInt(in));
+        expectEnd(in);
+        return query;
+    }
+
+    /**
+     * @return length of a WALKER payload
+     */
+    public static int walkerLength(String requestId, String search) {
+        return queryLength(requestId, search) + 4;
+    }
+
+    /**
+     * Writes a WALKER payload, a QUERY followed by the port of the ChakNode which started the
+     * walk.
+     * @param out buffer with room for walkerLength(requestId, search) bytes
+     * @param requestId unique id of the search
+     * @param search keywords searched for
+     * @param senderPort port of the ChakNode sending the walker, where query hits are routed
+     * @param ttl hops the walker has left
+     * @param originPort port of the ChakNode which started the walk, the walker checks back with it
+     */
+    public static void writeWalker(ByteBuffer out, String requestId, String search, int senderPort, int ttl,
+                                   int originPort) {
+        writeQuery(out, requestId, search, senderPort, ttl);
+        out.putInt(originPort);
+    }
+
+    /**
+     * Reads a WALKER payload.
+     * @param in the remaining bytes of the buffer are the payload
+     * @return the walker
+     * @throws ProtocolException if the payload is malformed
+     */
+    public static Walker readWalker(ByteBuffer in) throws ProtocolException {
+        Walker walker = new Walker(readUTF(in), readUTF(in), readInt(in), readInt(in), readInt(in));
+        expectEnd(in);
+        return walker;
+    }
+
+    /**
+     * @return length of a WALKER_CHECK payload
+     */
+    public static int walkerCheckLength(String requestId) {
+        return 2 + utfLength(requestId) + 1;
+    }
+
+    /**
+     * Writes a WALKER_CHECK payload.
+     * @param out buffer with room for walkerCheckLength(requestId) bytes
+     * @param requestId id of the walk
+     * @param status WALKER_ASK, WALKER_CONTINUE or WALKER_STOP
+     */
+    public static void writeWalkerCheck(ByteBuffer out, String requestId, int status) {
+        if(status < WALKER_ASK || status > WALKER_STOP) {
+            throw new IllegalArgumentException("Invalid walker status "+status);
+        }
+        writeUTF(out, requestId);
+        out.put((byte) status);
+    }
+
+    /**
+     * Reads a WALKER_CHECK payload.
+     * @param in the remaining bytes of the buffer are the payload
+     * @return the walker check
+     * @throws ProtocolException if the payload is malformed
+     */
+    public static WalkerCheck readWalkerCheck(ByteBuffer in) throws ProtocolException {
+        WalkerCheck check = new WalkerCheck(readUTF(in), readUnsignedByte(in));
+        expectEnd(in);
+        if(check.getStatus() > WALKER_STOP) {
+            throw new ProtocolException("Invalid walker status "+check.getStatus());
+        }
+        return check;
+    }
+
+    /**
+     * @return length of a QUERY_HIT payload
+     */
+    public static int queryHitLength(String requestId, String filename) {
+        return 2 + utfLength(requestId) + ADDRESS_LENGTH + 4 + 2 + utfLength(filename) + 8 + HASH_LENGTH;
+    }
+
+    /**
+     * Writes a QUERY_HIT payload.
+     * @param out buffer with room for queryHitLength(requestId, filename) bytes
+     * @param requestId id of the query answered
+     * @param address IPv4 address of the ChakNode sharing the file
+     * @param port port of the ChakNode sharing the file
+     * @param filename name of the file
+     * @param size size of the file in bytes
+     * @param hash SHA-1 hash of the file
+     */
+    public static void writeQueryHit(ByteBuffer out, String requestId, byte[] address, int port, String filename,
+                                     long size, byte[] hash) {
+        checkLength(address, ADDRESS_LENGTH);
+        checkLength(hash, HASH_LENGTH);
+        writeUTF(out, requestId);
+        out.put(address).putInt(port);
+        writeUTF(out, filename);
+        out.putLong(size).put(hash);
+    }
+
+    /**
+     * Reads a QUERY_HIT payload.
+     * @param in the remaining bytes of the buffer are the payload
+     * @return the query hit
+     * @throws ProtocolException if the payload is malformed
+     */
+    public static QueryHit readQueryHit(ByteBuffer in) throws ProtocolException {
+        QueryHit hit = new QueryHit(readUTF(in), readBytes(in, ADDRESS_LENGTH), readInt(in), readUTF(in),
+                readLong(in), readBytes(in, HASH_LENGTH));
+        expectEnd(in);
+        return hit;
+    }
+
+    /**
+     * @return length of a FILE_REQUEST payload
+     */
+    public static int fileRequestLength(String filename) {
+        return 2 + utfLength(filename) + HASH_LENGTH + 16;
+    }
+
+    /**
+     * Writes a FILE_REQUEST payload.
+     * @param out buffer with room for fileRequestLength(filename) bytes
+     * @param filename name of the file
+     * @param hash SHA-1 hash of the file
+     * @param start offset of the first byte requested
+     * @param end offset after the last byte requested
+     */
+    public static void writeFileRequest(ByteBuffer out, String filename, byte[] hash, long start, long end) {
+        checkLength(hash, HASH_LENGTH);
+        writeUTF(out, filename);
+        out.put(hash).putLong(start).putLong(end);
+    }
+
+    /**
+     * Reads a FILE_REQUEST payload.
+     * @param in the remaining bytes of the buffer are the payload
+     * @return the file request
+     * @throws ProtocolException if the payload is malformed
+     */
+    public static FileRequest readFileRequest(ByteBuffer in) throws ProtocolException {
+        FileRequest request = new FileRequest(readUTF(in), readBytes(in, HASH_LENGTH), readLong(in), readLong(in));
+        expectEnd(in);
+        return request;
+    }
+
+    /**
+     * Counts the bytes a string encodes to in modified UTF-8.
+     * @param s the string
+     * @return the number of bytes, without the two length bytes
+     */
+    public static int utfLength(String s) {
+        int length = 0;
+        for(int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            length += c >= 0x01 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        return length;
+    }
+
+    /**
+     * Writes a string the way DataOutput.writeUTF does.
+     * @param out buffer with room for 2 + utfLength(s) bytes
+     * @param s the string
+     * @throws IllegalArgumentException if the string encodes to more than 65535 bytes
+     */
+    public static void writeUTF(ByteBuffer out, String s) {
+        int length = utfLength(s);
+        if(length > MAXIMUM_UTF_LENGTH) {
+            throw new IllegalArgumentException("String too long: "+length+" bytes");
+        }
+        out.putShort((short) length);
+
+        for(int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if(c >= 0x01 && c <= 0x7F) {
+                out.put((byte) c);
+            } else if(c <= 0x7FF) {
+                out.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else {
+                out.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Reads a string the way DataInput.readUTF does.
+     * @param in buffer positioned at the two length bytes
+     * @return the string
+     * @throws ProtocolException if the string runs past the buffer or is malformed
+     */
+    public static String readUTF(ByteBuffer in) throws ProtocolException {
+        int length = readUnsignedShort(in);
+        if(in.remaining() < length) {
+            throw new ProtocolException("String runs past the end of the payload");
+        }
+
+        int start = in.position();
+        int end = start + length;
+        int i = start;
+        while(i < end && in.get(i) > 0) {
+            ++i;
+        }
+        if(i == end) {
+            // the common case, nothing but ASCII
+            in.position(end);
+            return ascii(in, start, length);
+        }
+
+        char[] chars = new char[length];
+        int count = 0;
+        for(i = start; i < end; ++count) {
+            int a = in.get(i) & 0xFF;
+            if(a >= 0x01 && a <= 0x7F) {
+                chars[count] = (char) a;
+                i += 1;
+            } else if((a & 0xE0) == 0xC0 && i + 1 < end && (in.get(i + 1) & 0xC0) == 0x80) {
+                chars[count] = (char) ((a & 0x1F) << 6 | in.get(i + 1) & 0x3F);
+                i += 2;
+            } else if((a & 0xF0) == 0xE0 && i + 2 < end && (in.get(i + 1) & 0xC0) == 0x80
+                    && (in.get(i + 2) & 0xC0) == 0x80) {
+                chars[count] = (char) ((a & 0x0F) << 12 | (in.get(i + 1) & 0x3F) << 6 | in.get(i + 2) & 0x3F);
+                i += 3;
+            } else {
+                throw new ProtocolException("Malformed string at byte "+(i - start));
+            }
+        }
+        in.position(end);
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Decodes ASCII bytes without moving the buffer's position, heap buffers are decoded in place.
+     */
+    private static String ascii(ByteBuffer in, int offset, int length) {
+        if(in.hasArray()) {
+            return new String(in.array(), in.arrayOffset() + offset, length, StandardCharsets.ISO_8859_1);
+        }
+        byte[] bytes = new byte[length];
+        in.get(offset, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int readUnsignedByte(ByteBuffer in) throws ProtocolException {
+        require(in, 1);
+        return in.get() & 0xFF;
+    }
+
+    private static int readUnsignedShort(ByteBuffer in) throws ProtocolException {
+        require(in, 2);
+        return in.getShort() & 0xFFFF;
+    }
+
+    private static int readInt(ByteBuffer in) throws ProtocolException {
+        require(in, 4);
+        return in.getInt();
+    }
+
+    private static long readLong(ByteBuffer in) throws ProtocolException {
+        require(in, 8);
+        return in.getLong();
+    }
+
+    private static byte[] readBytes(ByteBuffer in, int length) throws ProtocolException {
+        require(in, length);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static void require(ByteBuffer in, int length) throws ProtocolException {
+        if(in.remaining() < length) {
+            throw new ProtocolException("Payload too short");
+        }
+    }
+
+    private static void expectEnd(ByteBuffer in) throws ProtocolException {
+        if(in.hasRemaining()) {
+            throw new ProtocolException(in.remaining()+" unexpected bytes after the payload");
+        }
+    }
+
+    private static void checkLength(byte[] bytes, int length) {
+        if(bytes.length != length) {
+            throw new IllegalArgumentException("Expected "+length+" bytes, got "+bytes.length);
+        }
+    }
+
+    /**
+     * A decoded PING payload.
+     */
+    public static class Ping {
+        private final String greeting;
+        private final int initialPort;
+        private final boolean ultrapeer;
+
+        private Ping(String greeting, int initialPort, boolean ultrapeer) {
+            this.greeting = greeting;
+            this.initialPort = initialPort;
+            this.ultrapeer = ultrapeer;
+        }
+
+        public String getGreeting() {
+            return greeting;
+        }
+
+        public int getInitialPort() {
+            return initialPort;
+        }
+
+        public boolean isUltrapeer() {
+            return ultrapeer;
+        }
+    }
+
+    /**
+     * A decoded PONG payload.
+     */
+    public static class Pong {
+        private final String greeting;
+        private final int port;
+        private final byte[] address;
+        private final int fileCount;
+        private final int byteCount;
+        private final int flags;
+        private final int score;
+
+        private Pong(String greeting, int port, byte[] address, int fileCount, int byteCount, int flags,
+                     int score) {
+            this.greeting = greeting;
+            this.port = port;
+            this.address = address;
+            this.fileCount = fileCount;
+            this.byteCount = byteCount;
+            this.flags = flags;
+            this.score = score;
+        }
+
+        public String getGreeting() {
+            return greeting;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public byte[] getAddress() {
+            return address;
+        }
+
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        public int getByteCount() {
+            return byteCount;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public boolean isUltrapeer() {
+            return (flags & PONG_ULTRAPEER) != 0;
+        }
+
+        public boolean isIsolated() {
+            return (flags & PONG_ISOLATED) != 0;
+        }
+
+        public boolean isAccepted() {
+            return (flags & PONG_ACCEPTED) != 0;
+        }
+
+        public boolean hasUltrapeerSlots() {
+            return (flags & PONG_ULTRAPEER_SLOTS) != 0;
+        }
+
+        public boolean hasLeafSlots() {
+            return (flags & PONG_LEAF_SLOTS) != 0;
+        }
+
+        public int getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * A decoded QUERY payload.
+     */
+    public static class Query {
+        private final String requestId;
+        private final String search;
+        private final int senderPort;
+        private final int ttl;
+
+        private Query(String requestId, String search, int senderPort, int ttl) {
+            this.requestId = requestId;
+            this.search = search;
+            this.senderPort = senderPort;
+            this.ttl = ttl;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public String getSearch() {
+            return search;
+        }
+
+        public int getSenderPort() {
+            return senderPort;
+        }
+
+        public int getTtl() {
+            return ttl;
+        }
+    }
+
+    /**
+     * A decoded WALKER payload.
+     */
+    public static class Walker extends Query {
+        private final int originPort;
+
+        private Walker(String requestId, String search, int senderPort, int ttl, int originPort) {
+            super(requestId, search, senderPort, ttl);
+            this.originPort = originPort;
+        }
+
+        public int getOriginPort() {
+            return originPort;
+        }
+    }
+
+    /**
+     * A decoded WALKER_CHECK payload.
+     */
+    public static class WalkerCheck {
+        private final String requestId;
+        private final int status;
+
+        private WalkerCheck(String requestId, int status) {
+            this.requestId = requestId;
+            this.status = status;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * A decoded QUERY_HIT payload.
+     */
+    public static class QueryHit {
+        private final String requestId;
+        private final byte[] address;
+        private final int port;
+        private final String filename;
+        private final long size;
+        private final byte[] hash;
+
+        private QueryHit(String requestId, byte[] address, int port, String filename, long size, byte[] hash) {
+            this.requestId = requestId;
+            this.address = address;
+            this.port = port;
+            this.filename = filename;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public byte[] getAddress() {
+            return address;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+    }
+
+    /**
+     * A decoded FILE_REQUEST payload.
+     */
+    public static class FileRequest {
+        private final String filename;
+        private final byte[] hash;
+        private final long start;
+        private final long end;
+
+        private FileRequest(String filename, byte[] hash, long start, long end) {
+            this.filename = filename;
+            this.hash = hash;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+    }
+}
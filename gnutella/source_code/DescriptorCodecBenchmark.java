@@ -0,0 +1,312 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+
+import java.net.ProtocolException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+
+
+/**
+ * DescriptorCodecBenchmark checks that every descriptor DescriptorCodec encodes decodes back to
+ * the same values, byte for byte the way DataOutputStream used to encode it, and that malformed
+ * payloads are rejected. It then times encoding and decoding a QUERY both with the codec and
+ * the way ChakNode used to, and reports the bytes allocated per descriptor. Only encoding is
+ * expected to allocate nothing, decoding allocates the descriptor and the strings it holds.
+ *
+ *     java DescriptorCodecBenchmark [iterations]
+ */
+public class DescriptorCodecBenchmark {
+
+    private static final byte[] ID = "1234567890123456".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ADDRESS = {127, 0, 0, 1};
+    private static final byte[] HASH = new byte[20];
+
+    private static final byte QUERY = 0x70;
+
+    private static final String REQUEST_ID = "5123123456789012";
+    private static final String SEARCH = "port_5123_file_77.txt";
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        Arrays.fill(HASH, (byte) 0xAB);
+
+        roundTrips(ByteBuffer.allocate(4096));
+        roundTrips(ByteBuffer.allocateDirect(4096));
+        rejections();
+        System.out.println("All round trips passed");
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(256);
+        ByteBuffer heap = ByteBuffer.allocate(256);
+        for(int round = 0; round < 3; ++round) {
+            // the first rounds warm up the JIT
+            report("DataOutputStream", iterations, () -> streams());
+            report("codec, heap buffer", iterations, () -> codec(heap));
+            report("codec, direct buffer", iterations, () -> codec(direct));
+            report("codec, encoding only", iterations, () -> encode(direct));
+            System.out.println();
+        }
+    }
+
+    /**
+     * Encodes and decodes one of each descriptor.
+     */
+    private static void roundTrips(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        DescriptorCodec.writeHeader(buffer, ID, QUERY, 255, 7, 1234);
+        Descriptor header = DescriptorCodec.readHeader(buffer, 0);
+        check(header.getId().equals("1234567890123456") && header.getPayloadDescriptor() == QUERY
+                && header.getTimeToLive() == 255 && header.getHops() == 7 && header.getPayloadLength() == 1234,
+                "header");
+
+        buffer.clear();
+        DescriptorCodec.writePing(buffer, NeighborConnection.CONNECT, 4321, true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream expected = new DataOutputStream(bytes);
+        expected.writeUTF(NeighborConnection.CONNECT);
+        expected.writeInt(4321);
+        expected.writeByte(1);
+        DescriptorCodec.Ping ping = DescriptorCodec.readPing(flip(buffer, bytes, "ping"));
+        check(ping.getGreeting().equals(NeighborConnection.CONNECT) && ping.getInitialPort() == 4321
+                && ping.isUltrapeer(), "ping");
+
+        buffer.clear();
+        int flags = DescriptorCodec.PONG_ISOLATED | DescriptorCodec.PONG_ACCEPTED | DescriptorCodec.PONG_LEAF_SLOTS;
+        DescriptorCodec.writePong(buffer, NeighborConnection.OK, 4321, ADDRESS, 3, 999, flags, 4242);
+        bytes = new ByteArrayOutputStream();
+        expected = new DataOutputStream(bytes);
+        expected.writeUTF(NeighborConnection.OK);
+        expected.writeInt(4321);
+        expected.write(ADDRESS);
+        expected.writeInt(3);
+        expected.writeInt(999);
+        expected.writeByte(flags);
+        expected.writeInt(4242);
+        DescriptorCodec.Pong pong = DescriptorCodec.readPong(flip(buffer, bytes, "pong"));
+        check(pong.getGreeting().equals(NeighborConnection.OK) && pong.getPort() == 4321
+                && Arrays.equals(pong.getAddress(), ADDRESS) && pong.getFileCount() == 3
+                && pong.getByteCount() == 999 && !pong.isUltrapeer() && pong.isIsolated() && pong.isAccepted()
+                && !pong.hasUltrapeerSlots() && pong.hasLeafSlots()
+                && pong.getScore() == 4242, "pong");
+
+        // characters taking one, two and three bytes, and the NUL character which takes two
+        String search = "café ☕ \u0000 " + SEARCH;
+        buffer.clear();
+        DescriptorCodec.writeQuery(buffer, REQUEST_ID, search, 4321, 9);
+        check(buffer.position() == DescriptorCodec.queryLength(REQUEST_ID, search), "query length");
+        bytes = new ByteArrayOutputStream();
+        expected = new DataOutputStream(bytes);
+        expected.writeUTF(REQUEST_ID);
+        expected.writeUTF(search);
+        expected.writeInt(4321);
+        expected.writeInt(9);
+        DescriptorCodec.Query query = DescriptorCodec.readQuery(flip(buffer, bytes, "query"));
+        check(query.getRequestId().equals(REQUEST_ID) && query.getSearch().equals(search)
+                && query.getSenderPort() == 4321 && query.getTtl() == 9, "query");
+
+        buffer.clear();
+        DescriptorCodec.writeWalker(buffer, REQUEST_ID, SEARCH, 4321, 60, 1234);
+        check(buffer.position() == DescriptorCodec.walkerLength(REQUEST_ID, SEARCH), "walker length");
+        bytes = new ByteArrayOutputStream();
+        expected = new DataOutputStream(bytes);
+        expected.writeUTF(REQUEST_ID);
+        expected.writeUTF(SEARCH);
+        expected.writeInt(4321);
+        expected.writeInt(60);
+        expected.writeInt(1234);
+        DescriptorCodec.Walker walker = DescriptorCodec.readWalker(flip(buffer, bytes, "walker"));
+        check(walker.getRequestId().equals(REQUEST_ID) && walker.getSearch().equals(SEARCH)
+                && walker.getSenderPort() == 4321 && walker.getTtl() == 60 && walker.getOriginPort() == 1234,
+                "walker");
+
+        buffer.clear();
+        DescriptorCodec.writeWalkerCheck(buffer, REQUEST_ID, DescriptorCodec.WALKER_STOP);
+        check(buffer.position() == DescriptorCodec.walkerCheckLength(REQUEST_ID), "walker check length");
+        bytes = new ByteArrayOutputStream();
+        expected = new DataOutputStream(bytes);
+        expected.writeUTF(REQUEST_ID);
+        expected.writeByte(DescriptorCodec.WALKER_STOP);
+        DescriptorCodec.WalkerCheck walkerCheck = DescriptorCodec.readWalkerCheck(flip(buffer, bytes, "walker check"));
+        check(walkerCheck.getRequestId().equals(REQUEST_ID) && walkerCheck.getStatus() == DescriptorCodec.WALKER_STOP,
+                "walker check");
+
+        buffer.clear();
+        DescriptorCodec.writeQueryHit(buffer, REQUEST_ID, ADDRESS, 4321, SEARCH, 1L << 40, HASH);
+        check(buffer.position() == DescriptorCodec.queryHitLength(REQUEST_ID, SEARCH), "query hit length");
+        bytes = new ByteArrayOutputStream();
+        expected = new DataOutputStream(bytes);
+        expected.writeUTF(REQUEST_ID);
+        expected.write(ADDRESS);
+        expected.writeInt(4321);
+        expected.writeUTF(SEARCH);
+        expected.writeLong(1L << 40);
+        expected.write(HASH);
+        DescriptorCodec.QueryHit hit = DescriptorCodec.readQueryHit(flip(buffer, bytes, "query hit"));
+        check(hit.getRequestId().equals(REQUEST_ID) && Arrays.equals(hit.getAddress(), ADDRESS)
+                && hit.getPort() == 4321 && hit.getFilename().equals(SEARCH) && hit.getSize() == 1L << 40
+                && Arrays.equals(hit.getHash(), HASH), "query hit");
+
+        buffer.clear();
+        DescriptorCodec.writeFileRequest(buffer, SEARCH, HASH, 10, 20);
+        check(buffer.position() == DescriptorCodec.fileRequestLength(SEARCH), "file request length");
+        bytes = new ByteArrayOutputStream();
+        expected = new DataOutputStream(bytes);
+        expected.writeUTF(SEARCH);
+        expected.write(HASH);
+        expected.writeLong(10);
+        expected.writeLong(20);
+        DescriptorCodec.FileRequest request = DescriptorCodec.readFileRequest(flip(buffer, bytes, "file request"));
+        check(request.getFilename().equals(SEARCH) && Arrays.equals(request.getHash(), HASH)
+                && request.getStart() == 10 && request.getEnd() == 20, "file request");
+    }
+
+    /**
+     * Checks that truncated, padded and malformed payloads are rejected.
+     */
+    private static void rejections() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        DescriptorCodec.writeQuery(buffer, REQUEST_ID, SEARCH, 4321, 9);
+        buffer.flip();
+        int length = buffer.limit();
+
+        for(int cut = 0; cut < length; ++cut) {
+            int at = cut;
+            rejected(() -> DescriptorCodec.readQuery(buffer.duplicate().limit(at)), "query cut at "+cut);
+        }
+        ByteBuffer padded = ByteBuffer.allocate(length + 1).put(buffer.duplicate()).put((byte) 0).flip();
+        rejected(() -> DescriptorCodec.readQuery(padded), "query with a trailing byte");
+
+        // a string length pointing past the end of the payload
+        ByteBuffer overlong = buffer.duplicate();
+        overlong.putShort(0, (short) 0xFFFF);
+        rejected(() -> DescriptorCodec.readQuery(overlong), "overlong string");
+
+        // a two byte sequence missing its second byte
+        ByteBuffer malformed = ByteBuffer.wrap(new byte[] {0, 2, (byte) 0xC3, 'x', 0, 0, 0, 1, 0});
+        rejected(() -> DescriptorCodec.readPing(malformed), "malformed string");
+
+        ByteBuffer negative = ByteBuffer.allocate(Descriptor.HEADER_LENGTH);
+        negative.put(ID).put(QUERY).put((byte) 1).put((byte) 0).putInt(-1);
+        rejected(() -> DescriptorCodec.readHeader(negative, 0), "negative payload length");
+
+        try {
+            DescriptorCodec.writeHeader(ByteBuffer.allocate(Descriptor.HEADER_LENGTH), ID, QUERY, 256, 0, 0);
+            throw new IllegalStateException("Accepted a TTL of 256");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Encodes a QUERY descriptor and decodes it again with the codec, the way ChakNode does.
+     */
+    private static int codec(ByteBuffer buffer) throws IOException {
+        encode(buffer);
+        int payloadLength = DescriptorCodec.readHeader(buffer, 0).getPayloadLength();
+        buffer.position(Descriptor.HEADER_LENGTH);
+        return payloadLength + DescriptorCodec.readQuery(buffer).getTtl();
+    }
+
+    /**
+     * Encodes a QUERY descriptor into a reused buffer, which should allocate nothing.
+     */
+    private static int encode(ByteBuffer buffer) {
+        buffer.clear();
+        DescriptorCodec.writeHeader(buffer, ID, QUERY, 10, 0, DescriptorCodec.queryLength(REQUEST_ID, SEARCH));
+        DescriptorCodec.writeQuery(buffer, REQUEST_ID, SEARCH, 4321, 10);
+        buffer.flip();
+        return buffer.remaining();
+    }
+
+    /**
+     * Encodes a QUERY descriptor and decodes it again the way ChakNode did before the codec.
+     */
+    private static int streams() throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream dOut = new DataOutputStream(payload);
+        byte[] queryPacket = new byte[8];
+        dOut.writeUTF(REQUEST_ID);
+        dOut.writeUTF(SEARCH);
+        ByteBuffer.wrap(queryPacket, 0, 4).putInt(4321);
+        ByteBuffer.wrap(queryPacket, 4, 4).putInt(10);
+        dOut.write(queryPacket);
+        byte[] payloadBytes = payload.toByteArray();
+
+        byte[] header = new byte[23];
+        ByteBuffer.wrap(header, 0, 16).put(new String(ID, StandardCharsets.US_ASCII).getBytes());
+        ByteBuffer.wrap(header, 16, 1).put(QUERY);
+        ByteBuffer.wrap(header, 17, 1).put((byte) 10);
+        ByteBuffer.wrap(header, 18, 1).put((byte) 0);
+        ByteBuffer.wrap(header, 19, 4).putInt(payloadBytes.length);
+        ByteBuffer frame = ByteBuffer.allocate(header.length + payloadBytes.length);
+        frame.put(header).put(payloadBytes).flip();
+
+        byte[] received = new byte[payloadBytes.length];
+        frame.position(23);
+        frame.get(received);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(received));
+        in.readUTF();
+        in.readUTF();
+        in.readInt();
+        return received.length + in.readInt();
+    }
+
+    private static void report(String name, int iterations, Operation operation) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long sink = 0;
+        for(int i = 0; i < iterations; ++i) {
+            sink += operation.run();
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+
+        System.out.printf("%-22s %7.1f ns/descriptor %7.1f bytes allocated/descriptor (%d)%n", name,
+                (double) nanos / iterations, (double) allocated / iterations, sink % 10);
+    }
+
+    /**
+     * Flips an encoded payload and checks it against the bytes DataOutputStream wrote.
+     */
+    private static ByteBuffer flip(ByteBuffer buffer, ByteArrayOutputStream expected, String what) {
+        buffer.flip();
+        byte[] encoded = new byte[buffer.remaining()];
+        buffer.get(buffer.position(), encoded);
+        check(Arrays.equals(encoded, expected.toByteArray()), what+" encoding differs from DataOutputStream");
+        return buffer;
+    }
+
+    private static void rejected(Decoding decoding, String what) {
+        try {
+            decoding.decode();
+        } catch (ProtocolException e) {
+            return;
+        } catch (IOException e) {
+            throw new IllegalStateException(what+" failed with "+e);
+        }
+        throw new IllegalStateException(what+" was accepted");
+    }
+
+    private static void check(boolean passed, String what) {
+        if(!passed) {
+            throw new IllegalStateException(what+" did not round trip");
+        }
+    }
+
+    private interface Operation {
+        int run() throws IOException;
+    }
+
+    private interface Decoding {
+        Object decode() throws IOException;
+    }
+}
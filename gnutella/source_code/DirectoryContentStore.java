@@ -0,0 +1,116 @@
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * A DirectoryContentStore keeps each name's content in a real file of that name in a directory,
+ * the way ChakNodes always stored their files. Content is served from the file with
+ * transferTo(), so the kernel copies it to the socket, but each request opens the file again.
+ */
+public class DirectoryContentStore implements ContentStore {
+
+    private final Path directory;
+
+    /**
+     * Creates the directory, which must not exist yet.
+     * @param directory where the files go
+     * @throws IOException if the directory cannot be created
+     */
+    public DirectoryContentStore(Path directory) throws IOException {
+        this.directory = Files.createDirectory(directory);
+    }
+
+    @Override
+    public void create(String name, byte[] bytes) throws IOException {
+        // a single open creates and writes the file, and fails if it exists
+        Files.write(directory.resolve(name), bytes, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public Content open(String name) throws IOException {
+        try {
+            return new FileContent(FileChannel.open(directory.resolve(name), StandardOpenOption.READ));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Content openPartial(String name, long size) throws IOException {
+        return new FileContent(FileChannel.open(directory.resolve(name), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    @Override
+    public void move(String from, String to) throws IOException {
+        Files.move(directory.resolve(from), directory.resolve(to), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        Files.deleteIfExists(directory.resolve(name));
+    }
+
+    @Override
+    public void clear() throws IOException {
+        if(Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * A file open on a channel of its own.
+     */
+    private static class FileContent implements Content {
+        private final FileChannel file;
+
+        private FileContent(FileChannel file) {
+            this.file = file;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        public int read(ByteBuffer destination, long position) throws IOException {
+            return file.read(destination, position);
+        }
+
+        @Override
+        public int write(ByteBuffer source, long position) throws IOException {
+            return file.write(source, position);
+        }
+
+        @Override
+        public void truncate(long size) throws IOException {
+            file.truncate(size);
+        }
+
+        @Override
+        public void send(Connection connection, ByteBuffer frameHead, long position, long count)
+                throws IOException {
+            // the connection takes the channel over and closes it once the range is sent
+            connection.sendFile(frameHead, file, position, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
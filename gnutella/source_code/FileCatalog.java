@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * A FileCatalog holds the files a ChakNode shares keyed by file name, so a query for a file
+ * name is a single hash lookup however many files are shared. Each entry keeps the size and
+ * SHA-1 hash the file had when it was added, so answering a query does not touch the content
+ * store, and the files are also keyed by the URN of their hash (see Urn): a search for a URN
+ * skips the names altogether and finds the files with that content.
+ *
+ * The names are also indexed by keyword (see KeywordIndex), so a query for some of the words
+ * in a name costs about as much as the exact lookup.
+ *
+ * The catalog is safe to read and update from any thread, updates are serialized but lookups
+ * and searches never wait for them. Adding a file under a name which is already taken replaces
+ * the older entry.
+ */
+public class FileCatalog implements Iterable<FileCatalog.Entry> {
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * the entries of every URN shared, oldest first. Files with the same content are rare, so an
+     * array is simply replaced whenever one of them is added or removed.
+     */
+    private final ConcurrentHashMap<String, Entry[]> byUrn = new ConcurrentHashMap<>();
+    private final KeywordIndex keywords = new KeywordIndex();
+
+    /**
+     * Adds a file whose size and hash are already known.
+     * @param name file name, without any directory
+     * @param size size of the file in bytes
+     * @param hash SHA-1 hash of the file
+     * @return the new entry
+     */
+    public synchronized Entry add(String name, long size, byte[] hash) {
+        Entry entry = new Entry(name, size, hash);
+        Entry replaced = entries.put(entry.getName(), entry);
+        if(replaced != null) {
+            removeUrn(replaced);
+        }
+        byUrn.merge(entry.getUrn(), new Entry[] {entry}, (same, added) -> {
+            Entry[] more = Arrays.copyOf(same, same.length + 1);
+            more[same.length] = entry;
+            return more;
+        });
+        keywords.add(entry.getName());
+        return entry;
+    }
+
+    /**
+     * Stops sharing a file, its name leaves the keyword index as well.
+     * @param name file name, without any directory
+     * @return the removed entry or null if no such file is shared
+     */
+    public synchronized Entry remove(String name) {
+        Entry removed = entries.remove(name);
+        if(removed != null) {
+            removeUrn(removed);
+            keywords.remove(name);
+        }
+        return removed;
+    }
+
+    /**
+     * Drops an entry from the entries of its URN, another file with the same content is found by
+     * getByHash() from now on.
+     */
+    private void removeUrn(Entry removed) {
+        byUrn.computeIfPresent(removed.getUrn(), (urn, same) -> {
+            Entry[] rest = new Entry[same.length - 1];
+            int kept = 0;
+            for(Entry entry : same) {
+                if(entry != removed) {
+                    if(kept == rest.length) {
+                        // not among them
+                        return same;
+                    }
+                    rest[kept++] = entry;
+                }
+            }
+            return rest.length == 0 ? null : rest;
+        });
+    }
+
+    /**
+     * Finds the files whose names contain every keyword of a query, or the file with a hash if
+     * the query is a URN.
+     * @param query one or more keywords, separated by anything other than letters and digits,
+     *              or a URN
+     * @param limit most files to return
+     * @return the matching files, oldest first
+     */
+    public List<Entry> search(String query, int limit) {
+        List<Entry> matches = new ArrayList<>();
+        byte[] hash = Urn.parse(query);
+        if(hash != null) {
+            Entry entry = getByHash(hash);
+            if(entry != null && limit > 0) {
+                matches.add(entry);
+            }
+            return matches;
+        }
+
+        // a name the index still holds may have been removed from the catalog meanwhile, the
+        // index is then asked for more names until there are limit files or no more names
+        int asked = limit;
+        while(true) {
+            List<String> names = keywords.search(query, asked);
+            matches.clear();
+            for(String name : names) {
+                Entry entry = entries.get(name);
+                if(entry != null && matches.size() < limit) {
+                    matches.add(entry);
+                }
+            }
+            if(matches.size() >= limit || names.size() < asked) {
+                return matches;
+            }
+            asked = asked > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : asked * 2;
+        }
+    }
+
+    /**
+     * @param name file name, without any directory
+     * @return the entry for the name or null if no such file is shared
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @param hash SHA-1 hash of a file
+     * @return an entry of a file with that hash, or null if no such file is shared. Of files
+     * with the same content the one shared longest is found
+     */
+    public Entry getByHash(byte[] hash) {
+        Entry[] same = byUrn.get(Urn.of(hash));
+        return same == null ? null : same[0];
+    }
+
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        return entries.values().iterator();
+    }
+
+    /**
+     * A shared file.
+     */
+    public static class Entry {
+        private final String name;
+        private final long size;
+        private final byte[] hash;
+        private final String urn;
+
+        private Entry(String name, long size, byte[] hash) {
+            this.name = name;
+            this.size = size;
+            this.hash = hash.clone();
+            this.urn = Urn.of(hash);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return SHA-1 hash of the file, not to be modified
+         */
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public String getUrn() {
+            return urn;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+
+/**
+ * The HostCache remembers the ChakNodes seen recently, whether through their pongs or as
+ * neighbors, and keeps them on disk so that a ChakNode restarted on the same port tries them
+ * before scanning for neighbors. For each one it keeps when it was last seen, its uptime in
+ * minutes (from the score of its pongs), the round trip from a ping to its pong and whether it is
+ * an ultrapeer.
+ *
+ * Hosts are ranked by freshness first, counted in whole minutes so that hosts seen together
+ * compare on the rest, then by uptime, since a ChakNode which has been up for long is likely to
+ * still be, then by latency. Hosts not seen for MAXIMUM_AGE are forgotten and the cache never
+ * holds more than its capacity, the host seen longest ago is dropped first.
+ *
+ * The file has one line per host: port, last seen (milliseconds since the epoch), uptime in
+ * minutes, latency in milliseconds (-1 if unknown) and 1 for an ultrapeer or 0 for a leaf. It is
+ * written to a temporary file first and moved into place, so a ChakNode killed while saving
+ * leaves the previous one intact.
+ */
+public class HostCache {
+
+    /**
+     * Milliseconds after which a host which has not been seen again is forgotten.
+     */
+    private static final long MAXIMUM_AGE = 24 * 60 * 60 * 1000;
+
+    /**
+     * Weight of the latest round trip in the latency kept for a host.
+     */
+    private static final double LATENCY_WEIGHT = 0.25;
+
+    private final Path file;
+    private final int capacity;
+
+    /**
+     * hosts by port, least recently seen first, guarded by itself.
+     */
+    private final LinkedHashMap<Integer, Host> hosts = new LinkedHashMap<>();
+
+    /**
+     * true once the hosts changed since they were last saved, guarded by hosts.
+     */
+    private boolean changed;
+
+    /**
+     * Creates a host cache holding the hosts saved in the file, if there is one. Lines which
+     * cannot be read are skipped.
+     * @param file where the hosts are saved, or null to keep them in memory only
+     * @param capacity most hosts held at once
+     */
+    public HostCache(Path file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+        if(file == null) {
+            return;
+        }
+
+        long oldest = System.currentTimeMillis() - MAXIMUM_AGE;
+        List<Host> saved = new ArrayList<>();
+        try {
+            for(String line : Files.readAllLines(file, StandardCharsets.US_ASCII)) {
+                String[] fields = line.trim().split(" ");
+                try {
+                    Host host = new Host(Integer.parseInt(fields[0]), fields[4].equals("1"),
+                            Long.parseLong(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+                    if(host.lastSeen > oldest) {
+                        saved.add(host);
+                    }
+                } catch (RuntimeException e) {
+                    // not a host line
+                }
+            }
+        } catch (IOException e) {
+            // nothing saved yet
+        }
+        saved.sort(Comparator.comparingLong(host -> host.lastSeen));
+        for(Host host : saved) {
+            hosts.remove(host.port);
+            hosts.put(host.port, host);
+        }
+        trim();
+    }
+
+    /**
+     * Records a host seen just now.
+     * @param port listening port of the host
+     * @param ultrapeer true if the host is an ultrapeer
+     * @param uptimeMinutes minutes the host has been up, or -1 to keep the one known
+     * @param latencyMillis round trip from a ping to the host's pong, or -1 if it was not measured
+     */
+    public void seen(int port, boolean ultrapeer, int uptimeMinutes, int latencyMillis) {
+        synchronized (hosts) {
+            Host host = hosts.remove(port);
+            if(host == null) {
+                host = new Host(port, ultrapeer, 0, Math.max(uptimeMinutes, 0), latencyMillis);
+            } else {
+                host.ultrapeer = ultrapeer;
+                if(uptimeMinutes >= 0) {
+                    host.uptimeMinutes = uptimeMinutes;
+                }
+                if(latencyMillis >= 0) {
+                    host.latencyMillis = host.latencyMillis < 0 ? latencyMillis
+                            : (int) Math.round(LATENCY_WEIGHT * latencyMillis + (1 - LATENCY_WEIGHT) * host.latencyMillis);
+                }
+            }
+            host.lastSeen = System.currentTimeMillis();
+            hosts.put(port, host);
+            changed = true;
+            trim();
+        }
+    }
+
+    /**
+     * @param ultrapeers true for the ultrapeers only, false for every host
+     * @return the ports of the hosts, best ranked first
+     */
+    public List<Integer> ports(boolean ultrapeers) {
+        List<Host> ranked = new ArrayList<>();
+        synchronized (hosts) {
+            for(Host host : hosts.values()) {
+                if(host.ultrapeer || !ultrapeers) {
+                    ranked.add(host.copy());
+                }
+            }
+        }
+        ranked.sort(Comparator.comparingLong((Host host) -> -host.lastSeen / 60000)
+                .thenComparingInt(host -> -host.uptimeMinutes)
+                .thenComparingInt(host -> host.latencyMillis < 0 ? Integer.MAX_VALUE : host.latencyMillis));
+
+        List<Integer> ports = new ArrayList<>(ranked.size());
+        for(Host host : ranked) {
+            ports.add(host.port);
+        }
+        return ports;
+    }
+
+    /**
+     * Writes the hosts to the file if they changed since they were last saved, does nothing
+     * without a file.
+     * @throws IOException if the file cannot be written
+     */
+    public void save() throws IOException {
+        if(file == null) {
+            return;
+        }
+        List<Host> saved = new ArrayList<>();
+        synchronized (hosts) {
+            if(!changed) {
+                return;
+            }
+            changed = false;
+            for(Host host : hosts.values()) {
+                saved.add(host.copy());
+            }
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName()+".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.US_ASCII)) {
+            for(Host host : saved) {
+                out.write(host.port+" "+host.lastSeen+" "+host.uptimeMinutes+" "+host.latencyMillis+" "
+                        +(host.ultrapeer ? 1 : 0));
+                out.newLine();
+            }
+        } catch (IOException e) {
+            synchronized (hosts) {
+                changed = true;
+            }
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int size() {
+        synchronized (hosts) {
+            return hosts.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "hosts="+size()+"/"+capacity;
+    }
+
+    /**
+     * Drops the hosts seen longest ago until the capacity is respected. Called with hosts held.
+     */
+    private void trim() {
+        Iterator<Host> oldest = hosts.values().iterator();
+        while(hosts.size() > capacity) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * A host and what is known of it.
+     */
+    private static class Host {
+        private final int port;
+        private boolean ultrapeer;
+        private long lastSeen;
+        private int uptimeMinutes;
+        private int latencyMillis;
+
+        private Host(int port, boolean ultrapeer, long lastSeen, int uptimeMinutes, int latencyMillis) {
+            this.port = port;
+            this.ultrapeer = ultrapeer;
+            this.lastSeen = lastSeen;
+            this.uptimeMinutes = uptimeMinutes;
+            this.latencyMillis = latencyMillis;
+        }
+
+        private Host copy() {
+            return new Host(port, ultrapeer, lastSeen, uptimeMinutes, latencyMillis);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A KeywordIndex is an inverted index over file names. A name is split into keywords at every
+ * character which is not a letter or a digit ("port_1234_file_77.txt" has the keywords port,
+ * 1234, file, 77 and txt) and each keyword maps to a posting list of the names containing it.
+ *
+ * Names are numbered in the order they are added, so every posting list is a sorted int array
+ * which grows at its end. A query matches the names containing all of its keywords, found by
+ * walking the shortest posting list and looking each of its names up in the others, so a query
+ * costs about the length of its posting lists however many names are indexed.
+ *
+ * Removing a name takes its number out of its posting lists and leaves a gap in the numbers.
+ * Once the gaps are half of the numbers the names left are renumbered, in the same order, so a
+ * catalog whose files keep changing does not grow the index without bound.
+ *
+ * Queries run concurrently, adding or removing a name briefly excludes them.
+ */
+public class KeywordIndex {
+
+    /**
+     * Gaps in the numbers below which the names are never renumbered.
+     */
+    private static final int MINIMUM_GAPS = 64;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * every name indexed, a name's position is its number in the posting lists. Removed names
+     * leave a null until the names are renumbered.
+     */
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * number of nulls in names.
+     */
+    private int gaps;
+
+    /**
+     * number of every name indexed, so a name is only indexed once.
+     */
+    private final HashMap<String, Integer> numbers = new HashMap<>();
+
+    private final HashMap<String, PostingList> postings = new HashMap<>();
+
+    /**
+     * Splits a file name or query into lower case keywords, each keyword appears once.
+     * @param text file name or query
+     * @return the keywords in the order they appear
+     */
+    public static Set<String> keywords(String text) {
+        Set<String> keywords = new LinkedHashSet<>();
+        for(String keyword : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if(!keyword.isEmpty()) {
+                keywords.add(keyword);
+            }
+        }
+        return keywords;
+    }
+
+    /**
+     * Adds a name to the index, a name already indexed is left alone.
+     * @param name file name
+     */
+    public void add(String name) {
+        lock.writeLock().lock();
+        try {
+            if(numbers.containsKey(name)) {
+                return;
+            }
+            int number = names.size();
+            names.add(name);
+            numbers.put(name, number);
+
+            for(String keyword : keywords(name)) {
+                postings.computeIfAbsent(keyword, k -> new PostingList()).add(number);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a name from the index, a name which is not indexed is left alone.
+     * @param name file name
+     */
+    public void remove(String name) {
+        lock.writeLock().lock();
+        try {
+            Integer number = numbers.remove(name);
+            if(number == null) {
+                return;
+            }
+            names.set(number, null);
+            for(String keyword : keywords(name)) {
+                PostingList list = postings.get(keyword);
+                list.remove(number);
+                if(list.size == 0) {
+                    postings.remove(keyword);
+                }
+            }
+
+            if(++gaps >= MINIMUM_GAPS && gaps * 2 >= names.size()) {
+                renumber();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Numbers the names left without gaps, keeping their order so that every posting list stays
+     * sorted. Called with the write lock held.
+     */
+    private void renumber() {
+        int[] renumbered = new int[names.size()];
+        int next = 0;
+        for(int number = 0; number < names.size(); ++number) {
+            String name = names.get(number);
+            if(name != null) {
+                renumbered[number] = next;
+                names.set(next, name);
+                numbers.put(name, next);
+                ++next;
+            }
+        }
+        names.subList(next, names.size()).clear();
+        gaps = 0;
+
+        for(PostingList list : postings.values()) {
+            for(int i = 0; i < list.size; ++i) {
+                list.numbers[i] = renumbered[list.numbers[i]];
+            }
+        }
+    }
+
+    /**
+     * Finds the names containing every keyword of a query.
+     * @param query one or more keywords
+     * @param limit most names to return
+     * @return the matching names in the order they were added, none if the query has no keywords
+     */
+    public List<String> search(String query, int limit) {
+        List<String> matches = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            List<PostingList> lists = new ArrayList<>();
+            for(String keyword : keywords(query)) {
+                PostingList list = postings.get(keyword);
+                if(list == null) {
+                    return matches;
+                }
+                lists.add(list);
+            }
+            if(lists.isEmpty()) {
+                return matches;
+            }
+            lists.sort(Comparator.comparingInt(list -> list.size));
+
+            // the shortest list drives, every other list only moves forward so each is searched
+            // from where the previous number was found
+            PostingList shortest = lists.get(0);
+            int[] from = new int[lists.size()];
+            candidates:
+            for(int i = 0; i < shortest.size && matches.size() < limit; ++i) {
+                int number = shortest.numbers[i];
+                for(int l = 1; l < lists.size(); ++l) {
+                    PostingList list = lists.get(l);
+                    int found = Arrays.binarySearch(list.numbers, from[l], list.size, number);
+                    if(found < 0) {
+                        from[l] = -found - 1;
+                        if(from[l] == list.size) {
+                            break candidates;
+                        }
+                        continue candidates;
+                    }
+                    from[l] = found + 1;
+                }
+                matches.add(names.get(number));
+            }
+            return matches;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The numbers of the names containing a keyword, in ascending order.
+     */
+    private static class PostingList {
+        private int[] numbers = new int[2];
+        private int size;
+
+        private void add(int number) {
+            if(size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+            }
+            numbers[size++] = number;
+        }
+
+        private void remove(int number) {
+            int found = Arrays.binarySearch(numbers, 0, size, number);
+            if(found < 0) {
+                return;
+            }
+            System.arraycopy(numbers, found + 1, numbers, found, size - found - 1);
+            --size;
+            if(numbers.length > 2 && size < numbers.length / 4) {
+                numbers = Arrays.copyOf(numbers, numbers.length / 2);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * A MappedContentStore keeps content in segment files of a directory, each one mapped into memory
+ * (see SegmentContentStore). The operating system pages the content in and out, so a catalog
+ * larger than the heap can be shared, and hot content is served from the page cache without a
+ * system call per request.
+ *
+ * The segment files are named segment_0, segment_1 and so on, the names of the content are only
+ * known to the store. A mapping cannot be released by hand, so clearing the store deletes the
+ * segment files and the space goes back to the disk once the garbage collector drops the mapping.
+ */
+public class MappedContentStore extends SegmentContentStore {
+
+    private final Path directory;
+    private int segments;
+
+    /**
+     * Creates the directory, which must not exist yet.
+     * @param directory where the segment files go
+     * @throws IOException if the directory cannot be created
+     */
+    public MappedContentStore(Path directory) throws IOException {
+        this.directory = Files.createDirectory(directory);
+    }
+
+    @Override
+    protected ByteBuffer newSegment(int capacity) throws IOException {
+        try (FileChannel file = FileChannel.open(directory.resolve("segment_"+segments++),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid once the channel is closed
+            return file.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    @Override
+    protected void releaseSegments() throws IOException {
+        if(Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+}
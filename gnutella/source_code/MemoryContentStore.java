@@ -0,0 +1,22 @@
+import java.nio.ByteBuffer;
+
+
+/**
+ * A MemoryContentStore keeps content in off-heap segments (see SegmentContentStore), so a
+ * simulated network can share many files without any disk I/O and without the content weighing
+ * on the garbage collector. Everything is lost when the ChakNode is killed.
+ */
+public class MemoryContentStore extends SegmentContentStore {
+
+    @Override
+    protected ByteBuffer newSegment(int capacity) {
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Direct buffers are freed once the garbage collector finds them unreachable.
+     */
+    @Override
+    protected void releaseSegments() {
+    }
+}
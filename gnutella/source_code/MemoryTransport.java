@@ -0,0 +1,688 @@
+import java.io.IOException;
+
+import java.net.Inet4Address;
+import java.net.ProtocolException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+
+/**
+ * The MemoryTransport connects the ChakNodes of one JVM without a single socket, for simulating
+ * networks far larger than the ports and file descriptors of a machine allow. Binding a port
+ * only takes an entry in a registry shared by the whole JVM, and a connection is a pair of
+ * MemoryConnections, each end holding a queue of the frames sent to it by the other.
+ *
+ * A frame sent is queued as it is, header, payload and any file region alike, and is never
+ * copied into a byte stream. Each connection is drained by one virtual thread at a time (none
+ * while its queue is empty), which parses the header with DescriptorCodec and hands the
+ * descriptor to the listener just as a ConnectionTable in virtual-thread mode would: descriptors
+ * arrive in the order they were sent, and a payload the listener streams is fed to it in pieces,
+ * with the drain stopping whenever the stream backs up. Like a ConnectionTable, a transport runs at
+ * most maximumVirtualThreads of these virtual threads at once, a connection due for a drain
+ * beyond that waits for one of them to end rather than holding up the ChakNode sending to it.
+ *
+ * Nothing is delivered to a transport until serve() has been called, the same way a server
+ * channel accepts connections before its ChakNode reads them. Connecting to a port nobody bound
+ * fails straight away, so discovery probes are answered at once. Sends are neither batched nor
+ * compressed.
+ */
+public class MemoryTransport implements Transport {
+
+    /**
+     * Bounds of the ports which can be bound, far wider than TCP's so that a network of a hundred
+     * thousand ChakNodes stays sparse enough to find free ports at random, yet narrow enough for
+     * a ChakNode alone in it to scan the whole range during discovery.
+     */
+    public static final int LOWEST_PORT = 1024;
+    public static final int HIGHEST_PORT = 1 << 18;
+
+    /**
+     * Size of the pieces a file region is read in when its payload is streamed.
+     */
+    private static final int FILE_PIECE = 64 * 1024;
+
+    /**
+     * every bound transport of this JVM by port.
+     */
+    private static final ConcurrentHashMap<Integer, MemoryTransport> BOUND = new ConcurrentHashMap<>();
+
+    /**
+     * drains the connections of every transport and tells listeners of closed connections.
+     */
+    private static final ExecutorService DELIVERY = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("memory-transport-", 0).factory());
+
+    private final int localPort;
+    private final Listener listener;
+
+    /**
+     * caps the drains and close notifications of this transport running at once, and holds
+     * those waiting for a permit in the order they were due.
+     */
+    private final Semaphore deliveryPermits;
+    private final ConcurrentLinkedQueue<Runnable> waitingDeliveries = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean open = true;
+
+    /**
+     * false until serve() has been called, nothing is delivered before.
+     */
+    private volatile boolean serving;
+
+    /**
+     * open connections keyed by the listening port of the ChakNode on the other end.
+     */
+    private final ConcurrentHashMap<Integer, MemoryConnection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * every open connection, including transfer connections and duplicates which lost the race
+     * for a slot in connections because both ChakNodes connected to each other at the same time.
+     */
+    private final Set<MemoryConnection> all = ConcurrentHashMap.newKeySet();
+
+    private MemoryTransport(int localPort, Listener listener, int maximumVirtualThreads) {
+        this.localPort = localPort;
+        this.listener = listener;
+        deliveryPermits = new Semaphore(maximumVirtualThreads);
+    }
+
+    /**
+     * Binds a port of this JVM.
+     * @param port port to bind, between LOWEST_PORT and HIGHEST_PORT
+     * @param listener receives descriptors and connection closes once the transport serves
+     * @param maximumVirtualThreads the most virtual threads the transport delivers on at once
+     * @return the transport bound to the port, or null if the port is taken
+     */
+    public static MemoryTransport bind(int port, Listener listener, int maximumVirtualThreads) {
+        if(port < LOWEST_PORT || port > HIGHEST_PORT) {
+            return null;
+        }
+        MemoryTransport transport = new MemoryTransport(port, listener, maximumVirtualThreads);
+        return BOUND.putIfAbsent(port, transport) == null ? transport : null;
+    }
+
+    @Override
+    public int getPort() {
+        return localPort;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Starts delivering what the connections received so far, and returns at once since the
+     * connections are drained on virtual threads.
+     */
+    @Override
+    public void serve() {
+        serving = true;
+        for(MemoryConnection connection : all) {
+            connection.schedule();
+        }
+    }
+
+    /**
+     * Runs the send on the calling thread, a send only queues the frame so it never holds up
+     * the others.
+     */
+    @Override
+    public void fanOut(Runnable send) {
+        send.run();
+    }
+
+    @Override
+    public boolean send(int port, ByteBuffer frame) {
+        for(int attempt = 0; attempt < 2; ++attempt) {
+            Connection connection = connect(port);
+            if(connection == null) {
+                return false;
+            }
+            try {
+                connection.send(frame.duplicate());
+                return true;
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Connection connect(int port) {
+        MemoryConnection connection = connections.get(port);
+        if(connection != null && !connection.isClosed()) {
+            return connection;
+        }
+
+        connection = open(port, false);
+        if(connection == null) {
+            return null;
+        }
+
+        // if another thread connected to the same port meanwhile, both connections stay open
+        // rather than closing one under the other ChakNode's feet
+        return register(connection);
+    }
+
+    @Override
+    public Connection openTransfer(Inet4Address host, int port) {
+        return open(port, true);
+    }
+
+    /**
+     * Connects a new pair of connections between this transport and the one bound to a port,
+     * the far end is registered with its transport and this end is only added to all.
+     * @return this end, or null if nothing is bound to the port
+     */
+    private MemoryConnection open(int port, boolean transfer) {
+        MemoryTransport remote = BOUND.get(port);
+        if(remote == null || !open) {
+            return null;
+        }
+
+        MemoryConnection local = new MemoryConnection(this, port, transfer);
+        MemoryConnection far = new MemoryConnection(remote, localPort, transfer);
+        local.peer = far;
+        far.peer = local;
+
+        if(!remote.accept(far) || !start(local)) {
+            close(local);
+            return null;
+        }
+        return local;
+    }
+
+    /**
+     * Takes the far end of a connection opened by another transport.
+     * @return false if this transport has been closed
+     */
+    private boolean accept(MemoryConnection connection) {
+        if(!start(connection)) {
+            return false;
+        }
+        register(connection);
+        return true;
+    }
+
+    /**
+     * Adds a connection to all, closing it if this transport was closed meanwhile.
+     * @return false if this transport has been closed
+     */
+    private boolean start(MemoryConnection connection) {
+        all.add(connection);
+        if(!open) {
+            close(connection);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a connection to the table unless one to the same port is already open. Transfer
+     * connections are left out of the table.
+     * @return the connection now in the table
+     */
+    private MemoryConnection register(MemoryConnection connection) {
+        if(connection.isTransfer()) {
+            return connection;
+        }
+        MemoryConnection existing = connections.putIfAbsent(connection.getRemotePort(), connection);
+        if(existing == null) {
+            return connection;
+        }
+        if(existing.isClosed() && connections.replace(connection.getRemotePort(), existing, connection)) {
+            return connection;
+        }
+        return existing;
+    }
+
+    @Override
+    public void disconnect(int port) {
+        MemoryConnection connection = connections.get(port);
+        if(connection != null) {
+            close(connection);
+        }
+    }
+
+    @Override
+    public boolean isConnected(int port) {
+        MemoryConnection connection = connections.get(port);
+        return connection != null && !connection.isClosed();
+    }
+
+    /**
+     * Closes a connection and the other end along with it, each transport lets its listener
+     * know on a virtual thread.
+     * @param closed a connection of this transport
+     */
+    @Override
+    public void close(Connection closed) {
+        MemoryConnection connection = (MemoryConnection) closed;
+        if(!connection.closed.compareAndSet(false, true)) {
+            return;
+        }
+        all.remove(connection);
+        if(connections.remove(connection.getRemotePort(), connection)) {
+            for(MemoryConnection duplicate : all) {
+                if(duplicate.getRemotePort() == connection.getRemotePort() && !duplicate.isTransfer()
+                        && register(duplicate) == duplicate) {
+                    break;
+                }
+            }
+        }
+        // whatever is still queued is released by the drain
+        connection.schedule();
+        startDelivery(() -> listener.connectionClosed(connection));
+
+        MemoryConnection peer = connection.peer;
+        peer.transport.close(peer);
+    }
+
+    /**
+     * Runs a delivery on a virtual thread once one of deliveryPermits is free, never waiting for
+     * it on the calling thread.
+     */
+    private void startDelivery(Runnable delivery) {
+        waitingDeliveries.add(delivery);
+        startWaitingDeliveries();
+    }
+
+    /**
+     * Starts the waiting deliveries there are permits for, called whenever one is queued and
+     * whenever one ends.
+     */
+    private void startWaitingDeliveries() {
+        while(!waitingDeliveries.isEmpty() && deliveryPermits.tryAcquire()) {
+            Runnable delivery = waitingDeliveries.poll();
+            if(delivery == null) {
+                // another thread took it
+                deliveryPermits.release();
+                continue;
+            }
+            DELIVERY.execute(() -> {
+                try {
+                    delivery.run();
+                } finally {
+                    deliveryPermits.release();
+                    startWaitingDeliveries();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void closeIdle(List<Integer> neighbors, long maximumIdleMillis) {
+        long now = System.currentTimeMillis();
+        for(MemoryConnection connection : all) {
+            if((connection.isTransfer() || !neighbors.contains(connection.getRemotePort()))
+                    && now - connection.lastActivity > maximumIdleMillis) {
+                close(connection);
+            }
+        }
+    }
+
+    /**
+     * Gives up the port and closes every connection.
+     */
+    @Override
+    public void closeAll() {
+        open = false;
+        BOUND.remove(localPort, this);
+        for(MemoryConnection connection : all) {
+            close(connection);
+        }
+    }
+
+    @Override
+    public Probes openProbes() {
+        return new MemoryProbes();
+    }
+
+    /**
+     * Probes which know at once whether a port is bound, so none is ever left connecting: a
+     * bound port is handed out by the next await() and connected once it is adopted.
+     */
+    private class MemoryProbes implements Probes {
+
+        /**
+         * bound ports not handed out yet.
+         */
+        private final ArrayDeque<Integer> bound = new ArrayDeque<>();
+
+        @Override
+        public void start(int port, long deadline) {
+            if(BOUND.containsKey(port)) {
+                bound.add(port);
+            }
+        }
+
+        @Override
+        public int connecting() {
+            return bound.size();
+        }
+
+        @Override
+        public void await(long timeoutMillis, IntConsumer connected) {
+            if(bound.isEmpty()) {
+                try {
+                    Thread.sleep(timeoutMillis);
+                } catch (InterruptedException e) {
+                    // the ChakNode has been killed, the discovery loop checks the flag
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Integer port;
+            while((port = bound.poll()) != null) {
+                connected.accept(port);
+            }
+        }
+
+        @Override
+        public Connection adopt(int port) {
+            return connect(port);
+        }
+
+        @Override
+        public void discard(int port) {
+        }
+
+        @Override
+        public void close() {
+            bound.clear();
+        }
+    }
+
+    /**
+     * One end of a connection between two MemoryTransports, holding the frames the other end
+     * sent until they are drained.
+     */
+    private static class MemoryConnection implements Connection {
+        private final MemoryTransport transport;
+        private final int remotePort;
+        private final boolean transfer;
+
+        /**
+         * the other end, set once both ends exist.
+         */
+        private MemoryConnection peer;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        /**
+         * frames sent by the other end in the order they were sent, and whether a drain is
+         * running or about to.
+         */
+        private final ConcurrentLinkedQueue<Frame> inbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * true while the stream fed by the drain has backed up, until it runs its resume.
+         */
+        private volatile boolean paused;
+
+        /**
+         * stream receiving the payload of the frame at the head of inbound, only touched by the
+         * drain.
+         */
+        private PayloadStream stream;
+
+        private MemoryConnection(MemoryTransport transport, int remotePort, boolean transfer) {
+            this.transport = transport;
+            this.remotePort = remotePort;
+            this.transfer = transfer;
+        }
+
+        @Override
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+        @Override
+        public boolean isTransfer() {
+            return transfer;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        @Override
+        public void send(ByteBuffer frame) throws IOException {
+            queue(new Frame(frame, null, null, 0, 0));
+        }
+
+        @Override
+        public void sendFile(ByteBuffer frameHead, FileChannel file, long position, long count) throws IOException {
+            queue(new Frame(frameHead, null, file, position, count));
+        }
+
+        @Override
+        public void sendFile(ByteBuffer frameHead, ByteBuffer content) throws IOException {
+            queue(new Frame(frameHead, content, null, 0, 0));
+        }
+
+        /**
+         * Queues a frame on the other end.
+         */
+        private void queue(Frame frame) throws IOException {
+            MemoryConnection receiver = peer;
+            if(isClosed() || receiver.isClosed()) {
+                frame.release();
+                throw new IOException("Connection closed");
+            }
+            lastActivity = System.currentTimeMillis();
+            receiver.inbound.add(frame);
+            // a close which raced with the add is drained too, releasing the frame
+            receiver.schedule();
+        }
+
+        /**
+         * Starts a drain unless one is running, the stream is backed up or the transport does not
+         * serve yet. A closed connection is always drained, to release what is queued.
+         */
+        private void schedule() {
+            boolean due = isClosed() || transport.serving && !paused && !inbound.isEmpty();
+            if(due && scheduled.compareAndSet(false, true)) {
+                transport.startDelivery(this::drain);
+            }
+        }
+
+        /**
+         * Delivers the queued frames in order until the queue is empty or the stream backs up.
+         */
+        private void drain() {
+            try {
+                while(true) {
+                    if(isClosed()) {
+                        release();
+                        return;
+                    }
+                    Frame frame = inbound.peek();
+                    if(frame == null || paused) {
+                        return;
+                    }
+                    if(!deliver(frame)) {
+                        return;
+                    }
+                    inbound.poll();
+                }
+            } catch (IOException e) {
+                // the other ChakNode sent garbage or the stream failed
+                transport.close(this);
+            } catch (RuntimeException e) {
+                transport.close(this);
+                throw e;
+            } finally {
+                scheduled.set(false);
+                if(isClosed() ? stream != null || !inbound.isEmpty() : !paused && !inbound.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+
+        /**
+         * Hands a frame to the listener, as a whole descriptor or piece by piece to the stream it
+         * returns.
+         * @return false if the stream backed up before the whole payload was written
+         * @throws IOException if the frame is malformed or the stream fails
+         */
+        private boolean deliver(Frame frame) throws IOException {
+            Listener listener = transport.listener;
+            if(stream == null) {
+                if(frame.head.remaining() < Descriptor.HEADER_LENGTH) {
+                    throw new ProtocolException("Truncated header");
+                }
+                Descriptor header = DescriptorCodec.readHeader(frame.head, frame.head.position());
+                frame.head.position(frame.head.position() + Descriptor.HEADER_LENGTH);
+                lastActivity = System.currentTimeMillis();
+
+                stream = listener.payloadStarted(this, header);
+                if(stream == null) {
+                    if(header.getPayloadLength() > Descriptor.MAXIMUM_PAYLOAD_LENGTH) {
+                        throw new ProtocolException("Invalid payload length "+header.getPayloadLength());
+                    }
+                    byte[] payload = new byte[header.getPayloadLength()];
+                    frame.readFully(ByteBuffer.wrap(payload));
+                    listener.descriptorReceived(this, header.withPayload(payload));
+                    return true;
+                }
+            }
+
+            Runnable resume = () -> {
+                paused = false;
+                schedule();
+            };
+            ByteBuffer piece;
+            while((piece = frame.nextPiece()) != null) {
+                lastActivity = System.currentTimeMillis();
+                paused = true;
+                if(stream.write(piece, resume)) {
+                    paused = false;
+                } else {
+                    return false;
+                }
+            }
+            PayloadStream completed = stream;
+            stream = null;
+            frame.release();
+            completed.complete();
+            return true;
+        }
+
+        /**
+         * Aborts the stream being fed and releases the frames still queued, called by the drain
+         * once the connection is closed.
+         */
+        private void release() {
+            if(stream != null) {
+                PayloadStream aborted = stream;
+                stream = null;
+                aborted.abort();
+            }
+            Frame frame;
+            while((frame = inbound.poll()) != null) {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * A frame as it was sent: the header and start of the payload, and the rest of the payload
+     * in memory or as a region of a file.
+     */
+    private static class Frame {
+        private final ByteBuffer head;
+        private final ByteBuffer content;
+        private final FileChannel file;
+        private long position;
+        private final long end;
+
+        /**
+         * piece of the file being handed out, reused from one piece to the next.
+         */
+        private ByteBuffer filePiece;
+
+        private Frame(ByteBuffer head, ByteBuffer content, FileChannel file, long position, long count) {
+            this.head = head.duplicate();
+            this.content = content == null ? null : content.duplicate();
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        /**
+         * @return the next piece of the payload, or null once it has all been handed out
+         * @throws IOException if the file cannot be read
+         */
+        private ByteBuffer nextPiece() throws IOException {
+            if(head.hasRemaining()) {
+                return head;
+            }
+            if(content != null && content.hasRemaining()) {
+                return content;
+            }
+            if(file == null || position >= end) {
+                return null;
+            }
+            if(filePiece == null) {
+                filePiece = ByteBuffer.allocate((int) Math.min(FILE_PIECE, end - position));
+            }
+            filePiece.clear().limit((int) Math.min(filePiece.capacity(), end - position));
+            while(filePiece.hasRemaining()) {
+                int read = file.read(filePiece, position + filePiece.position());
+                if(read < 0) {
+                    throw new IOException("File truncated while sending");
+                }
+            }
+            position += filePiece.flip().remaining();
+            return filePiece;
+        }
+
+        /**
+         * Reads the whole rest of the payload, which must fill the destination exactly.
+         * @throws IOException if the payload is not as long as its header says
+         */
+        private void readFully(ByteBuffer destination) throws IOException {
+            ByteBuffer piece;
+            while((piece = nextPiece()) != null) {
+                if(piece.remaining() > destination.remaining()) {
+                    throw new ProtocolException("Payload longer than its header says");
+                }
+                destination.put(piece);
+            }
+            if(destination.hasRemaining()) {
+                throw new ProtocolException("Payload shorter than its header says");
+            }
+            release();
+        }
+
+        /**
+         * Closes the file, if any.
+         */
+        private void release() {
+            if(file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // nothing left to release
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,1220 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * A NeighborConnection is a long-lived TCP connection between two ChakNodes.
+ * Descriptors are framed (header plus exactly payloadLength bytes) so any number of them can
+ * travel over the same connection in both directions.
+ *
+ * The ChakNode opening the connection sends "GNUTELLA CONNECT\n\n" followed by its listening
+ * port, the accepting ChakNode answers with "GNUTELLA OK\n\n" and its own listening port. The
+ * opener does not wait for the answer, it is simply the first thing its read buffer expects.
+ * A connection opened with "GNUTELLA TRANSFER\n\n" instead is a transfer connection: it only
+ * carries a file download between two ChakNodes and is never used for neighbor traffic.
+ *
+ * Incoming bytes are collected in a per-connection buffer and parsed incrementally by read(),
+ * outgoing descriptors are queued and written whenever the channel accepts more bytes. A
+ * non-blocking connection is opened without waiting for the connect to finish: descriptors
+ * sent meanwhile stay queued until the selector reports it done (see finishConnect()). In
+ * virtual-thread mode the channel is left blocking instead: read() then waits for bytes on the
+ * connection's own virtual thread and flush() writes the whole queue before returning.
+ *
+ * Every frame waiting in the queue goes out in the same gathering write. Neighbor traffic sent
+ * with sendBatched() is held back for up to FLUSH_DELAY_NANOS while the connection is busy, so
+ * a burst of descriptors costs a few writes rather than one each, while a descriptor sent over
+ * an idle connection is still written right away.
+ *
+ * Payloads carrying file data are never held whole. A file being served is queued as a region
+ * of its FileChannel and written with transferTo(), and a file being downloaded is handed to a
+ * PayloadStream piece by piece as it arrives.
+ *
+ * A greeting may carry headers, one per line between the first line and the empty one, which
+ * is how the two ChakNodes agree on compression (see StreamCompression). An opener which
+ * compresses adds "Accept-Encoding: deflate" and "Content-Encoding: deflate" and deflates all
+ * it sends after its handshake, since it does not wait for the answer. The accepting ChakNode
+ * inflates what follows the greeting if it announced Content-Encoding, and answers with
+ * "Content-Encoding: deflate", deflating all it sends after its own handshake, if it compresses
+ * as well and the opener offered Accept-Encoding. Each direction is a single Deflate stream
+ * which is flushed (SYNC_FLUSH) whenever the write queue runs empty, so the other end can
+ * parse every descriptor written so far. Files are read into memory to be deflated, they are
+ * not sent with transferTo() on a compressed connection.
+ */
+public class NeighborConnection implements Connection, Closeable {
+
+    public static final String CONNECT = "GNUTELLA CONNECT\n\n";
+    public static final String OK = "GNUTELLA OK\n\n";
+    public static final String TRANSFER = "GNUTELLA TRANSFER\n\n";
+
+    /**
+     * Milliseconds to wait for a TCP connection to be established, by a blocking connect or by
+     * the ConnectionTable for a non-blocking one.
+     */
+    public static final int CONNECT_TIMEOUT = 1000;
+
+    /**
+     * Starting size of the read buffer, it grows when a descriptor does not fit.
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Size of the chunks a file is copied in when transferTo() cannot be used.
+     */
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Longest a batched descriptor waits for others to join it, and the queued bytes at which a
+     * batch is written without waiting any longer.
+     */
+    public static final long FLUSH_DELAY_NANOS = 1000000;
+    private static final int BATCH_BYTES = 16 * 1024;
+
+    /**
+     * Most frames written by a single gathering write.
+     */
+    private static final int GATHER_LIMIT = 128;
+
+    private final SocketChannel channel;
+    private final boolean outbound;
+    private final StreamCompression compression;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * frames and files waiting for the channel to accept them, guarded by writeLock. They are
+     * written strictly in order, so frames never interleave.
+     */
+    private final ArrayDeque<Outgoing> writeQueue = new ArrayDeque<>();
+
+    /**
+     * bytes of the frames in writeQueue which have not been written yet, guarded by writeLock.
+     */
+    private int queuedBytes;
+
+    /**
+     * true once sendBatched() has left the queue for a flush scheduled by the caller, guarded by
+     * writeLock.
+     */
+    private boolean flushScheduled;
+
+    /**
+     * System.nanoTime() of the last flush, guarded by writeLock.
+     */
+    private long lastFlush = System.nanoTime() - FLUSH_DELAY_NANOS;
+
+    /**
+     * the frames of the next gathering write, guarded by writeLock.
+     */
+    private final ByteBuffer[] gather = new ByteBuffer[GATHER_LIMIT];
+
+    /**
+     * a lock rather than synchronized so that a virtual thread blocked in a write does not pin
+     * its carrier thread.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * guards waiting for reading to resume on blocking connections. The reading thread never
+     * takes writeLock, which a writer can hold while blocked on the other ChakNode, which in
+     * turn may be waiting for this connection to be read.
+     */
+    private final ReentrantLock pauseLock = new ReentrantLock();
+    private final Condition readResumed = pauseLock.newCondition();
+
+    /**
+     * true while the stream fed by this connection is backed up.
+     */
+    private volatile boolean readPaused;
+
+    /**
+     * true once the stream has resumed reading since the last piece was handed to it, which it
+     * may do on another thread before its write() even returned. Guarded by pauseLock.
+     */
+    private boolean readResumedEarly;
+
+    /**
+     * bytes received but not parsed yet, only touched by the thread reading the connection.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * receives the payload currently being streamed off this connection, if any.
+     */
+    private volatile PayloadStream inbound;
+
+    /**
+     * header of the descriptor at the start of the read buffer whose payload has not fully
+     * arrived yet, so it is only parsed once however many reads the payload takes.
+     */
+    private Descriptor pendingHeader;
+
+    /**
+     * bytes of the streamed payload which have not arrived yet.
+     */
+    private int inboundRemaining;
+
+    /**
+     * deflates everything written after the handshake, null while the stream sent is plain. It,
+     * the compressed bytes waiting to be written and the chunk files are read into to be
+     * compressed are guarded by writeLock.
+     */
+    private Deflater deflater;
+    private ByteBuffer deflated;
+    private ByteBuffer fileChunk;
+
+    /**
+     * true while bytes have been given to the deflater since it was last flushed, guarded by
+     * writeLock.
+     */
+    private boolean unflushed;
+
+    /**
+     * inflates everything read after the handshake into the read buffer, null while the stream
+     * received is plain. The compressed bytes not inflated yet are kept in wireBuffer. Only
+     * touched by the thread reading the connection, the Inflater is left to the garbage
+     * collector rather than ended under that thread's feet.
+     */
+    private Inflater inflater;
+    private ByteBuffer wireBuffer;
+
+    private SelectionKey key;
+
+    /**
+     * listening port of the ChakNode on the other end, 0 until the handshake is read
+     * on accepted connections.
+     */
+    private volatile int remotePort;
+
+    private volatile boolean handshakeComplete;
+
+    /**
+     * true while a non-blocking connect has not finished, written with writeLock held. Nothing
+     * is written until it has.
+     */
+    private volatile boolean connecting;
+
+    /**
+     * true if this connection only carries a file download, known from the start on opened
+     * connections and once the handshake is read on accepted ones.
+     */
+    private volatile boolean transfer;
+
+    /**
+     * time of the last descriptor sent or received, used to close idle connections.
+     */
+    private volatile long lastActivity;
+
+    private NeighborConnection(SocketChannel channel, int remotePort, boolean outbound, boolean blocking,
+                               StreamCompression compression) throws IOException {
+        this.channel = channel;
+        this.remotePort = remotePort;
+        this.outbound = outbound;
+        this.compression = compression;
+        channel.configureBlocking(blocking);
+        channel.socket().setTcpNoDelay(true);
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Opens a connection to another ChakNode and queues the connect handshake. A blocking
+     * connection waits for the connect, a non-blocking one only starts it: the selector it is
+     * registered with reports when to call finishConnect().
+     * @param ip address of the other ChakNode
+     * @param remotePort listening port of the other ChakNode
+     * @param localPort listening port of this ChakNode
+     * @param blocking true to leave the channel blocking for a connection read by its own thread
+     * @param compression whether to compress, and where to count it
+     * @return the new connection, not yet registered with a selector
+     * @throws IOException if the ChakNode cannot be reached
+     */
+    public static NeighborConnection open(Inet4Address ip, int remotePort, int localPort, boolean blocking,
+                                          StreamCompression compression) throws IOException {
+        return open(ip, remotePort, localPort, blocking, compression, CONNECT);
+    }
+
+    /**
+     * Opens a transfer connection to another ChakNode and queues the transfer handshake. Like
+     * open(), a non-blocking connection is returned before the connect has finished.
+     * @param ip address of the other ChakNode
+     * @param remotePort listening port of the other ChakNode
+     * @param localPort listening port of this ChakNode
+     * @param blocking true to leave the channel blocking for a connection read by its own thread
+     * @param compression whether to compress, and where to count it
+     * @return the new connection, not yet registered with a selector
+     * @throws IOException if the ChakNode cannot be reached
+     */
+    public static NeighborConnection openTransfer(Inet4Address ip, int remotePort, int localPort, boolean blocking,
+                                                  StreamCompression compression) throws IOException {
+        return open(ip, remotePort, localPort, blocking, compression, TRANSFER);
+    }
+
+    /**
+     * Opens a connection greeting the other ChakNode with CONNECT or TRANSFER.
+     */
+    private static NeighborConnection open(Inet4Address ip, int remotePort, int localPort, boolean blocking,
+                                           StreamCompression compression, String greeting) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            InetSocketAddress address = new InetSocketAddress(ip, remotePort);
+            if(blocking) {
+                // in virtual-thread mode the connect only holds up the virtual thread making it
+                channel.socket().connect(address, CONNECT_TIMEOUT);
+            }
+            NeighborConnection connection = new NeighborConnection(channel, remotePort, true, blocking, compression);
+            if(!blocking) {
+                connection.connecting = !channel.connect(address);
+            }
+            connection.transfer = greeting.equals(TRANSFER);
+            connection.queueOpeningHandshake(greeting, localPort);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Wraps a channel which has already finished connecting to another ChakNode, such as one
+     * opened by a discovery probe, and queues the connect handshake.
+     * @param channel the connected channel, no longer registered with any selector
+     * @param remotePort listening port of the other ChakNode
+     * @param localPort listening port of this ChakNode
+     * @param blocking true to leave the channel blocking for a connection read by its own thread
+     * @param compression whether to compress, and where to count it
+     * @return the new connection, not yet registered with a selector
+     * @throws IOException if the channel cannot be configured
+     */
+    public static NeighborConnection connected(SocketChannel channel, int remotePort, int localPort, boolean blocking,
+                                               StreamCompression compression) throws IOException {
+        NeighborConnection connection = new NeighborConnection(channel, remotePort, true, blocking, compression);
+        connection.queueOpeningHandshake(CONNECT, localPort);
+        return connection;
+    }
+
+    /**
+     * Wraps a channel returned by ServerSocketChannel.accept(), the handshake arrives later
+     * through read().
+     * @param channel the accepted channel
+     * @param blocking true to leave the channel blocking for a connection read by its own thread
+     * @param compression whether to compress, and where to count it
+     * @return the new connection, not yet registered with a selector
+     * @throws IOException if the channel cannot be configured
+     */
+    public static NeighborConnection accepted(SocketChannel channel, boolean blocking, StreamCompression compression)
+            throws IOException {
+        return new NeighborConnection(channel, 0, false, blocking, compression);
+    }
+
+    /**
+     * Queues the handshake of an opened connection, offering compression and deflating what
+     * follows it if this ChakNode compresses.
+     */
+    private void queueOpeningHandshake(String greeting, int localPort) throws IOException {
+        writeLock.lock();
+        try {
+            if(compression.isEnabled()) {
+                greeting = withHeaders(greeting, StreamCompression.ACCEPT_ENCODING+": "+StreamCompression.DEFLATE,
+                        StreamCompression.CONTENT_ENCODING+": "+StreamCompression.DEFLATE);
+                startDeflating();
+            }
+            queue(new HandshakeWrite(handshake(greeting, localPort)));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Deflates everything queued from now on, called with writeLock held.
+     */
+    private void startDeflating() {
+        deflater = compression.newDeflater();
+        deflated = ByteBuffer.allocate(FILE_CHUNK_SIZE).flip();
+    }
+
+    /**
+     * Registers the connection for reading, and for writing if descriptors are already queued.
+     * @param selector selector of the owning ConnectionTable
+     * @throws IOException if the channel has been closed
+     */
+    public void register(Selector selector) throws IOException {
+        writeLock.lock();
+        try {
+            key = channel.register(selector, interest(), this);
+        } finally {
+            writeLock.unlock();
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Finishes a non-blocking connect once the selector reports the channel connectable, and
+     * writes the descriptors queued meanwhile.
+     * @throws IOException if the ChakNode cannot be reached
+     */
+    public void finishConnect() throws IOException {
+        if(!channel.finishConnect()) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            connecting = false;
+            flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a descriptor for the other ChakNode and writes as much of it as the channel
+     * accepts right away, the selector writes the rest. Safe to call from several threads.
+     * @param frame header and payload, as encoded by DescriptorCodec, from position to limit.
+     *              The buffer is written as it is rather than copied, so it must not be
+     *              changed afterwards
+     * @throws IOException if the connection is broken
+     */
+    @Override
+    public void send(ByteBuffer frame) throws IOException {
+        queue(new BufferWrite(frame));
+        flush();
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Queues a descriptor to be written together with the descriptors sent around it. It is
+     * written right away if nothing was written for FLUSH_DELAY_NANOS, since then there is
+     * nothing to batch it with, or if BATCH_BYTES are waiting. Otherwise it waits for the next
+     * flush, which the caller schedules when asked to. Safe to call from several threads.
+     * @param frame header and payload, as encoded by DescriptorCodec, from position to limit.
+     *              The buffer is written as it is rather than copied, so it must not be
+     *              changed afterwards
+     * @return true if the caller has to call flush() within FLUSH_DELAY_NANOS, false if the
+     *         descriptor has been written or will be by a flush already scheduled
+     * @throws IOException if the connection is broken
+     */
+    public boolean sendBatched(ByteBuffer frame) throws IOException {
+        writeLock.lock();
+        try {
+            queue(new BufferWrite(frame));
+            lastActivity = System.currentTimeMillis();
+
+            if(queuedBytes < BATCH_BYTES) {
+                if(flushScheduled) {
+                    return false;
+                }
+                if(System.nanoTime() - lastFlush < FLUSH_DELAY_NANOS) {
+                    flushScheduled = true;
+                    return true;
+                }
+            }
+            flush();
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a descriptor whose payload ends with a range of a file. The range is written
+     * straight from the file's channel to the socket with transferTo(), so it is never copied
+     * onto the heap, and the file channel is closed once it has been sent or the connection
+     * closes.
+     * @param frameHead header and start of the payload, sent before the file and not copied
+     * @param file channel of the file to send, taken over by this connection
+     * @param position offset of the first file byte to send
+     * @param count number of file bytes the header accounts for
+     * @throws IOException if the connection is broken
+     */
+    @Override
+    public void sendFile(ByteBuffer frameHead, FileChannel file, long position, long count) throws IOException {
+        queue(new BufferWrite(frameHead), new FileWrite(file, position, count));
+        flush();
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Queues a descriptor whose payload ends with content already in memory, such as a slice of
+     * a mapped or off-heap segment. The content is written along with the header in a single
+     * gathering write, it is never copied.
+     * @param frameHead header and start of the payload
+     * @param content rest of the payload, which must not change until it has been sent
+     * @throws IOException if the connection is broken
+     */
+    @Override
+    public void sendFile(ByteBuffer frameHead, ByteBuffer content) throws IOException {
+        queue(new BufferWrite(frameHead), new BufferWrite(content));
+        flush();
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes queued descriptors until the queue is empty or the channel stops accepting bytes,
+     * in which case the selector is asked to call again once the channel is writable. Frames
+     * queued one after the other are written together. Nothing is written while the connection
+     * is still connecting.
+     * @throws IOException if the connection is broken
+     */
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            if(closed.get()) {
+                throw new IOException("Connection closed");
+            }
+
+            flushScheduled = false;
+            if(connecting) {
+                return;
+            }
+            while(deflater == null && !writeQueue.isEmpty()) {
+                Outgoing next = writeQueue.peek();
+                if(next instanceof BufferWrite) {
+                    if(!writeFrames()) {
+                        break;
+                    }
+                } else {
+                    if(!next.writeTo(channel)) {
+                        break;
+                    }
+                    writeQueue.poll();
+                }
+            }
+            if(deflater != null) {
+                writeCompressed();
+            }
+
+            // a file being served keeps the connection busy long after it was queued
+            lastFlush = System.nanoTime();
+            lastActivity = System.currentTimeMillis();
+            updateInterest();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the frames at the head of the queue with a single gathering write, called with
+     * writeLock held.
+     * @return true if every frame gathered was written
+     */
+    private boolean writeFrames() throws IOException {
+        int count = 0;
+        for(Outgoing outgoing : writeQueue) {
+            if(count == GATHER_LIMIT || !(outgoing instanceof BufferWrite)) {
+                break;
+            }
+            gather[count++] = ((BufferWrite) outgoing).buffer;
+        }
+
+        boolean complete = true;
+        try {
+            long written = channel.write(gather, 0, count);
+            queuedBytes -= (int) written;
+            compression.sent(written);
+        } finally {
+            // frames are written in order, so the ones written completely are at the head
+            for(int i = 0; i < count; ++i) {
+                if(gather[i].hasRemaining()) {
+                    complete = false;
+                } else if(complete) {
+                    writeQueue.poll();
+                }
+                gather[i] = null;
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Deflates the queue and writes the compressed bytes until the queue is empty and the
+     * deflater flushed, or the channel stops accepting bytes. Called with writeLock held.
+     */
+    private void writeCompressed() throws IOException {
+        while(true) {
+            if(deflated.hasRemaining()) {
+                channel.write(deflated);
+                if(deflated.hasRemaining()) {
+                    return;
+                }
+            }
+            deflated.clear();
+
+            if(!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            } else if(!writeQueue.isEmpty()) {
+                Outgoing next = writeQueue.peek();
+                if(next instanceof HandshakeWrite) {
+                    // the handshake itself is never compressed, it is the first thing queued
+                    ByteBuffer handshake = ((BufferWrite) next).buffer;
+                    queuedBytes -= handshake.remaining();
+                    deflated.put(handshake);
+                    writeQueue.poll();
+                } else {
+                    if(fileChunk == null && next instanceof FileWrite) {
+                        fileChunk = ByteBuffer.allocate(FILE_CHUNK_SIZE);
+                    }
+                    ByteBuffer plain = next.nextPlain(fileChunk);
+                    if(plain == null) {
+                        writeQueue.poll();
+                    } else {
+                        if(next instanceof BufferWrite) {
+                            queuedBytes -= plain.remaining();
+                        }
+                        deflater.setInput(plain);
+                        unflushed = true;
+                        deflate(Deflater.NO_FLUSH);
+                    }
+                }
+            } else if(unflushed) {
+                // a flush which fills the buffer has more to write
+                deflate(Deflater.SYNC_FLUSH);
+                unflushed = !deflated.hasRemaining();
+            } else {
+                deflated.flip();
+                return;
+            }
+            deflated.flip();
+        }
+    }
+
+    /**
+     * Deflates into the compressed bytes buffer, counting the bytes and the time it took.
+     */
+    private void deflate(int flush) {
+        long started = System.nanoTime();
+        long plainBefore = deflater.getBytesRead();
+        int wire = deflater.deflate(deflated, flush);
+        compression.deflated(deflater.getBytesRead() - plainBefore, wire, System.nanoTime() - started);
+    }
+
+    /**
+     * Reads whatever the channel has available and parses every complete descriptor in the
+     * read buffer. Only called by the selector thread, or by the connection's own thread in
+     * virtual-thread mode, where it first waits while reading is paused.
+     * @param localPort listening port of this ChakNode, sent back in the handshake
+     * @param handshakeRead called once the handshake has been read, before any descriptor
+     * @param streams asked for a stream as each header is read, a descriptor it returns a stream
+     *                for has its payload written to the stream instead of being buffered whole
+     * @param descriptors receives each complete descriptor which is not streamed
+     * @throws IOException if the connection is closed or a frame is corrupt
+     */
+    public void read(int localPort, Runnable handshakeRead, Function<Descriptor, PayloadStream> streams,
+                     Consumer<Descriptor> descriptors) throws IOException {
+        if(channel.isBlocking()) {
+            awaitReadResumed();
+        }
+        if(inflater != null) {
+            if(channel.read(wireBuffer) < 0) {
+                throw new IOException("Connection closed by "+remotePort);
+            }
+            inflate();
+        } else {
+            int read = channel.read(readBuffer);
+            if(read < 0) {
+                throw new IOException("Connection closed by "+remotePort);
+            }
+            compression.received(read);
+        }
+
+        while(true) {
+            readBuffer.flip();
+            try {
+                parse(localPort, handshakeRead, streams, descriptors);
+            } finally {
+                readBuffer.compact();
+            }
+
+            // the compressed bytes read may hold more than fitted in the read buffer, and no more
+            // may arrive to call read() again
+            if(inflater == null || !inflate()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parses every complete descriptor in the read buffer, called while it is flipped for
+     * reading.
+     */
+    private void parse(int localPort, Runnable handshakeRead, Function<Descriptor, PayloadStream> streams,
+                       Consumer<Descriptor> descriptors) throws IOException {
+        if(!handshakeComplete) {
+            if(!readHandshake(localPort)) {
+                return;
+            }
+            handshakeRead.run();
+        }
+
+        while(true) {
+            if(inbound != null) {
+                if(!readPayload()) {
+                    return;
+                }
+                continue;
+            }
+            if(readBuffer.remaining() < Descriptor.HEADER_LENGTH) {
+                return;
+            }
+
+            if(pendingHeader == null) {
+                Descriptor head = DescriptorCodec.readHeader(readBuffer, readBuffer.position());
+                PayloadStream stream = streams.apply(head);
+                if(stream != null) {
+                    readBuffer.position(readBuffer.position() + Descriptor.HEADER_LENGTH);
+                    inboundRemaining = head.getPayloadLength();
+                    inbound = stream;
+                    lastActivity = System.currentTimeMillis();
+                    continue;
+                }
+                if(head.getPayloadLength() > Descriptor.MAXIMUM_PAYLOAD_LENGTH) {
+                    throw new ProtocolException("Invalid payload length "+head.getPayloadLength());
+                }
+                pendingHeader = head;
+            }
+
+            int frameLength = Descriptor.HEADER_LENGTH + pendingHeader.getPayloadLength();
+            if(readBuffer.remaining() < frameLength) {
+                ensureCapacity(frameLength);
+                return;
+            }
+
+            // copied out, the read buffer is compacted long before a dispatcher thread is done with it
+            byte[] payload = new byte[pendingHeader.getPayloadLength()];
+            readBuffer.position(readBuffer.position() + Descriptor.HEADER_LENGTH);
+            readBuffer.get(payload);
+            Descriptor descriptor = pendingHeader.withPayload(payload);
+            pendingHeader = null;
+
+            lastActivity = System.currentTimeMillis();
+            descriptors.accept(descriptor);
+        }
+    }
+
+    /**
+     * Inflates as many of the compressed bytes received as fit into the read buffer, called
+     * while it is compacted for writing.
+     * @return true if any bytes were inflated
+     * @throws ProtocolException if the compressed stream is corrupt
+     */
+    private boolean inflate() throws ProtocolException {
+        long started = System.nanoTime();
+        wireBuffer.flip();
+        int wire = wireBuffer.remaining();
+        int plain = 0;
+        inflater.setInput(wireBuffer);
+        try {
+            while(readBuffer.hasRemaining()) {
+                int inflated = inflater.inflate(readBuffer);
+                if(inflated == 0) {
+                    break;
+                }
+                plain += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed stream: "+e.getMessage());
+        } finally {
+            wire -= wireBuffer.remaining();
+            wireBuffer.compact();
+        }
+        compression.inflated(wire, plain, System.nanoTime() - started);
+        return plain > 0;
+    }
+
+    /**
+     * Hands the buffered bytes of the streamed payload to its stream. If the stream backs up,
+     * the channel is not read again until it has drained, but the bytes already buffered are
+     * still parsed.
+     * @return false if the rest of the payload has not arrived yet
+     */
+    private boolean readPayload() throws IOException {
+        PayloadStream stream = inbound;
+        int length = Math.min(readBuffer.remaining(), inboundRemaining);
+        if(length == 0 && inboundRemaining > 0) {
+            return false;
+        }
+
+        ByteBuffer piece = readBuffer.slice(readBuffer.position(), length);
+        readBuffer.position(readBuffer.position() + length);
+        inboundRemaining -= length;
+        lastActivity = System.currentTimeMillis();
+
+        if(length > 0) {
+            pauseLock.lock();
+            try {
+                readResumedEarly = false;
+            } finally {
+                pauseLock.unlock();
+            }
+            if(!stream.write(piece, this::resumeReading)) {
+                pauseReading();
+            }
+        }
+        if(inboundRemaining == 0) {
+            inbound = null;
+            stream.complete();
+        }
+        return true;
+    }
+
+    /**
+     * Parses the handshake once it is complete in the read buffer, accepted connections
+     * answer it with their own.
+     * @return true if the handshake has been read
+     * @throws IOException if the handshake is malformed
+     */
+    private boolean readHandshake(int localPort) throws IOException {
+        if(readBuffer.remaining() < 2) {
+            return false;
+        }
+        int greetingLength = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+        if(readBuffer.remaining() < 2 + greetingLength + 4) {
+            ensureCapacity(2 + greetingLength + 4);
+            return false;
+        }
+
+        String headers = DescriptorCodec.readUTF(readBuffer);
+        int port = readBuffer.getInt();
+        String greeting = firstLine(headers);
+
+        if(outbound ? !greeting.equals(OK) : !greeting.equals(CONNECT) && !greeting.equals(TRANSFER)) {
+            throw new IOException("Unexpected handshake "+greeting.trim());
+        }
+        if(!outbound) {
+            transfer = greeting.equals(TRANSFER);
+        }
+        if(outbound && port != remotePort) {
+            throw new IOException("Connected to "+port+" instead of "+remotePort);
+        }
+        remotePort = port;
+        handshakeComplete = true;
+
+        // whatever follows the handshake in the read buffer already belongs to the compressed stream
+        if(StreamCompression.DEFLATE.equals(header(headers, StreamCompression.CONTENT_ENCODING))) {
+            inflater = compression.newInflater();
+            wireBuffer = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, readBuffer.remaining()));
+            wireBuffer.put(readBuffer);
+        }
+
+        if(!outbound) {
+            String answer = OK;
+            writeLock.lock();
+            try {
+                if(compression.isEnabled()
+                        && StreamCompression.DEFLATE.equals(header(headers, StreamCompression.ACCEPT_ENCODING))) {
+                    answer = withHeaders(OK, StreamCompression.CONTENT_ENCODING+": "+StreamCompression.DEFLATE);
+                    startDeflating();
+                }
+                queue(new HandshakeWrite(handshake(answer, localPort)));
+            } finally {
+                writeLock.unlock();
+            }
+            flush();
+        }
+        return true;
+    }
+
+    /**
+     * @return the greeting without its headers, such as "GNUTELLA CONNECT\n\n"
+     */
+    private static String firstLine(String greeting) {
+        int end = greeting.indexOf('\n');
+        return end < 0 ? greeting : greeting.substring(0, end + 1)+"\n";
+    }
+
+    /**
+     * @param greeting greeting with its headers
+     * @param name name of a header, in any case
+     * @return the value of the header, or null if the greeting does not carry it
+     */
+    private static String header(String greeting, String name) {
+        for(String line : greeting.split("\n")) {
+            int colon = line.indexOf(':');
+            if(colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim().toLowerCase();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds headers to a greeting: "GNUTELLA OK\n\n" with "Content-Encoding: deflate" becomes
+     * "GNUTELLA OK\nContent-Encoding: deflate\n\n".
+     */
+    private static String withHeaders(String greeting, String... headers) {
+        StringBuilder builder = new StringBuilder(greeting.substring(0, greeting.length() - 1));
+        for(String header : headers) {
+            builder.append(header).append('\n');
+        }
+        return builder.append('\n').toString();
+    }
+
+    /**
+     * Grows the read buffer so that a frame of the given length fits, called while the buffer
+     * is flipped for reading.
+     */
+    private void ensureCapacity(int frameLength) {
+        if(readBuffer.capacity() < frameLength) {
+            ByteBuffer larger = ByteBuffer.allocate(frameLength);
+            larger.put(readBuffer);
+            larger.flip();
+            readBuffer = larger;
+        }
+    }
+
+    /**
+     * Adds to the write queue, all at once so nothing else is queued in between.
+     */
+    private void queue(Outgoing... outgoing) throws IOException {
+        writeLock.lock();
+        try {
+            if(closed.get()) {
+                for(Outgoing o : outgoing) {
+                    o.release();
+                }
+                throw new IOException("Connection closed");
+            }
+            for(Outgoing o : outgoing) {
+                writeQueue.add(o);
+                if(o instanceof BufferWrite frame) {
+                    queuedBytes += frame.buffer.remaining();
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Stops reading the channel until resumeReading() is called, unless it already was.
+     */
+    private void pauseReading() throws IOException {
+        pauseLock.lock();
+        try {
+            if(readResumedEarly) {
+                return;
+            }
+            readPaused = true;
+        } finally {
+            pauseLock.unlock();
+        }
+        if(!channel.isBlocking()) {
+            writeLock.lock();
+            try {
+                updateInterest();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void resumeReading() {
+        pauseLock.lock();
+        try {
+            readResumedEarly = true;
+            readPaused = false;
+            readResumed.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
+        if(channel.isBlocking()) {
+            return;
+        }
+
+        writeLock.lock();
+        try {
+            updateInterest();
+        } catch (IOException e) {
+            // closed meanwhile, nothing left to resume
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void awaitReadResumed() throws IOException {
+        pauseLock.lock();
+        try {
+            while(readPaused && !closed.get()) {
+                readResumed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while paused");
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    private void signalReadResumed() {
+        pauseLock.lock();
+        try {
+            readResumed.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    /**
+     * Updates the selector interest to match the write queue and whether reading is paused,
+     * called with writeLock held on non-blocking connections.
+     */
+    private void updateInterest() throws IOException {
+        if(key == null) {
+            return;
+        }
+        try {
+            if(key.interestOps() != interest()) {
+                key.interestOps(interest());
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // another thread closed the connection meanwhile
+            throw new IOException("Connection closed");
+        }
+    }
+
+    private int interest() {
+        if(connecting) {
+            return SelectionKey.OP_CONNECT;
+        }
+        boolean writing = !writeQueue.isEmpty() || unflushed || deflated != null && deflated.hasRemaining();
+        return (readPaused ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /**
+     * Encodes a handshake: the greeting followed by the listening port.
+     */
+    private static ByteBuffer handshake(String greeting, int port) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 + DescriptorCodec.utfLength(greeting) + 4);
+        DescriptorCodec.writeUTF(buffer, greeting);
+        buffer.putInt(port).flip();
+        return buffer;
+    }
+
+    @Override
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    public boolean isHandshakeComplete() {
+        return handshakeComplete;
+    }
+
+    /**
+     * @return true while a non-blocking connect has not finished
+     */
+    public boolean isConnecting() {
+        return connecting;
+    }
+
+    @Override
+    public boolean isTransfer() {
+        return transfer;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Closes the channel, releases the files still queued and aborts the payload being streamed
+     * off this connection, if any.
+     * @return true if this call closed the connection, false if it already was closed
+     */
+    public boolean closeConnection() {
+        if(!closed.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+
+        writeLock.lock();
+        try {
+            for(Outgoing outgoing : writeQueue) {
+                outgoing.release();
+            }
+            writeQueue.clear();
+            queuedBytes = 0;
+            if(deflater != null) {
+                deflater.end();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        signalReadResumed();
+
+        PayloadStream stream = inbound;
+        inbound = null;
+        if(stream != null) {
+            stream.abort();
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closeConnection();
+    }
+
+    /**
+     * Something waiting in the write queue.
+     */
+    private interface Outgoing {
+
+        /**
+         * Writes as much as the channel accepts, called with writeLock held.
+         * @param channel the channel to write to
+         * @return true once everything has been written
+         */
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        /**
+         * Hands over the next bytes to be compressed rather than written as they are, called
+         * with writeLock held once the bytes handed over before have all been compressed.
+         * @param chunk buffer to read bytes into if they are not in memory yet
+         * @return the bytes from position to limit, or null once everything has been handed over
+         */
+        ByteBuffer nextPlain(ByteBuffer chunk) throws IOException;
+
+        /**
+         * Releases whatever is held once the connection has closed, called with writeLock held.
+         */
+        default void release() {
+        }
+    }
+
+    /**
+     * A frame, or the start of one, already in memory.
+     */
+    private static class BufferWrite implements Outgoing {
+        private final ByteBuffer buffer;
+
+        private BufferWrite(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public ByteBuffer nextPlain(ByteBuffer chunk) {
+            return buffer.hasRemaining() ? buffer : null;
+        }
+    }
+
+    /**
+     * A handshake, which is written as it is even on a compressed connection.
+     */
+    private static class HandshakeWrite extends BufferWrite {
+
+        private HandshakeWrite(ByteBuffer buffer) {
+            super(buffer);
+        }
+    }
+
+    /**
+     * A range of a file, sent with transferTo() so the kernel copies it to the socket.
+     */
+    private class FileWrite implements Outgoing {
+        private final FileChannel file;
+        private final long end;
+        private long position;
+
+        private FileWrite(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            end = position + count;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            while(position < end) {
+                if(position >= file.size()) {
+                    // the file shrank after the header was queued, the frame cannot be completed
+                    throw new IOException("File truncated while sending");
+                }
+                long written = file.transferTo(position, end - position, channel);
+                if(written == 0) {
+                    if(!channel.isBlocking()) {
+                        return false;
+                    }
+                    // a virtual thread's socket is non-blocking underneath and transferTo() does
+                    // not wait for it, a plain write does
+                    written = writeChunk(channel);
+                }
+                position += written;
+                compression.sent(written);
+            }
+            release();
+            return true;
+        }
+
+        @Override
+        public ByteBuffer nextPlain(ByteBuffer chunk) throws IOException {
+            if(position == end) {
+                release();
+                return null;
+            }
+            chunk.clear().limit((int) Math.min(chunk.capacity(), end - position));
+            int read = file.read(chunk, position);
+            if(read <= 0) {
+                throw new IOException("File truncated while sending");
+            }
+            position += read;
+            return chunk.flip();
+        }
+
+        /**
+         * Copies the next chunk of the file to the channel through a small buffer.
+         */
+        private int writeChunk(SocketChannel channel) throws IOException {
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(FILE_CHUNK_SIZE, end - position));
+            int read = file.read(chunk, position);
+            if(read <= 0) {
+                throw new IOException("File truncated while sending");
+            }
+            chunk.flip();
+            while(chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+            return read;
+        }
+
+        @Override
+        public void release() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+
+/**
+ * NeighborDiscovery finds neighbors for a ChakNode by probing the ports of the ChakNodes it
+ * knows of, best first, then the ports around its own except those it knows to be full. Probes
+ * connect without waiting for each other (see Transport.Probes), so many ports are tried at once
+ * (at most MAXIMUM_PROBES), and a port that does not accept within CONNECT_TIMEOUT is given up on.
+ *
+ * A port which accepts is adopted by the transport and pinged over that connection. Only as
+ * many pings are left unanswered as the ChakNode has free neighbor slots, so discovery never asks
+ * far more ChakNodes to become neighbors than it can keep, and probing stops as soon as the
+ * neighbor list is full.
+ */
+public class NeighborDiscovery {
+
+    /**
+     * Most probes connecting or connected but not yet pinged at once, over TCP each one holds a
+     * socket on both ChakNodes so this also bounds the file descriptors discovery uses.
+     */
+    private static final int MAXIMUM_PROBES = 16;
+
+    /**
+     * Milliseconds a probe may take to connect before the port is skipped.
+     */
+    private static final long CONNECT_TIMEOUT = 250;
+
+    /**
+     * Milliseconds to wait for the pong of a pinged ChakNode, after which its connection is
+     * closed.
+     */
+    private static final long ANSWER_TIMEOUT = 2000;
+
+    /**
+     * Milliseconds between checks of the neighbor list while probes are outstanding.
+     */
+    private static final long POLL_INTERVAL = 20;
+
+    private final int localPort;
+    private final int lowerPort;
+    private final int upperPort;
+    private final Transport connections;
+    private final List<Integer> neighbors;
+    private final IntSupplier freeSlots;
+    private final IntPredicate ping;
+    private final Supplier<List<Integer>> knownHosts;
+    private final IntPredicate knownFull;
+
+    /**
+     * @param localPort listening port of the owning ChakNode
+     * @param lowerPort lowest port which is ever probed
+     * @param upperPort highest port which is ever probed
+     * @param connections transport of the owning ChakNode, connected probes are adopted by it
+     * @param neighbors neighbor list of the owning ChakNode, filled in as pongs arrive
+     * @param freeSlots number of neighbors still wanted, which depends on the ChakNode's role
+     * @param ping sends a ping to a port, returning false if it could not be sent
+     * @param knownHosts ports of ChakNodes worth probing first, wherever they are
+     * @param knownFull tells whether a port is known to have no room, it is then not probed
+     */
+    public NeighborDiscovery(int localPort, int lowerPort, int upperPort, Transport connections, List<Integer> neighbors, IntSupplier freeSlots,
+                             IntPredicate ping, Supplier<List<Integer>> knownHosts, IntPredicate knownFull) {
+        this.localPort = localPort;
+        this.lowerPort = lowerPort;
+        this.upperPort = upperPort;
+        this.connections = connections;
+        this.neighbors = neighbors;
+        this.freeSlots = freeSlots;
+        this.ping = ping;
+        this.knownHosts = knownHosts;
+        this.knownFull = knownFull;
+    }
+
+    /**
+     * Probes the ports further than fromRadius and at most toRadius away from this ChakNode's
+     * port until the neighbor list is full or every probe has been answered. Known hosts are
+     * probed before any of those ports, including the ones heard of while probing.
+     * @param fromRadius distance of ports which have already been probed
+     * @param toRadius distance of the furthest ports to probe
+     * @return true if the neighbor list is full
+     * @throws IOException if the probes cannot be set up
+     */
+    public boolean probe(int fromRadius, int toRadius) throws IOException {
+        Iterator<Integer> radius = radius(fromRadius, toRadius);
+
+        // known hosts probed so far, so that they are not probed again as part of the radius
+        HashSet<Integer> tried = new HashSet<>();
+
+        // ports which accepted a connection, waiting in order for a free neighbor slot to be pinged
+        LinkedHashSet<Integer> reachable = new LinkedHashSet<>();
+
+        // pinged ports and the time by which they must have answered
+        HashMap<Integer, Long> pinged = new HashMap<>();
+
+        try (Transport.Probes probes = connections.openProbes()) {
+            while (!isFull() && !Thread.currentThread().isInterrupted()) {
+                long started = System.currentTimeMillis();
+
+                pinged.entrySet().removeIf(entry -> isAnswered(entry.getKey(), entry.getValue(), started));
+
+                Iterator<Integer> waiting = reachable.iterator();
+                while (waiting.hasNext() && pinged.size() < freeSlots.getAsInt()) {
+                    int port = waiting.next();
+                    waiting.remove();
+
+                    if(neighbors.contains(port)) {
+                        probes.discard(port);
+                    } else if(probes.adopt(port) != null && ping.test(port)) {
+                        pinged.put(port, started + ANSWER_TIMEOUT);
+                    }
+                }
+
+                List<Integer> known = knownHosts.get();
+                Integer candidate;
+                while (probes.connecting() + reachable.size() < MAXIMUM_PROBES
+                        && (candidate = nextCandidate(known, radius, tried)) != null) {
+                    probes.start(candidate, started + CONNECT_TIMEOUT);
+                }
+
+                if(probes.connecting() == 0 && reachable.isEmpty() && pinged.isEmpty()) {
+                    break;
+                }
+
+                probes.await(POLL_INTERVAL, reachable::add);
+            }
+        }
+
+        return isFull();
+    }
+
+    /**
+     * @return true once no more neighbors are wanted
+     */
+    public boolean isFull() {
+        return freeSlots.getAsInt() <= 0;
+    }
+
+    /**
+     * A pinged port has answered once it became a neighbor or closed its connection (which is
+     * how a ChakNode without room refuses). A port that stays silent past its deadline has its
+     * connection closed.
+     */
+    private boolean isAnswered(int port, long deadline, long now) {
+        if(neighbors.contains(port) || !connections.isConnected(port)) {
+            return true;
+        }
+        if(now > deadline) {
+            connections.disconnect(port);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the next port to probe: a known host not tried yet if there is one, otherwise the
+     * next port of the radius not known to be full, or null once both are used up
+     * @param known ports of the known hosts, best first
+     */
+    private Integer nextCandidate(List<Integer> known, Iterator<Integer> radius, HashSet<Integer> tried) {
+        for(int port : known) {
+            if(port != localPort && port >= lowerPort && port <= upperPort && !neighbors.contains(port)
+                    && tried.add(port)) {
+                return port;
+            }
+        }
+        while (radius.hasNext()) {
+            int port = radius.next();
+            if(!neighbors.contains(port) && !knownFull.test(port) && !tried.contains(port)) {
+                return port;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Walks the ports of the radius in ascending order, the same order they have always been
+     * walked in, leaving out this ChakNode. Only the ports between the two radii are walked and
+     * none is held in memory, so widening the radius step by step over a range as wide as the
+     * memory transport's costs each port once.
+     */
+    private Iterator<Integer> radius(int fromRadius, int toRadius) {
+        return IntStream.concat(
+                IntStream.rangeClosed(Math.max(lowerPort, localPort - toRadius), Math.min(upperPort, localPort - fromRadius - 1)),
+                IntStream.rangeClosed(Math.max(lowerPort, localPort + fromRadius + 1), Math.min(upperPort, localPort + toRadius)))
+                .iterator();
+    }
+}
@@ -0,0 +1,35 @@
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A PayloadStream receives the payload of a descriptor piece by piece as it comes off a
+ * connection, rather than as one array once the whole descriptor has arrived. This is how file
+ * data travels: the ChakNode downloading a file writes the pieces straight to disk as they come
+ * off its transfer connection, so it never holds a whole file on the heap.
+ */
+public interface PayloadStream {
+
+    /**
+     * Consumes every remaining byte of a piece of the payload. The buffer is only valid for the
+     * duration of the call.
+     * @param bytes the next piece of the payload
+     * @param resume run once the stream has drained, if this call returns false
+     * @return true if the stream can take more bytes right away, false if the connection feeding
+     *         it should stop reading until resume is run
+     * @throws IOException if the stream cannot take any more bytes
+     */
+    boolean write(ByteBuffer bytes, Runnable resume) throws IOException;
+
+    /**
+     * Called once every byte of the payload has been written.
+     */
+    void complete();
+
+    /**
+     * Called instead of complete() if the payload is cut short, for example because the
+     * connection feeding the stream was closed.
+     */
+    void abort();
+}
@@ -0,0 +1,198 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+
+/**
+ * The PongCache remembers the ultrapeers a ChakNode heard of through recent PONGs: their port,
+ * address, file count, byte count, flags and score, and how many hops the pong travelled. A pong
+ * received from the ultrapeer it describes has travelled 1 hop, one passed on from another
+ * ChakNode's cache has travelled one more than it had there.
+ *
+ * A ChakNode answers a PING with a few of these pongs instead of passing the PING on to its
+ * neighbors, and discovery tries the ports it holds before scanning for others. Both only use
+ * the ultrapeers whose flags say they had room for the ChakNode looking for neighbors, and
+ * discovery skips those which said they had none.
+ *
+ * Entries expire after a fixed lifetime and the cache never holds more than its capacity, the
+ * oldest entry is dropped first. Each port is kept once, with the fewest hops heard of.
+ */
+public class PongCache {
+
+    private final int capacity;
+    private final long lifetimeMillis;
+
+    /**
+     * entries by port, oldest first, guarded by itself.
+     */
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @param capacity most entries held at once
+     * @param lifetimeMillis milliseconds after which an entry expires
+     */
+    public PongCache(int capacity, long lifetimeMillis) {
+        this.capacity = capacity;
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    /**
+     * Remembers the ultrapeer a pong describes. An entry for the same port which has not expired
+     * and took fewer hops is kept instead.
+     * @param port listening port of the ultrapeer
+     * @param address IPv4 address of the ultrapeer
+     * @param fileCount number of files it shares
+     * @param byteCount number of bytes it shares
+     * @param flags flags of the pong, see DescriptorCodec
+     * @param score how well suited it is to be an ultrapeer
+     * @param hops hops the pong travelled, 1 if it came from the ultrapeer itself
+     */
+    public void add(int port, byte[] address, int fileCount, int byteCount, int flags, int score, int hops) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry existing = entries.get(port);
+            if(existing != null && existing.expires > now && existing.hops < hops) {
+                return;
+            }
+            entries.remove(port);
+            entries.put(port, new Entry(port, address, fileCount, byteCount, flags, score, hops,
+                    now + lifetimeMillis));
+
+            Iterator<Entry> oldest = entries.values().iterator();
+            while(entries.size() > capacity) {
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Picks the pongs to answer a PING with, at random among those which travelled the fewest
+     * hops.
+     * @param maximum most pongs picked
+     * @param maximumHops pongs which travelled this many hops or more are not passed on
+     * @param except port of the ChakNode which pinged, whose own pong is left out
+     * @param slots flag of the slots the ChakNode which pinged needs, PONG_ULTRAPEER_SLOTS or
+     *              PONG_LEAF_SLOTS
+     * @return the pongs
+     */
+    public List<Entry> sample(int maximum, int maximumHops, int except, int slots) {
+        List<Entry> sample = new ArrayList<>();
+        for(Entry entry : fresh()) {
+            if(entry.hops < maximumHops && entry.port != except && (entry.flags & slots) != 0) {
+                sample.add(entry);
+            }
+        }
+        Collections.shuffle(sample);
+        sample.sort(Comparator.comparingInt(Entry::getHops));
+        return sample.subList(0, Math.min(maximum, sample.size()));
+    }
+
+    /**
+     * @param slots flag of the slots needed, PONG_ULTRAPEER_SLOTS or PONG_LEAF_SLOTS
+     * @return the ports of the ultrapeers heard of which had those slots free, most recently
+     * heard of first
+     */
+    public List<Integer> ports(int slots) {
+        List<Integer> ports = new ArrayList<>();
+        for(Entry entry : fresh()) {
+            if((entry.flags & slots) != 0) {
+                ports.add(entry.port);
+            }
+        }
+        Collections.reverse(ports);
+        return ports;
+    }
+
+    /**
+     * @param port listening port of an ultrapeer
+     * @param slots flag of the slots needed, PONG_ULTRAPEER_SLOTS or PONG_LEAF_SLOTS
+     * @return true if the ultrapeer's latest pong said those slots were taken
+     */
+    public boolean isFull(int port, int slots) {
+        synchronized (entries) {
+            Entry entry = entries.get(port);
+            return entry != null && entry.expires > System.currentTimeMillis() && (entry.flags & slots) == 0;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "pongs="+size()+"/"+capacity;
+    }
+
+    /**
+     * Drops the expired entries.
+     * @return a copy of the others, oldest first
+     */
+    private List<Entry> fresh() {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            entries.values().removeIf(entry -> entry.expires <= now);
+            return new ArrayList<>(entries.values());
+        }
+    }
+
+    /**
+     * An ultrapeer heard of and until when it is remembered.
+     */
+    public static class Entry {
+        private final int port;
+        private final byte[] address;
+        private final int fileCount;
+        private final int byteCount;
+        private final int flags;
+        private final int score;
+        private final int hops;
+        private final long expires;
+
+        private Entry(int port, byte[] address, int fileCount, int byteCount, int flags, int score, int hops,
+                      long expires) {
+            this.port = port;
+            this.address = address;
+            this.fileCount = fileCount;
+            this.byteCount = byteCount;
+            this.flags = flags;
+            this.score = score;
+            this.hops = hops;
+            this.expires = expires;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public byte[] getAddress() {
+            return address;
+        }
+
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        public int getByteCount() {
+            return byteCount;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        public int getHops() {
+            return hops;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * The ProxyCache decides which files an ultrapeer keeps copies of for the ChakNodes around it.
+ * Files travel straight from the ChakNode sharing them to the one downloading them, so an
+ * ultrapeer never sees their bytes, but it does route their query hits: once it has routed
+ * popularity hits for the same file (by URN) it fetches the file itself and shares it, and the
+ * next queries for it are answered one or more hops sooner.
+ *
+ * The copies take at most quotaBytes of the content store, whichever store it is. Storing a
+ * copy which does not fit evicts the copies least recently asked for first, the ChakNode stops
+ * sharing them. Files the ChakNode shares of its own, or downloaded because it searched for
+ * them, are never counted or evicted.
+ */
+public class ProxyCache {
+
+    /**
+     * Most files whose routed hits are counted at once, the least recently routed is forgotten
+     * first
+     */
+    private static final int MAXIMUM_COUNTED = 1024;
+
+    private final long quotaBytes;
+    private final int popularity;
+
+    /**
+     * hits routed by URN, least recently routed first.
+     */
+    private final LinkedHashMap<String, Integer> routed = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * URNs of the copies being fetched, each until stored() or abandoned() ends its fetch.
+     */
+    private final Set<String> fetching = new HashSet<>();
+
+    /**
+     * copies kept by URN, least recently asked for first, and the bytes they take.
+     */
+    private final LinkedHashMap<String, Copy> copies = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private long stored;
+    private long evicted;
+    private long used;
+
+    /**
+     * @param quotaBytes most bytes of copies kept at once, 0 to keep none
+     * @param popularity hits routed for a file after which a copy is fetched
+     */
+    public ProxyCache(long quotaBytes, int popularity) {
+        this.quotaBytes = quotaBytes;
+        this.popularity = popularity;
+    }
+
+    /**
+     * Counts a query hit routed for a file.
+     * @param urn URN of the file
+     * @param size size of the file in bytes
+     * @return true if a copy of the file should be fetched now, the fetch is then expected to
+     * end in stored() or abandoned()
+     */
+    public synchronized boolean routed(String urn, long size) {
+        if(quotaBytes <= 0 || size > quotaBytes || copies.containsKey(urn) || fetching.contains(urn)) {
+            return false;
+        }
+
+        int count = routed.merge(urn, 1, Integer::sum);
+        Iterator<Integer> leastRecent = routed.values().iterator();
+        while(routed.size() > MAXIMUM_COUNTED) {
+            leastRecent.next();
+            leastRecent.remove();
+        }
+        if(count < popularity) {
+            return false;
+        }
+        routed.remove(urn);
+        fetching.add(urn);
+        return true;
+    }
+
+    /**
+     * Gives up on a fetch which did not end in a copy, the file may be fetched again.
+     * @param urn URN of the file
+     */
+    public synchronized void abandoned(String urn) {
+        fetching.remove(urn);
+    }
+
+    /**
+     * Keeps a file which has just been downloaded as a copy, if it was fetched because of
+     * routed().
+     * @param urn URN of the file
+     * @param filename name the file is shared under
+     * @param size size of the file in bytes
+     * @return the names of the copies evicted to make room, which are no longer to be shared, or
+     * null if the file is not a copy
+     */
+    public synchronized List<String> stored(String urn, String filename, long size) {
+        if(!fetching.remove(urn)) {
+            return null;
+        }
+        List<String> evictedNames = new ArrayList<>();
+        Iterator<Copy> leastRecent = copies.values().iterator();
+        while(bytes + size > quotaBytes && leastRecent.hasNext()) {
+            Copy copy = leastRecent.next();
+            leastRecent.remove();
+            bytes -= copy.size;
+            evictedNames.add(copy.filename);
+            ++evicted;
+        }
+        copies.put(urn, new Copy(filename, size));
+        bytes += size;
+        ++stored;
+        return evictedNames;
+    }
+
+    /**
+     * Notes that a file was asked for, a copy of it is then the last to be evicted.
+     * @param urn URN of the file
+     */
+    public synchronized void used(String urn) {
+        if(copies.get(urn) != null) {
+            ++used;
+        }
+    }
+
+    /**
+     * @param urn URN of a file
+     * @return true if the file is a copy kept by this cache
+     */
+    public synchronized boolean contains(String urn) {
+        return copies.containsKey(urn);
+    }
+
+    public synchronized int size() {
+        return copies.size();
+    }
+
+    /**
+     * @return number of times a copy answered a query
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "copies="+copies.size()+" bytes="+bytes+"/"+quotaBytes+" stored="+stored+" evicted="+evicted
+                +" used="+used;
+    }
+
+    /**
+     * A copy kept: the name it is shared under and its size.
+     */
+    private static class Copy {
+        private final String filename;
+        private final long size;
+
+        private Copy(String filename, long size) {
+            this.filename = filename;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The QueryResultCache remembers the query hits an ultrapeer recently routed back for each
+ * search, so that the same search arriving again is answered from the cache rather than
+ * forwarded to its neighbors. Searches are keyed by their keywords (see KeywordIndex), sorted
+ * and in lower case, so "Needle.txt" and "txt needle" share an entry.
+ *
+ * A query hit names the query it answers by request id only, so the search of every query
+ * forwarded is noted first (see expect()) and the hits coming back for it are filed under that
+ * search. At most maximumResults hits are kept per search. The hits of a query only reach as far
+ * as its TTL, so an entry only answers queries with at most the TTL of the deepest query whose
+ * hits it holds: a search widening beyond that (see ChakNode.DynamicQuery) is forwarded again.
+ *
+ * Entries expire a fixed lifetime after their first hit arrived, however often they are used,
+ * so a cached answer is never older than that. The cache holds at most budgetBytes, counting
+ * the strings and hashes it keeps, and evicts the least recently used search first.
+ */
+public class QueryResultCache {
+
+    /**
+     * Rough bytes taken by an object and the references to it, on top of its strings and arrays
+     */
+    private static final int OBJECT_OVERHEAD = 64;
+
+    private final long budgetBytes;
+    private final long lifetimeMillis;
+    private final int maximumResults;
+
+    /**
+     * cached results by search, least recently used first, guarded by itself along with bytes.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * searches of the queries forwarded recently by request id, oldest first, guarded by
+     * itself. As many are kept as there could be entries.
+     */
+    private final LinkedHashMap<String, Expected> expected = new LinkedHashMap<>();
+    private final int maximumExpected;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param budgetBytes most bytes held at once
+     * @param lifetimeMillis milliseconds after which the results of a search expire
+     * @param maximumResults most results kept per search
+     */
+    public QueryResultCache(long budgetBytes, long lifetimeMillis, int maximumResults) {
+        this.budgetBytes = budgetBytes;
+        this.lifetimeMillis = lifetimeMillis;
+        this.maximumResults = maximumResults;
+        this.maximumExpected = (int) Math.max(16, budgetBytes / OBJECT_OVERHEAD);
+    }
+
+    /**
+     * @param search keywords searched for
+     * @return the key of the search: its keywords sorted, in lower case and separated by spaces
+     */
+    public static String normalize(String search) {
+        return String.join(" ", new TreeSet<>(KeywordIndex.keywords(search)));
+    }
+
+    /**
+     * Looks up the results of a search, counting a hit or a miss.
+     * @param search keywords searched for
+     * @param ttl hops the query searching has left
+     * @return the results or null if there are none, they have expired or they were found by
+     * queries with a lower TTL
+     */
+    public List<Result> get(String search, int ttl) {
+        String key = normalize(search);
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if(entry != null && entry.expires <= now) {
+                remove(key);
+                entry = null;
+            }
+            if(entry == null || entry.ttl < ttl) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return new ArrayList<>(entry.results);
+        }
+    }
+
+    /**
+     * Notes the search of a query about to be forwarded, so the hits coming back for it are
+     * cached.
+     * @param requestId request id of the query
+     * @param search keywords searched for
+     * @param ttl hops the query has left
+     */
+    public void expect(String requestId, String search, int ttl) {
+        String key = normalize(search);
+        if(key.isEmpty()) {
+            return;
+        }
+        synchronized (expected) {
+            expected.put(requestId, new Expected(key, ttl));
+            Iterator<Expected> oldest = expected.values().iterator();
+            while(expected.size() > maximumExpected) {
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Caches a query hit routed back for a query whose search was noted. A hit for a query which
+     * was not, or the same file from the same ChakNode a second time, is ignored.
+     * @param requestId request id of the query answered
+     * @param address IPv4 address of the ChakNode sharing the file
+     * @param port port of the ChakNode sharing the file
+     * @param filename name of the file
+     * @param size size of the file in bytes
+     * @param hash SHA-1 hash of the file
+     */
+    public void add(String requestId, byte[] address, int port, String filename, long size, byte[] hash) {
+        Expected query;
+        synchronized (expected) {
+            query = expected.get(requestId);
+        }
+        if(query == null) {
+            return;
+        }
+        String key = query.key;
+
+        Result result = new Result(address, port, filename, size, hash);
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if(entry != null && entry.expires <= now) {
+                remove(key);
+                entry = null;
+            }
+            if(entry == null) {
+                entry = new Entry(now + lifetimeMillis);
+                entries.put(key, entry);
+                entry.bytes = OBJECT_OVERHEAD + 2L * key.length();
+                bytes += entry.bytes;
+            }
+            entry.ttl = Math.max(entry.ttl, query.ttl);
+            if(entry.results.size() >= maximumResults) {
+                return;
+            }
+            for(Result cached : entry.results) {
+                if(cached.port == port && Arrays.equals(cached.address, address)
+                        && Arrays.equals(cached.hash, hash)) {
+                    return;
+                }
+            }
+            entry.results.add(result);
+            entry.bytes += result.bytes();
+            bytes += result.bytes();
+
+            Iterator<Map.Entry<String, Entry>> leastRecent = entries.entrySet().iterator();
+            while(bytes > budgetBytes && leastRecent.hasNext()) {
+                Entry evicted = leastRecent.next().getValue();
+                leastRecent.remove();
+                bytes -= evicted.bytes;
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Drops an entry, called with entries held.
+     */
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if(removed != null) {
+            bytes -= removed.bytes;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return searches dropped before they expired to stay within the budget
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return share of the lookups answered from the cache, 0 before the first lookup
+     */
+    public double getHitRatio() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("results=%d bytes=%d/%d hits=%d misses=%d hit ratio=%.2f evictions=%d", size(),
+                getBytes(), budgetBytes, getHits(), getMisses(), getHitRatio(), getEvictions());
+    }
+
+    /**
+     * The results of one search and until when they are used.
+     */
+    private static class Entry {
+        private final List<Result> results = new ArrayList<>();
+        private final long expires;
+        private long bytes;
+
+        /**
+         * TTL of the deepest query whose hits were cached
+         */
+        private int ttl;
+
+        private Entry(long expires) {
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * The search of a query forwarded and the TTL it was forwarded with.
+     */
+    private static class Expected {
+        private final String key;
+        private final int ttl;
+
+        private Expected(String key, int ttl) {
+            this.key = key;
+            this.ttl = ttl;
+        }
+    }
+
+    /**
+     * A file found by a search: where it is shared and what the query hit said of it.
+     */
+    public static class Result {
+        private final byte[] address;
+        private final int port;
+        private final String filename;
+        private final long size;
+        private final byte[] hash;
+
+        private Result(byte[] address, int port, String filename, long size, byte[] hash) {
+            this.address = address;
+            this.port = port;
+            this.filename = filename;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        /**
+         * @return bytes this result takes in the cache
+         */
+        private long bytes() {
+            return OBJECT_OVERHEAD + address.length + 2L * filename.length() + hash.length;
+        }
+
+        public byte[] getAddress() {
+            return address;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+    }
+}
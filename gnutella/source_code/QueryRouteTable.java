@@ -0,0 +1,163 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * The QueryRouteTable remembers, for every query id a ChakNode has seen, the port the query came
+ * from, so that query hits can be routed back and a query arriving a second time is recognised
+ * as a duplicate.
+ *
+ * Routes expire after a fixed lifetime and the table never holds more than its capacity, the
+ * oldest route is evicted first when it is full. Lookups and insertions go straight to a
+ * ConcurrentHashMap, routes are also queued in the order they were added (which, with a single
+ * lifetime, is the order they expire in) and whichever thread adds a route sweeps the expired
+ * ones off the head of that queue, so no background thread is needed.
+ */
+public class QueryRouteTable {
+
+    private final int capacity;
+    private final long lifetimeMillis;
+
+    private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+
+    /**
+     * every route added, oldest first. A route replaced after it expired stays queued until it
+     * reaches the head, where it is recognised as stale and dropped.
+     */
+    private final ConcurrentLinkedQueue<Route> order = new ConcurrentLinkedQueue<>();
+
+    /**
+     * held while sweeping the head of order, a thread finding it taken leaves the sweep to the
+     * thread holding it.
+     */
+    private final ReentrantLock sweepLock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param capacity most routes held at once
+     * @param lifetimeMillis milliseconds after which a route expires
+     */
+    public QueryRouteTable(int capacity, long lifetimeMillis) {
+        this.capacity = capacity;
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    /**
+     * Adds the route of a query unless the query id is already known.
+     * @param id query id
+     * @param port port the query came from
+     * @return true if the route was added, false if the query is a duplicate
+     */
+    public boolean add(String id, int port) {
+        long now = System.currentTimeMillis();
+        Route route = new Route(id, port, now + lifetimeMillis);
+
+        Route existing = routes.putIfAbsent(id, route);
+        if(existing != null && (existing.expires > now || !routes.replace(id, existing, route))) {
+            return false;
+        }
+
+        order.add(route);
+        sweep(now);
+        return true;
+    }
+
+    /**
+     * Looks up the port a query came from, counting a hit or a miss.
+     * @param id query id
+     * @return the port or null if the query is unknown or its route has expired
+     */
+    public Integer get(String id) {
+        Route route = routes.get(id);
+        if(route == null || route.expires <= System.currentTimeMillis()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return route.port;
+    }
+
+    /**
+     * @param id query id
+     * @return true if the query id is known and its route has not expired
+     */
+    public boolean contains(String id) {
+        Route route = routes.get(id);
+        return route != null && route.expires > System.currentTimeMillis();
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return routes dropped before they expired because the table was full
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "routes="+size()+"/"+capacity+" hits="+getHits()+" misses="+getMisses()
+                +" evictions="+getEvictions()+" expirations="+getExpirations();
+    }
+
+    /**
+     * Drops expired routes off the head of the queue, and the oldest routes while the table is
+     * over capacity.
+     */
+    private void sweep(long now) {
+        if(!sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            Route oldest;
+            while((oldest = order.peek()) != null) {
+                boolean expired = oldest.expires <= now;
+                if(!expired && routes.size() <= capacity) {
+                    break;
+                }
+                order.poll();
+                if(routes.remove(oldest.id, oldest)) {
+                    (expired ? expirations : evictions).increment();
+                }
+            }
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    /**
+     * Where a query came from and until when that is remembered.
+     */
+    private static class Route {
+        private final String id;
+        private final int port;
+        private final long expires;
+
+        private Route(String id, int port, long expires) {
+            this.id = id;
+            this.port = port;
+            this.expires = expires;
+        }
+    }
+}
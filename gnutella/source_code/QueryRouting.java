@@ -0,0 +1,323 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * QueryRouting keeps the query route tables of a ChakNode, so that a query is only forwarded to
+ * the neighbors through which a matching file can be reached before the query runs out of hops.
+ *
+ * A route table is a stack of Bloom filters over file name keywords (see KeywordIndex), one per
+ * hop: level 0 holds the keywords of the files on a ChakNode itself, level i those of every file
+ * at most i hops beyond it. The table a ChakNode sends a neighbor is built from its own files
+ * and the tables its other neighbors sent it, shifted down one level. A query which still has
+ * ttl hops to go is sent to a neighbor only if every one of its keywords is in level ttl-1 of
+ * that neighbor's table. Bloom filters can only err on the side of a match, so a query is never
+ * held back from a file it would have reached by flooding.
+ *
+ * Tables are sent as patches: the bits which changed since the last table sent to the same
+ * neighbor, so once the tables have settled a new file only costs a few words per neighbor, and
+ * they are sent as soon as something changes so a new file spreads about one hop per round trip.
+ * The first patch after a neighbor (re)connects starts from an empty table. A neighbor whose
+ * table has not arrived yet is assumed to match everything.
+ *
+ * Not every neighbor is sent a table: an ultrapeer builds tables from the tables of its leaves
+ * but never sends one to them, since a leaf does not forward queries.
+ */
+public class QueryRouting {
+
+    /**
+     * Bits in each level of a table, and bits set for each keyword.
+     */
+    private static final int TABLE_BITS = 8192;
+    private static final int HASHES = 3;
+
+    private static final int WORDS = TABLE_BITS / 64;
+
+    /**
+     * number of levels, one for each hop a query can travel.
+     */
+    private final int depth;
+
+    /**
+     * keywords of this ChakNode's own files, guarded by itself.
+     */
+    private final long[] own = new long[WORDS];
+
+    /**
+     * the table each neighbor sent, each guarded by itself.
+     */
+    private final ConcurrentHashMap<Integer, long[][]> received = new ConcurrentHashMap<>();
+
+    /**
+     * the table last sent to each neighbor, guarded by this.
+     */
+    private final HashMap<Integer, long[][]> sent = new HashMap<>();
+
+    /**
+     * true once something went into a table since updates() last ran, guarded by changeLock.
+     */
+    private boolean changed = true;
+
+    /**
+     * a lock rather than synchronized so that a virtual thread waiting for a change does not pin
+     * its carrier thread.
+     */
+    private final ReentrantLock changeLock = new ReentrantLock();
+    private final Condition changes = changeLock.newCondition();
+
+    /**
+     * @param depth number of levels in each table, the most hops a query travels
+     */
+    public QueryRouting(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * Adds the keywords of a file this ChakNode shares.
+     * @param name file name
+     */
+    public void add(String name) {
+        synchronized (own) {
+            for(String keyword : KeywordIndex.keywords(name)) {
+                for(int i = 0; i < HASHES; ++i) {
+                    int bit = bit(keyword, i);
+                    own[bit >>> 6] |= 1L << bit;
+                }
+            }
+        }
+        signalChange();
+    }
+
+    /**
+     * Decides whether a query is worth sending to a neighbor.
+     * @param port listening port of the neighbor
+     * @param keywords keywords of the query
+     * @param ttl hops the query has left once it arrives at the neighbor
+     * @return false only if no file within reach through the neighbor can match
+     */
+    public boolean mayMatch(int port, Set<String> keywords, int ttl) {
+        if(ttl <= 0 || keywords.isEmpty()) {
+            return false;
+        }
+        long[][] table = received.get(port);
+        if(table == null) {
+            return true;
+        }
+
+        long[] level = table[Math.min(ttl, depth) - 1];
+        synchronized (table) {
+            for(String keyword : keywords) {
+                for(int i = 0; i < HASHES; ++i) {
+                    int bit = bit(keyword, i);
+                    if((level[bit >>> 6] & 1L << bit) == 0) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies a patch sent by a neighbor. A patch which does not start a table is ignored if
+     * there is no table to apply it to, the neighbor then keeps receiving every query.
+     * @param port listening port of the neighbor
+     * @param payload the encoded patch
+     * @throws IOException if the patch is malformed
+     */
+    public void receive(int port, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        boolean reset = in.readBoolean();
+        if(in.readUnsignedByte() != depth) {
+            throw new IOException("Route table depth does not match");
+        }
+
+        long[][] table = reset ? new long[depth][WORDS] : received.get(port);
+        if(table == null) {
+            return;
+        }
+        synchronized (table) {
+            for(long[] level : table) {
+                int words = in.readUnsignedShort();
+                for(int w = 0; w < words; ++w) {
+                    int index = in.readUnsignedShort();
+                    if(index >= WORDS) {
+                        throw new IOException("Route table patch out of range");
+                    }
+                    level[index] ^= in.readLong();
+                }
+            }
+        }
+        if(reset) {
+            received.put(port, table);
+        }
+        signalChange();
+    }
+
+    /**
+     * Forgets the tables exchanged with a ChakNode which is no longer connected, the next table
+     * sent to it starts from scratch.
+     * @param port listening port of the ChakNode
+     */
+    public synchronized void forget(int port) {
+        if(received.remove(port) != null | sent.remove(port) != null) {
+            signalChange();
+        }
+    }
+
+    /**
+     * Waits until a table has changed since updates() last ran.
+     * @param timeoutMillis most milliseconds to wait, the neighbors may change without a signal
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public void awaitChange(long timeoutMillis) throws InterruptedException {
+        changeLock.lock();
+        try {
+            if(!changed) {
+                changes.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            changeLock.unlock();
+        }
+    }
+
+    /**
+     * Builds the table for each neighbor which is sent one and encodes what changed since the
+     * last one sent. Nothing is built unless a table or the neighbors changed.
+     * @param neighbors current neighbors, whose tables are merged into the ones sent
+     * @param recipients the neighbors which are sent a table
+     * @return a patch for each recipient whose table changed
+     */
+    public synchronized Map<Integer, byte[]> updates(Collection<Integer> neighbors, Collection<Integer> recipients) {
+        Map<Integer, byte[]> patches = new HashMap<>();
+        Set<Integer> current = new HashSet<>(neighbors);
+        Set<Integer> receiving = new HashSet<>(recipients);
+        receiving.retainAll(current);
+        changeLock.lock();
+        try {
+            if(!changed && receiving.equals(sent.keySet())) {
+                return patches;
+            }
+            changed = false;
+        } finally {
+            changeLock.unlock();
+        }
+        sent.keySet().retainAll(receiving);
+
+        long[] ownCopy;
+        synchronized (own) {
+            ownCopy = own.clone();
+        }
+
+        for(int neighbor : receiving) {
+            long[][] table = new long[depth][];
+            table[0] = ownCopy.clone();
+            for(int l = 1; l < depth; ++l) {
+                table[l] = ownCopy.clone();
+            }
+
+            for(int other : current) {
+                long[][] theirs = received.get(other);
+                if(other == neighbor || theirs == null) {
+                    continue;
+                }
+                synchronized (theirs) {
+                    for(int l = 1; l < depth; ++l) {
+                        for(int w = 0; w < WORDS; ++w) {
+                            table[l][w] |= theirs[l - 1][w];
+                        }
+                    }
+                }
+            }
+
+            long[][] previous = sent.get(neighbor);
+            byte[] patch = patch(previous, table);
+            if(patch != null) {
+                patches.put(neighbor, patch);
+                sent.put(neighbor, table);
+            }
+        }
+        return patches;
+    }
+
+    /**
+     * Called when a patch could not be sent, the next table sent to the neighbor starts from
+     * scratch.
+     * @param port listening port of the neighbor
+     */
+    public synchronized void unsent(int port) {
+        sent.remove(port);
+        signalChange();
+    }
+
+    private void signalChange() {
+        changeLock.lock();
+        try {
+            changed = true;
+            changes.signalAll();
+        } finally {
+            changeLock.unlock();
+        }
+    }
+
+    /**
+     * Encodes the words which differ between two tables.
+     * @param previous the table last sent, null if none was
+     * @return the patch, or null if nothing changed
+     */
+    private byte[] patch(long[][] previous, long[][] table) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream dOut = new DataOutputStream(payload);
+            boolean differs = previous == null;
+
+            dOut.writeBoolean(previous == null);
+            dOut.writeByte(depth);
+            for(int l = 0; l < depth; ++l) {
+                int words = 0;
+                for(int w = 0; w < WORDS; ++w) {
+                    if(table[l][w] != (previous == null ? 0 : previous[l][w])) {
+                        ++words;
+                    }
+                }
+                differs |= words > 0;
+
+                dOut.writeShort(words);
+                for(int w = 0; w < WORDS; ++w) {
+                    long xor = table[l][w] ^ (previous == null ? 0 : previous[l][w]);
+                    if(xor != 0) {
+                        dOut.writeShort(w);
+                        dOut.writeLong(xor);
+                    }
+                }
+            }
+            return differs ? payload.toByteArray() : null;
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Position of a keyword's i-th bit, derived from String.hashCode() so that every ChakNode
+     * agrees on it.
+     */
+    private static int bit(String keyword, int i) {
+        int h1 = keyword.hashCode();
+        int h2 = Integer.rotateLeft(h1 * 0x9E3779B9, 15) | 1;
+        return Math.floorMod(h1 + i * h2, TABLE_BITS);
+    }
+}
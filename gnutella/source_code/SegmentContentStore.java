@@ -0,0 +1,189 @@
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+
+import java.util.HashMap;
+
+
+/**
+ * A SegmentContentStore packs content into large buffers (segments) which it allocates one after
+ * the other, each name getting a slice of a segment as large as its content. Reading or serving
+ * content is a matter of slicing that buffer, no system call is made per request, and a range is
+ * sent to a socket straight from the segment. Subclasses decide where the segments live.
+ *
+ * Segments start small and double up to MAXIMUM_SEGMENT_SIZE, so a ChakNode sharing a few small
+ * files does not hold megabytes, and content larger than half a segment gets a segment of its
+ * own. The space of deleted or moved over content is only given back when the store is cleared,
+ * and no single content can be larger than a ByteBuffer (2 GB).
+ */
+public abstract class SegmentContentStore implements ContentStore {
+
+    private static final int FIRST_SEGMENT_SIZE = 4 * 1024;
+    private static final int MAXIMUM_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * the slice of each name, guarded by this.
+     */
+    private final HashMap<String, Slice> slices = new HashMap<>();
+
+    /**
+     * segment being filled and the size of the next one, guarded by this.
+     */
+    private ByteBuffer segment;
+    private int nextSegmentSize = FIRST_SEGMENT_SIZE;
+
+    /**
+     * Allocates a segment.
+     * @param capacity size of the segment in bytes
+     * @return the segment, its position is 0 and its limit its capacity
+     * @throws IOException if the segment cannot be allocated
+     */
+    protected abstract ByteBuffer newSegment(int capacity) throws IOException;
+
+    /**
+     * Releases whatever holds the segments once the store is cleared.
+     * @throws IOException if some of it cannot be released
+     */
+    protected abstract void releaseSegments() throws IOException;
+
+    @Override
+    public synchronized void create(String name, byte[] bytes) throws IOException {
+        if(slices.containsKey(name)) {
+            throw new FileAlreadyExistsException(name);
+        }
+        Slice slice = allocate(bytes.length);
+        slice.buffer.put(0, bytes);
+        slice.length = bytes.length;
+        slices.put(name, slice);
+    }
+
+    @Override
+    public synchronized Content open(String name) {
+        return slices.get(name);
+    }
+
+    @Override
+    public synchronized Content openPartial(String name, long size) throws IOException {
+        Slice slice = slices.get(name);
+        if(slice == null || slice.buffer.capacity() < size) {
+            Slice larger = allocate(size);
+            if(slice != null) {
+                int kept = slice.length;
+                larger.buffer.put(0, slice.buffer, 0, kept);
+                larger.length = kept;
+            }
+            slice = larger;
+            slices.put(name, slice);
+        }
+        return slice;
+    }
+
+    @Override
+    public synchronized void move(String from, String to) throws IOException {
+        Slice slice = slices.remove(from);
+        if(slice == null) {
+            throw new NoSuchFileException(from);
+        }
+        slices.put(to, slice);
+    }
+
+    @Override
+    public synchronized void delete(String name) {
+        slices.remove(name);
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        slices.clear();
+        segment = null;
+        releaseSegments();
+    }
+
+    /**
+     * Cuts a slice off the segment being filled, starting a new segment if it has no room left.
+     * Called with this held.
+     */
+    private Slice allocate(long size) throws IOException {
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException("Content of "+size+" bytes is too large for a segment");
+        }
+        int capacity = (int) size;
+
+        if(capacity > MAXIMUM_SEGMENT_SIZE / 2) {
+            return new Slice(newSegment(capacity));
+        }
+        if(segment == null || segment.remaining() < capacity) {
+            while(nextSegmentSize < capacity) {
+                nextSegmentSize *= 2;
+            }
+            segment = newSegment(nextSegmentSize);
+            nextSegmentSize = Math.min(nextSegmentSize * 2, MAXIMUM_SEGMENT_SIZE);
+        }
+        ByteBuffer buffer = segment.slice(segment.position(), capacity);
+        segment.position(segment.position() + capacity);
+        return new Slice(buffer);
+    }
+
+    /**
+     * The content of one name: a slice of a segment as large as the content may grow, of which
+     * the first length bytes have been written. Handles need not be closed, a slice is its own
+     * handle.
+     */
+    private static class Slice implements Content {
+        private final ByteBuffer buffer;
+        private volatile int length;
+
+        private Slice(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long size() {
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer destination, long position) {
+            int length = this.length;
+            if(position >= length) {
+                return -1;
+            }
+            int count = (int) Math.min(destination.remaining(), length - position);
+            destination.put(destination.position(), buffer, (int) position, count);
+            destination.position(destination.position() + count);
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer source, long position) throws IOException {
+            int count = source.remaining();
+            if(position + count > buffer.capacity()) {
+                throw new IOException("Content would grow past the "+buffer.capacity()+" bytes set aside for it");
+            }
+            buffer.put((int) position, source, source.position(), count);
+            source.position(source.limit());
+            length = Math.max(length, (int) position + count);
+            return count;
+        }
+
+        @Override
+        public void truncate(long size) {
+            length = (int) Math.min(length, size);
+        }
+
+        @Override
+        public void send(Connection connection, ByteBuffer frameHead, long position, long count)
+                throws IOException {
+            if(position + count > length) {
+                throw new IOException("Content truncated while sending");
+            }
+            connection.sendFile(frameHead, buffer.slice((int) position, (int) count));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
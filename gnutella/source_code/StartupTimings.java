@@ -0,0 +1,81 @@
+/**
+ * StartupTimings records how long each phase of starting a ChakNode took: binding its server
+ * socket, setting up its state (id, tables, caches and connection table) and generating its
+ * files. With -Dchaknode.fastStart=true the files are generated in the background after the
+ * constructor returns, their phase is pending until then.
+ *
+ * Timings of several ChakNodes can be added up, which is how the simulator reports where the
+ * start of a whole network went.
+ */
+public class StartupTimings {
+
+    private long bindNanos;
+    private long stateNanos;
+    private volatile long filesNanos = -1;
+
+    /**
+     * number of ChakNodes added up in these timings, and how many of them are still generating
+     * their files
+     */
+    private int nodes;
+    private int filesPending;
+
+    public StartupTimings() {
+    }
+
+    StartupTimings(long bindNanos, long stateNanos) {
+        this.bindNanos = bindNanos;
+        this.stateNanos = stateNanos;
+        this.nodes = 1;
+    }
+
+    /**
+     * Records the time the files took, once they are generated.
+     * @param filesNanos nanoseconds spent generating the files
+     */
+    void filesDone(long filesNanos) {
+        this.filesNanos = filesNanos;
+    }
+
+    /**
+     * @return true once the files are generated
+     */
+    public boolean isComplete() {
+        return filesNanos >= 0 && filesPending == 0;
+    }
+
+    /**
+     * Adds the timings of another ChakNode (or group of them) to these.
+     * @param other timings to add
+     */
+    public void add(StartupTimings other) {
+        long otherFiles = other.filesNanos;
+        bindNanos += other.bindNanos;
+        stateNanos += other.stateNanos;
+        filesNanos = Math.max(filesNanos, 0) + Math.max(otherFiles, 0);
+        nodes += other.nodes;
+        filesPending += other.filesPending + (otherFiles < 0 ? 1 : 0);
+    }
+
+    public long getBindNanos() {
+        return bindNanos;
+    }
+
+    public long getStateNanos() {
+        return stateNanos;
+    }
+
+    /**
+     * @return nanoseconds spent generating files, -1 while a single ChakNode's files are pending
+     */
+    public long getFilesNanos() {
+        return filesNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bind %.1f ms, state %.1f ms, files %.1f ms%s", bindNanos / 1e6, stateNanos / 1e6,
+                Math.max(filesNanos, 0) / 1e6, filesPending > 0 ? " ("+filesPending+" of "+nodes+" pending)"
+                        : filesNanos < 0 ? " (pending)" : "");
+    }
+}
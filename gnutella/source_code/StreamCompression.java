@@ -0,0 +1,136 @@
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * StreamCompression is what the connections of a ChakNode share about compressing their byte
+ * streams: whether they deflate what they send, and how many bytes and how much time that took.
+ *
+ * A connection is compressed one direction at a time, with a single raw Deflate stream per
+ * direction which lives as long as the connection (see NeighborConnection). Descriptors sent
+ * over the same connection share the dictionary, so the keywords, file names and URNs repeated
+ * from one query or query hit to the next are sent as back references. Every ChakNode can
+ * inflate a stream, but only ChakNodes which are enabled deflate theirs.
+ *
+ * The counters cover every connection of the ChakNode, compressed or not, so that runs with
+ * and without compression compare: plain bytes are the handshakes and descriptors as encoded by
+ * DescriptorCodec, wire bytes what went over the socket for them, and the time is spent by
+ * whichever thread deflated or inflated.
+ */
+public class StreamCompression {
+
+    /**
+     * Name and value of the handshake header offering and announcing a Deflate stream
+     */
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String DEFLATE = "deflate";
+
+    private final boolean enabled;
+    private final int level;
+
+    private final LongAdder plainSent = new LongAdder();
+    private final LongAdder wireSent = new LongAdder();
+    private final LongAdder deflateNanos = new LongAdder();
+    private final LongAdder plainReceived = new LongAdder();
+    private final LongAdder wireReceived = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+
+    /**
+     * @param enabled true to deflate what the connections send whenever the other end accepts it
+     * @param level Deflate level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     */
+    public StreamCompression(boolean enabled, int level) {
+        this.enabled = enabled;
+        this.level = level;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return a Deflater for the stream sent over one connection, to be ended once it closes
+     */
+    public Deflater newDeflater() {
+        return new Deflater(level, true);
+    }
+
+    /**
+     * @return an Inflater for the stream received over one connection, to be ended once it closes
+     */
+    public Inflater newInflater() {
+        return new Inflater(true);
+    }
+
+    /**
+     * Counts bytes which have been deflated.
+     * @param plain bytes handed to the Deflater
+     * @param wire bytes it produced
+     * @param nanos time it took
+     */
+    public void deflated(long plain, long wire, long nanos) {
+        plainSent.add(plain);
+        wireSent.add(wire);
+        deflateNanos.add(nanos);
+    }
+
+    /**
+     * Counts bytes written as they are.
+     */
+    public void sent(long bytes) {
+        plainSent.add(bytes);
+        wireSent.add(bytes);
+    }
+
+    /**
+     * Counts bytes read as they are.
+     */
+    public void received(long bytes) {
+        plainReceived.add(bytes);
+        wireReceived.add(bytes);
+    }
+
+    /**
+     * Counts bytes which have been inflated.
+     * @param wire bytes handed to the Inflater
+     * @param plain bytes it produced
+     * @param nanos time it took
+     */
+    public void inflated(long wire, long plain, long nanos) {
+        wireReceived.add(wire);
+        plainReceived.add(plain);
+        inflateNanos.add(nanos);
+    }
+
+    /**
+     * @return bytes of handshakes and descriptors sent, before compression
+     */
+    public long getPlainBytesSent() {
+        return plainSent.sum();
+    }
+
+    /**
+     * @return bytes actually sent for them
+     */
+    public long getWireBytesSent() {
+        return wireSent.sum();
+    }
+
+    public long getDeflateNanos() {
+        return deflateNanos.sum();
+    }
+
+    public long getInflateNanos() {
+        return inflateNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        long plain = getPlainBytesSent(), wire = getWireBytesSent();
+        return String.format("compression=%s sent %d bytes as %d (%.2f) in %d ms, received %d bytes as %d in %d ms",
+                enabled ? DEFLATE : "off", plain, wire, plain == 0 ? 1.0 : (double) wire / plain,
+                getDeflateNanos() / 1000000, wireReceived.sum(), plainReceived.sum(), getInflateNanos() / 1000000);
+    }
+}
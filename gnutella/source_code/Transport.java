@@ -0,0 +1,189 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.net.Inet4Address;
+
+import java.nio.ByteBuffer;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+
+
+/**
+ * A Transport is how a ChakNode reaches the others: it owns the ChakNode's port, which is the
+ * ChakNode's identity, keeps one long-lived Connection per remote port, opens transfer
+ * connections for downloads and probes ports for neighbor discovery. Everything the ChakNode
+ * receives comes back through its Listener. Pick one with -Dchaknode.transport:
+ *
+ * tcp (the default): a ConnectionTable, every ChakNode listens on a real localhost socket and
+ * connections are TCP connections (see NeighborConnection). Ports are 1024 to 10000, so at most
+ * about 9,000 ChakNodes run on one machine and each holds file descriptors.
+ *
+ * memory: a MemoryTransport, ChakNodes of the same JVM hand each other descriptors through
+ * queues and no socket is ever opened. Ports go far beyond 65535, which is what lets a
+ * simulated network grow to 100,000 ChakNodes and more.
+ */
+public interface Transport {
+
+    /**
+     * Callbacks from the transport to the owning ChakNode.
+     */
+    interface Listener {
+
+        /**
+         * Called on a dispatcher thread (or a virtual thread) for every descriptor received.
+         * Descriptors received on the same connection may be handled concurrently unless the
+         * transport runs each connection on a thread of its own.
+         */
+        void descriptorReceived(Connection connection, Descriptor descriptor);
+
+        /**
+         * Called as soon as the header of a descriptor has arrived, before its payload. Whatever
+         * the returned stream does with each piece of the payload holds up the connection, so it
+         * must not block for long.
+         * @param connection the connection the descriptor arrives on
+         * @param header the descriptor without its payload
+         * @return a stream to receive the payload piece by piece, or null to receive the whole
+         *         descriptor through descriptorReceived
+         */
+        PayloadStream payloadStarted(Connection connection, Descriptor header);
+
+        /**
+         * Called once when a connection has been closed, for whatever reason.
+         */
+        void connectionClosed(Connection connection);
+    }
+
+    /**
+     * @return the port this transport listens on, the identity of its ChakNode
+     */
+    int getPort();
+
+    /**
+     * @return false once closeAll() has been called
+     */
+    boolean isOpen();
+
+    /**
+     * Services connections on the calling thread until the transport is closed, or returns right
+     * away if the transport needs no thread of its own for that.
+     */
+    void serve();
+
+    /**
+     * Runs one send of a fan-out (the same descriptor going to several neighbors), on a thread of
+     * its own if one slow neighbor could otherwise hold up the others.
+     * @param send the send to run
+     */
+    void fanOut(Runnable send);
+
+    /**
+     * Sends a descriptor to a port, connecting to it if there is no connection yet.
+     * @param port port of the receiving ChakNode
+     * @param frame header and payload from position to limit, left untouched so that the same
+     *              frame can be sent to several ChakNodes
+     * @return true if the descriptor was handed to an open connection
+     */
+    boolean send(int port, ByteBuffer frame);
+
+    /**
+     * Returns the open connection to a port, opening a new one if there is none.
+     * @param port port of the remote ChakNode
+     * @return the connection or null if the ChakNode cannot be reached
+     */
+    Connection connect(int port);
+
+    /**
+     * Opens a transfer connection to a port for a file download. It never takes the port's
+     * connection slot, so neighbor traffic does not queue behind the file and closing it does
+     * not drop a neighbor.
+     * @param host address of the ChakNode sharing the file
+     * @param port port of the ChakNode sharing the file
+     * @return the new connection or null if the ChakNode cannot be reached
+     */
+    Connection openTransfer(Inet4Address host, int port);
+
+    /**
+     * Closes the connection to a port, if there is one.
+     * @param port port of the remote ChakNode
+     */
+    void disconnect(int port);
+
+    /**
+     * @param port port of the remote ChakNode
+     * @return true if there is an open connection to the port
+     */
+    boolean isConnected(int port);
+
+    /**
+     * Closes a connection and lets the listener know, exactly once per connection.
+     * @param connection a connection of this transport
+     */
+    void close(Connection connection);
+
+    /**
+     * Closes connections which do not belong to a neighbor and have been idle for too long.
+     * @param neighbors current neighbors of the owning ChakNode
+     * @param maximumIdleMillis idle time after which a connection is closed
+     */
+    void closeIdle(List<Integer> neighbors, long maximumIdleMillis);
+
+    /**
+     * Closes every connection and gives up the port.
+     */
+    void closeAll();
+
+    /**
+     * @return a new set of probes for a round of neighbor discovery, see NeighborDiscovery
+     * @throws IOException if the probes cannot be set up, for example for lack of file descriptors
+     */
+    Probes openProbes() throws IOException;
+
+    /**
+     * Connects to ports without waiting for each one, so that neighbor discovery can try many
+     * ports at once. A probe which connected is either adopted as the connection to its port or
+     * discarded, closing the probes closes whatever is left.
+     */
+    interface Probes extends Closeable {
+
+        /**
+         * Starts connecting to a port.
+         * @param port port to probe
+         * @param deadline System.currentTimeMillis() by which the probe is given up if it has not
+         *                 connected
+         */
+        void start(int port, long deadline);
+
+        /**
+         * @return the number of probes which have neither connected nor been given up yet
+         */
+        int connecting();
+
+        /**
+         * Waits up to timeoutMillis for probes to connect, giving up those past their deadline.
+         * @param timeoutMillis longest wait
+         * @param connected receives the port of each probe which connected
+         * @throws IOException if the probes can no longer be waited for
+         */
+        void await(long timeoutMillis, IntConsumer connected) throws IOException;
+
+        /**
+         * Turns a probe which connected into the transport's connection to its port.
+         * @param port port of the probe
+         * @return the connection now open to the port, or null if the probe is unusable
+         */
+        Connection adopt(int port);
+
+        /**
+         * Closes a probe which connected but is not needed.
+         * @param port port of the probe
+         */
+        void discard(int port);
+
+        /**
+         * Closes every probe which was not adopted.
+         */
+        @Override
+        void close() throws IOException;
+    }
+}
@@ -0,0 +1,134 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+
+/**
+ * UltrapeerElection decides when a leaf ChakNode promotes itself to an ultrapeer.
+ *
+ * A ChakNode is capable of being an ultrapeer once it has been up for at least
+ * -Dchaknode.ultrapeerUptime milliseconds, its bandwidth is at least MINIMUM_BANDWIDTH and the
+ * CPU is not saturated. Bandwidth cannot be measured between ChakNodes sharing localhost, so it
+ * is the one declared with -Dchaknode.bandwidth (KB/s). The CPU load is the share of the
+ * processors this JVM used recently, or the system load average per processor on platforms which
+ * do not report it.
+ *
+ * Capable leaves do not all promote at once, which would leave the network flat again. Only a
+ * leaf without any ultrapeer promotes, and only if no other such leaf it heard from during the
+ * discovery round ranks higher. The rank is the score sent in every PONG (uptime first, then
+ * bandwidth, then CPU headroom) with ties going to the lower port, so the nodes probing each
+ * other agree on which one of them promotes and the rest become its leaves the round after. A
+ * leaf which stays isolated for FORCED_PROMOTION_ROUNDS rounds promotes even if it is not
+ * capable, so a network of slow ChakNodes still forms.
+ */
+public class UltrapeerElection {
+
+    /**
+     * Least uptime, bandwidth (KB/s) and most load per processor of an ultrapeer.
+     */
+    private static final long MINIMUM_UPTIME = Long.getLong("chaknode.ultrapeerUptime", 5000);
+    private static final int MINIMUM_BANDWIDTH = 256;
+    private static final double MAXIMUM_LOAD = 0.9;
+
+    /**
+     * Low bits of a rank which hold the port, wide enough for the ports of any transport, TCP's
+     * or MemoryTransport's up to its HIGHEST_PORT.
+     */
+    private static final int PORT_BITS = Integer.SIZE - Integer.numberOfLeadingZeros(MemoryTransport.HIGHEST_PORT);
+    private static final long PORT_MASK = (1L << PORT_BITS) - 1;
+
+    /**
+     * Declared bandwidth of this ChakNode in KB/s.
+     */
+    private static final int BANDWIDTH = Integer.getInteger("chaknode.bandwidth", 1024);
+
+    /**
+     * Isolated discovery rounds after which a leaf promotes even if it is not capable.
+     */
+    private static final int FORCED_PROMOTION_ROUNDS = 5;
+
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final long started = System.currentTimeMillis();
+    private final int port;
+
+    /**
+     * consecutive discovery rounds this ChakNode ended as a leaf without ultrapeers.
+     */
+    private int isolatedRounds;
+
+    /**
+     * @param port listening port of the ChakNode, which breaks ties between equal scores
+     */
+    public UltrapeerElection(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return true if this ChakNode meets the uptime, bandwidth and CPU requirements
+     */
+    public boolean isCapable() {
+        return System.currentTimeMillis() - started >= MINIMUM_UPTIME && BANDWIDTH >= MINIMUM_BANDWIDTH
+                && load() < MAXIMUM_LOAD;
+    }
+
+    /**
+     * Scores how well suited this ChakNode is to be an ultrapeer. Uptime counts in whole
+     * minutes (up to a day), bandwidth in 64 KB/s steps (up to 999) and CPU headroom in tenths,
+     * so that ChakNodes started together on similar machines tie and the port decides.
+     * @return a score which is higher the better suited this ChakNode is
+     */
+    public int score() {
+        long uptimeMinutes = Math.min((System.currentTimeMillis() - started) / 60000, 24 * 60);
+        int bandwidthSteps = Math.min(BANDWIDTH / 64, 999);
+        int headroom = (int) Math.round(10 * Math.max(0, MAXIMUM_LOAD - load()));
+        return (int) uptimeMinutes * 100000 + bandwidthSteps * 100 + headroom;
+    }
+
+    /**
+     * @param score score sent by a ChakNode
+     * @return the minutes the ChakNode has been up, as counted in its score
+     */
+    public static int uptimeMinutes(int score) {
+        return Math.max(score, 0) / 100000;
+    }
+
+    /**
+     * Orders ChakNodes by score, ties going to the lower port.
+     * @param score score sent by the ChakNode
+     * @param port listening port of the ChakNode
+     * @return a rank which is higher the better suited the ChakNode is
+     */
+    public static long rank(int score, int port) {
+        return (long) score << PORT_BITS | PORT_MASK - (port & PORT_MASK);
+    }
+
+    /**
+     * Called at the end of every discovery round of a leaf.
+     * @param isolated true if the leaf has no ultrapeer
+     * @param strongestRival highest rank among the isolated leaves heard from this round, or
+     *                       Long.MIN_VALUE if there were none
+     * @return true if the leaf should promote itself now
+     */
+    public boolean shouldPromote(boolean isolated, long strongestRival) {
+        if(!isolated) {
+            isolatedRounds = 0;
+            return false;
+        }
+        ++isolatedRounds;
+        return (isCapable() || isolatedRounds >= FORCED_PROMOTION_ROUNDS) && strongestRival < rank(score(), port);
+    }
+
+    /**
+     * @return load between 0 and 1 (the load average may exceed 1), 0 if the platform reports
+     * neither
+     */
+    private double load() {
+        if(os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+            if(load >= 0) {
+                return load;
+            }
+        }
+        double load = os.getSystemLoadAverage();
+        return load < 0 ? 0 : load / os.getAvailableProcessors();
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.Locale;
+
+
+/**
+ * Urn turns the SHA-1 hash of a file into its URN and back. The URN is the one Gnutella clients
+ * have always used: "urn:sha1:" followed by the 20 hash bytes in base32 (RFC 4648, no padding),
+ * 32 characters of A-Z and 2-7. It names a file by its content, so two files with different
+ * names and the same bytes have the same URN.
+ *
+ * A search for a URN rather than for keywords is a hash-exact search: it only matches files
+ * with that hash, whatever their name (see FileCatalog.search).
+ */
+public final class Urn {
+
+    public static final String PREFIX = "urn:sha1:";
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+    private static final int ENCODED_LENGTH = 32;
+
+    private Urn() {
+    }
+
+    /**
+     * @param hash 20 byte SHA-1 hash
+     * @return the URN of the hash
+     */
+    public static String of(byte[] hash) {
+        if(hash.length != DescriptorCodec.HASH_LENGTH) {
+            throw new IllegalArgumentException("Expected "+DescriptorCodec.HASH_LENGTH+" bytes, got "+hash.length);
+        }
+        StringBuilder urn = new StringBuilder(PREFIX.length() + ENCODED_LENGTH).append(PREFIX);
+
+        // 20 bytes are 160 bits, exactly 32 groups of 5
+        int bits = 0;
+        int buffered = 0;
+        for(byte b : hash) {
+            buffered = (buffered << 8) | (b & 0xFF);
+            bits += 8;
+            while(bits >= 5) {
+                bits -= 5;
+                urn.append(ALPHABET.charAt((buffered >>> bits) & 0x1F));
+            }
+        }
+        return urn.toString();
+    }
+
+    /**
+     * Reads the hash out of a URN. The prefix and the base32 letters may be in any case.
+     * @param text a URN, or anything else
+     * @return the 20 byte hash, or null if the text is not a SHA-1 URN
+     */
+    public static byte[] parse(String text) {
+        String trimmed = text.trim();
+        if(trimmed.length() != PREFIX.length() + ENCODED_LENGTH
+                || !trimmed.regionMatches(true, 0, PREFIX, 0, PREFIX.length())) {
+            return null;
+        }
+        String encoded = trimmed.substring(PREFIX.length()).toUpperCase(Locale.ROOT);
+
+        byte[] hash = new byte[DescriptorCodec.HASH_LENGTH];
+        int bits = 0;
+        int buffered = 0;
+        int next = 0;
+        for(int i = 0; i < encoded.length(); ++i) {
+            int value = ALPHABET.indexOf(encoded.charAt(i));
+            if(value < 0) {
+                return null;
+            }
+            buffered = (buffered << 5) | value;
+            bits += 5;
+            if(bits >= 8) {
+                bits -= 8;
+                hash[next++] = (byte) (buffered >>> bits);
+            }
+        }
+        return hash;
+    }
+}